@@ -0,0 +1,42 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* Пропускная способность журнала: пачка из BATCH записей ставится в очередь фонового писателя,
+затем вызывающий ждёт, пока она окажется в файле. Так меряется устойчивая скорость записи на диск,
+а не скорость заполнения очереди. Закрытые сегменты сразу удаляются, чтобы замер не занимал диск */
+class AppendLogFixture implements Fixture {
+    static final int BATCH = 1000;
+    private static final String ENTRY = "[2026-10-17T12:00:00.000000] [sender]: сообщение для замера записи в журнал\n";
+
+    private final ChatLogWriter writer;
+
+    AppendLogFixture(String flushPolicy) throws IOException {
+        SegmentedLog log = new SegmentedLog(Files.createTempDirectory("chat-log-bench").resolve("file.log"));
+        log.setSegmentLimits(16L * 1024 * 1024, 24 * 60 * 60 * 1000L);
+        log.setRetention(new LogRetentionPolicy(0, false, 1));
+        LogFlushPolicy policy = "fsync".equals(flushPolicy) ? LogFlushPolicy.fsyncEachBatch()
+                : "groupCommit".equals(flushPolicy) ? LogFlushPolicy.groupCommit(10) : LogFlushPolicy.DEFAULT;
+        writer = new ChatLogWriter(log, 64 * 1024, policy);
+        writer.start();
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        if (!"appendLog".equals(name)) {
+            throw new IllegalArgumentException(name);
+        }
+        return () -> {
+            for (int i = 0; i < BATCH; i++) {
+                writer.append(ENTRY);
+            }
+            writer.sync(5000);
+        };
+    }
+
+    @Override
+    public void close() {
+        writer.close(5000);
+    }
+}
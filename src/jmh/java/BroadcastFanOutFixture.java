@@ -0,0 +1,33 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* Полный путь рассылки ChatServer.broadcast в общую комнату из recipients участников:
+запись в очередь журнала, кодирование, история и постановка кадра в очереди всех сессий.
+Получатели — сессии в памяти, которые сразу копируют кадр, как это делает писатель сокета */
+class BroadcastFanOutFixture implements Fixture {
+    private final ChatServer server;
+    private final String body = "Привет всем, это сообщение для замера рассылки";
+
+    BroadcastFanOutFixture(int recipients) throws IOException {
+        server = new ChatServer(0, ServerMode.PLATFORM, Files.createTempDirectory("chat-bench").resolve("file.log"));
+        server.setHistory(50, 0); // как в main
+        for (int i = 0; i < recipients; i++) {
+            server.register("user-" + i, new BroadcastFixture.SinkSession());
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        if (!"broadcast".equals(name)) {
+            throw new IllegalArgumentException(name);
+        }
+        return () -> server.broadcast("sender", RoomRegistry.DEFAULT_ROOM, body);
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,68 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Рассылка одной строки recipients получателям. perRecipientEncoding повторяет прежнюю рассылку
+(trim и кодирование строки для каждого получателя), sharedFrame — нынешнюю (кадр кодируется один раз) */
+class BroadcastFixture implements Fixture {
+    private final ChatServer server;
+    private final List<ClientSession> sessions = new ArrayList<>();
+    private final String body = "Привет всем, это сообщение для замера";
+    private final String logEntry = "[2026-10-17T12:00:00.000000] [sender]: " + body + "\n";
+    private final SenderDirectory.Sender sender = new SenderDirectory().intern("sender");
+
+    BroadcastFixture(int recipients) throws IOException {
+        server = new ChatServer(0, ServerMode.PLATFORM, Files.createTempDirectory("chat-bench").resolve("file.log"));
+        for (int i = 0; i < recipients; i++) {
+            SinkSession session = new SinkSession();
+            sessions.add(session);
+            server.register("user-" + i, session);
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        switch (name) {
+            case "perRecipientEncoding":
+                return () -> {
+                    for (ClientSession session : sessions) {
+                        session.send(logEntry.trim());
+                    }
+                };
+            case "sharedFrame":
+                return () -> server.fanOut(new ChatMessage(BinaryProtocol.CHAT, sender, System.currentTimeMillis(), null,
+                        body, logEntry.trim()));
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+
+    /* Сессия в памяти: писатель сразу забирает кадр и копирует его байты в свой буфер,
+    как это делает BlockingSession.writeLoop() */
+    static class SinkSession extends ClientSession {
+        private final byte[] sink = new byte[8192];
+
+        SinkSession() {
+            super(16, OverflowPolicy.DROP_OLDEST);
+        }
+
+        @Override
+        void onEnqueued() {
+            ByteBuffer frame = pollOutbound();
+            frame.get(frame.position(), sink, 0, Math.min(sink.length, frame.remaining()));
+        }
+
+        @Override
+        void close() {
+        }
+    }
+}
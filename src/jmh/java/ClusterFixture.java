@@ -0,0 +1,175 @@
+import bench.Fixture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Кластер из nodes узлов на петлевом интерфейсе, на каждом clientsPerNode строковых клиентов; потоки
+клиентов считают полученные сообщения. Операция — одно сообщение от клиента очередного узла. Отправитель
+уходит вперёд не больше чем на WINDOW сообщений от самого медленного получателя, поэтому замер — это
+устойчивая скорость, с которой кластер принимает сообщения и доставляет их всем клиентам всех узлов */
+class ClusterFixture implements Fixture {
+    private static final int WINDOW = 256;
+    private static final byte[] MESSAGE = "m\n".getBytes(StandardCharsets.UTF_8);
+
+    private final List<ChatServer> servers = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<AtomicLong> received = new ArrayList<>();
+    private final OutputStream[] senders;
+    private long sent;
+    private long confirmed; // столько сообщений уже получили все клиенты
+    private int next;
+
+    ClusterFixture(int nodes, int clientsPerNode) throws Exception {
+        Path dir = Files.createTempDirectory("chat-bench");
+        int[] ports = new int[nodes];
+        int[] clusterPorts = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            ports[i] = freePort();
+            clusterPorts[i] = freePort();
+        }
+        for (int i = 0; i < nodes; i++) {
+            ChatServer server = new ChatServer(ports[i], ServerMode.NIO, dir.resolve("node-" + i + ".log"));
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < nodes; j++) {
+                if (j != i) {
+                    peers.add(InetSocketAddress.createUnresolved("localhost", clusterPorts[j]));
+                }
+            }
+            server.setCluster(clusterPorts[i], peers);
+            servers.add(server);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "chat-bench-node-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        senders = new OutputStream[nodes];
+        for (int i = 0; i < nodes; i++) {
+            for (int c = 0; c < clientsPerNode; c++) {
+                Socket socket = connect(ports[i], "bench-" + i + "-" + c);
+                if (c == 0) {
+                    senders[i] = socket.getOutputStream();
+                }
+            }
+        }
+        for (ChatServer server : servers) {
+            while (server.getClientCount() < clientsPerNode) {
+                Thread.sleep(10);
+            }
+        }
+        // Связи между узлами установлены, когда первый круг дошёл до всех клиентов
+        for (int i = 0; i < nodes; i++) {
+            send();
+        }
+        awaitDelivery(sent);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private Socket connect(int port, String username) throws Exception {
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException ex) {
+                if (attempt == 100) {
+                    throw new IllegalStateException("Узел не запустился на порту " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write((username + "\n").getBytes(StandardCharsets.UTF_8));
+        sockets.add(socket);
+        AtomicLong counter = new AtomicLong();
+        received.add(counter);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.endsWith("]: m")) {
+                        counter.incrementAndGet();
+                    }
+                }
+            } catch (IOException ignored) {
+                // соединение закрыто при остановке
+            }
+        }, "chat-bench-reader-" + username);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+
+    private void send() {
+        try {
+            OutputStream out = senders[next];
+            next = (next + 1) % senders.length;
+            out.write(MESSAGE);
+            out.flush();
+            sent++;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void awaitDelivery(long target) {
+        while (true) {
+            long slowest = Long.MAX_VALUE;
+            for (AtomicLong counter : received) {
+                slowest = Math.min(slowest, counter.get());
+            }
+            confirmed = slowest;
+            if (slowest >= target) {
+                return;
+            }
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    private void message() {
+        send();
+        if (sent - confirmed > WINDOW) {
+            awaitDelivery(sent - WINDOW / 2);
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        if (!"message".equals(name)) {
+            throw new IllegalArgumentException(name);
+        }
+        return this::message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+    }
+}
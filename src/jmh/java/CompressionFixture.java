@@ -0,0 +1,114 @@
+import bench.Fixture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/* Типичный трафик чата в двоичном протоколе: short — реплики из нескольких слов, paste — вставленный
+кусок журнала со стеком вызовов (около 4 КБ), history — 50 реплик, которые новый клиент получает при входе.
+compress сжимает так же, как сервер (сообщение — кадром DEFLATED, история — пачкой BATCH), inflate
+распаковывает, как клиент. Сколько байт сэкономлено, печатается при создании фикстуры */
+class CompressionFixture implements Fixture {
+    private static final String[] WORDS = {
+            "привет", "всем", "кто", "сегодня", "на", "созвоне", "в", "три", "часа", "сборка", "опять", "упала",
+            "посмотри", "пожалуйста", "ветку", "ok", "deploy", "готов", "спасибо", "да", "нет", "минуту",
+            "review", "PR", "тесты", "зелёные", "сервер", "лежит", "кто-нибудь", "знает", "почему", "lol"};
+    private static final int VARIANTS = 64;
+
+    private final FrameCompressor compressor;
+    private final String traffic;
+    private final List<ByteBuffer> frames = new ArrayList<>(); // исходные кадры для compress
+    private final List<List<ByteBuffer>> histories = new ArrayList<>();
+    private final List<byte[]> compressed = new ArrayList<>(); // сжатые кадры для inflate
+    private int next;
+    private Object sink; // результат операции, чтобы JIT не выбросил вычисления
+
+    CompressionFixture(String traffic, int level) {
+        this.traffic = traffic;
+        this.compressor = new FrameCompressor(1, level); // сжимаем всё, чтобы увидеть и цену коротких сообщений
+        Random random = new Random(42);
+        long plainBytes = 0;
+        long compressedBytes = 0;
+        for (int i = 0; i < VARIANTS; i++) {
+            List<ByteBuffer> out;
+            if ("history".equals(traffic)) {
+                List<ByteBuffer> history = new ArrayList<>();
+                for (int m = 0; m < 50; m++) {
+                    int sender = random.nextInt(8);
+                    if (m < 8) {
+                        history.add(BinaryProtocol.user(m, "user" + m));
+                    }
+                    history.add(BinaryProtocol.chat(sender, 1_700_000_000_000L + m * 1000L, null, phrase(random)));
+                }
+                histories.add(history);
+                out = compressor.batch(history);
+                plainBytes += history.stream().mapToInt(ByteBuffer::remaining).sum();
+            } else {
+                String body = "paste".equals(traffic) ? paste(random) : phrase(random);
+                ByteBuffer frame = BinaryProtocol.chat(3, 1_700_000_000_000L + i, null, body);
+                frames.add(frame);
+                out = List.of(compressor.compress(frame));
+                plainBytes += frame.remaining();
+            }
+            int size = out.stream().mapToInt(ByteBuffer::remaining).sum();
+            compressedBytes += size;
+            ByteBuffer wire = ByteBuffer.allocate(size);
+            out.forEach(frame -> wire.put(frame.duplicate()));
+            compressed.add(wire.array());
+        }
+        System.out.printf("%s, уровень %d: %d байт -> %d байт (%.0f%% исходного)%n",
+                traffic, level, plainBytes / VARIANTS, compressedBytes / VARIANTS, 100.0 * compressedBytes / plainBytes);
+    }
+
+    private static String phrase(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 3 + random.nextInt(10);
+        for (int w = 0; w < words; w++) {
+            sb.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String paste(Random random) {
+        StringBuilder sb = new StringBuilder("Exception in thread \"chat-nio-0\" java.io.IOException: Connection reset by peer\n");
+        while (sb.length() < 4096) {
+            sb.append("\tat ChatServer.broadcast(ChatServer.java:").append(300 + random.nextInt(100)).append(")\n")
+                    .append("\tat NioConnection.onLine(NioConnection.java:").append(340 + random.nextInt(40)).append(")\n")
+                    .append("\tat java.base/java.lang.Thread.run(Thread.java:1583)\n");
+        }
+        return sb.toString();
+    }
+
+    private void compress() {
+        int i = next++ & (VARIANTS - 1);
+        sink = "history".equals(traffic) ? compressor.batch(histories.get(i)) : compressor.compress(frames.get(i));
+    }
+
+    // Клиентская сторона: читатель кадров распаковывает DEFLATED и BATCH
+    private void inflate() {
+        try {
+            BinaryFrameReader reader = new BinaryFrameReader(new ByteArrayInputStream(compressed.get(next++ & (VARIANTS - 1))));
+            reader.acceptCompressed();
+            int frames = 0;
+            while (reader.next()) {
+                frames++;
+            }
+            sink = frames;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        return switch (name) {
+            case "compress" -> this::compress;
+            case "inflate" -> this::inflate;
+            default -> throw new IllegalArgumentException(name);
+        };
+    }
+}
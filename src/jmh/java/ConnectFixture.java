@@ -0,0 +1,78 @@
+import bench.Fixture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/* Сервер на петлевом интерфейсе в заданном режиме. Операция — полный вход нового клиента:
+соединение, имя, первое сообщение и его эхо (по эху видно, что регистрация завершена), выход */
+class ConnectFixture implements Fixture {
+    private final ChatServer server;
+    private final int port;
+    private int next;
+
+    ConnectFixture(String mode) throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort(); // свободный порт
+        }
+        server = new ChatServer(port, ServerMode.parse(mode), Files.createTempDirectory("chat-bench").resolve("file.log"));
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "chat-bench-server");
+        thread.setDaemon(true);
+        thread.start();
+        waitForServer();
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Сервер не запустился на порту " + port);
+    }
+
+    private void connectAndRegister() {
+        String username = "bench-" + next++;
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoLinger(true, 0); // сброс вместо TIME_WAIT: иначе за замер кончатся локальные порты
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            out.write((username + "\nhi\n/exit\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null && !line.contains("[" + username + "]")) {
+                // пропускаем чужие строки, если они есть
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        if (!"connectAndRegister".equals(name)) {
+            throw new IllegalArgumentException(name);
+        }
+        return this::connectAndRegister;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
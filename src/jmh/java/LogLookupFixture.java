@@ -0,0 +1,60 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/* Сегментированный журнал заданного размера во временном каталоге: поиск «с момента T» и «последние N»
+должен занимать одинаковое время независимо от общего размера журнала */
+class LogLookupFixture implements Fixture {
+    private static final String ENTRY = "[2026-10-17T12:00:00.000000] [sender]: сообщение для проверки поиска по журналу №";
+
+    private final Path dir;
+    private final SegmentedLog log;
+    private final long records;
+    private volatile List<LogRecord> sink; // результат запроса, чтобы JIT не выбросил чтение
+
+    LogLookupFixture(long logBytes) throws IOException {
+        dir = Files.createTempDirectory("chat-log-bench");
+        log = new SegmentedLog(dir.resolve("file.log"));
+        // Сжатые сегменты читаются распаковкой потока, поэтому меряем только несжатые
+        log.setRetention(new LogRetentionPolicy(0, false, 0));
+        log.open();
+        long written = 0;
+        long n = 0;
+        while (written < logBytes) {
+            String entry = ENTRY + n;
+            log.append(entry, n); // время записи равно её номеру: удобно выбирать случайный момент
+            written += entry.length() * 2L; // приблизительно: кириллица занимает два байта
+            n++;
+        }
+        log.writePending();
+        records = n;
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        switch (name) {
+            case "since":
+                return () -> sink = log.since(ThreadLocalRandom.current().nextLong(records), 20);
+            case "lastN":
+                return () -> sink = log.lastN(20);
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* rooms комнат по usersPerRoom участников. roomMessage рассылает сообщение участникам одной комнаты
+(комнаты перебираются по кругу), serverWideMessage — всем пользователям сервера, как до появления комнат */
+class RoomFanOutFixture implements Fixture {
+    private final ChatServer server;
+    private final String[] roomNames;
+    private final String body = "Привет комнате, это сообщение для замера";
+    private final String line = "[2026-10-17T12:00:00.000000] [sender] [#room]: " + body;
+    private final SenderDirectory.Sender sender = new SenderDirectory().intern("sender");
+    private int next;
+
+    RoomFanOutFixture(int rooms, int usersPerRoom) throws IOException {
+        server = new ChatServer(0, ServerMode.PLATFORM, Files.createTempDirectory("chat-bench").resolve("file.log"));
+        roomNames = new String[rooms];
+        for (int r = 0; r < rooms; r++) {
+            roomNames[r] = "room-" + r;
+            for (int u = 0; u < usersPerRoom; u++) {
+                BroadcastFixture.SinkSession session = new BroadcastFixture.SinkSession();
+                server.register("user-" + r + "-" + u, session);
+                server.joinRoom(session, roomNames[r]);
+            }
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        switch (name) {
+            case "roomMessage":
+                return () -> {
+                    server.fanOut(roomNames[next], new ChatMessage(BinaryProtocol.CHAT, sender, System.currentTimeMillis(),
+                            roomNames[next], body, line));
+                    next = next + 1 == roomNames.length ? 0 : next + 1;
+                };
+            case "serverWideMessage":
+                return () -> server.fanOut(new ChatMessage(BinaryProtocol.CHAT, sender, System.currentTimeMillis(), null,
+                        body, line));
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,93 @@
+import bench.Fixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/* Индекс поиска по журналу из messages сообщений, разбитому на закрытые сегменты по SEGMENT записей,
+во временном каталоге. Слова распределены примерно по Ципфу: есть очень частые, есть редкие.
+Запросы идут так же, как SearchIndex.find: по сегментам от новых к старым до 20 найденных */
+class SearchFixture implements Fixture {
+    private static final int SEGMENT = 1_000_000;
+    private static final int VOCABULARY = 50_000;
+    private static final int USERS = 100;
+    private static final int WORDS_PER_MESSAGE = 8;
+
+    private final Path dir;
+    private final List<SearchIndex.Segment> segments = new ArrayList<>();
+    private volatile int sink; // число найденных, чтобы JIT не выбросил запрос
+
+    SearchFixture(long messages) throws IOException {
+        dir = Files.createTempDirectory("chat-search-bench");
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = "w" + i;
+        }
+        String[] users = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = SearchIndex.USER_PREFIX + "user" + i;
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        double logVocabulary = Math.log(VOCABULARY);
+        List<String> words = new ArrayList<>();
+        for (long base = 0; base < messages; base += SEGMENT) {
+            TermIndex index = new TermIndex(base);
+            long end = Math.min(messages, base + SEGMENT);
+            for (long seq = base; seq < end; seq++) {
+                words.clear();
+                for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                    // Номер слова распределён логарифмически равномерно: w0 встречается чаще всех
+                    words.add(vocabulary[(int) Math.exp(random.nextDouble() * logVocabulary) - 1]);
+                }
+                if (seq % SEGMENT == SEGMENT / 2) {
+                    words.add("редкое"); // одно сообщение на сегмент: запрос проходит все сегменты
+                }
+                words.add(users[random.nextInt(USERS)]);
+                index.add(seq, words);
+            }
+            Path file = dir.resolve("segment-" + base + SearchIndex.EXTENSION);
+            index.write(file);
+            segments.add(TermIndexFile.open(file));
+        }
+    }
+
+    private int find(List<String> terms) {
+        long[] hits = new long[SearchIndex.MAX_RESULTS];
+        int found = 0;
+        for (int i = segments.size() - 1; i >= 0 && found < hits.length; i--) {
+            found = SearchIndex.collect(segments.get(i), terms, 0, Long.MAX_VALUE, hits, found);
+        }
+        return found;
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        switch (name) {
+            case "rare":
+                return () -> sink = find(List.of("редкое"));
+            case "common":
+                return () -> sink = find(List.of("w0"));
+            case "and":
+                return () -> sink = find(List.of("w10", "w200"));
+            case "user":
+                return () -> sink = find(List.of("w1000", SearchIndex.USER_PREFIX + "user7"));
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import bench.Fixture;
+
+import java.util.concurrent.TimeUnit;
+
+/* Колесо таймеров с connections ожидающими проверками простоя, как у сервера с таким числом соединений.
+rescheduleIdleCheck отменяет проверку одного соединения и ставит новую — то, что сервер делает
+на каждой проверке; соединения перебираются по кругу */
+class TimerWheelFixture implements Fixture {
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final TimerWheel wheel = new TimerWheel("bench-timers", 10, 1024);
+    private final TimerWheel.Timeout[] checks;
+    private final Runnable check = () -> {
+    };
+    private int next;
+
+    TimerWheelFixture(int connections) {
+        checks = new TimerWheel.Timeout[connections];
+        for (int i = 0; i < connections; i++) {
+            checks[i] = wheel.schedule(check, IDLE_CHECK_NANOS + i);
+        }
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        if (!"rescheduleIdleCheck".equals(name)) {
+            throw new IllegalArgumentException(name);
+        }
+        return () -> {
+            checks[next].cancel();
+            checks[next] = wheel.schedule(check, IDLE_CHECK_NANOS);
+            next = next + 1 == checks.length ? 0 : next + 1;
+        };
+    }
+
+    @Override
+    public void close() {
+        wheel.stop();
+    }
+}
@@ -0,0 +1,75 @@
+import bench.Fixture;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/* Одно сообщение чата в строковом и двоичном протоколе. encode* строят исходящий кадр так же, как сервер,
+decode* разбирают принятый кадр до полей сообщения. Размер кадров печатается при создании фикстуры */
+class WireFormatFixture implements Fixture {
+    private final String sender = "alexander.petrov";
+    private final String body;
+    private final ByteBuffer textFrame;
+    private final ByteBuffer binaryFrame;
+    private Object sink; // результат операции, чтобы JIT не выбросил вычисления
+    private long fields;
+
+    WireFormatFixture(int bodyLength) {
+        body = "ж".repeat(bodyLength / 2);
+        // Принятые кадры лежат в обычном буфере в куче, как в BinaryFrameReader клиента
+        textFrame = ByteBuffer.allocate(encodeText().remaining()).put(encodeText()).flip();
+        binaryFrame = ByteBuffer.allocate(encodeBinary().remaining()).put(encodeBinary()).flip();
+        System.out.println("Байт на сообщение: строковый протокол " + textFrame.remaining()
+                + ", двоичный " + binaryFrame.remaining());
+    }
+
+    private ByteBuffer encodeText() {
+        String logEntry = "[" + LocalDateTime.now() + "] [" + sender + "]: " + body + "\n";
+        return ClientSession.frame(logEntry.trim());
+    }
+
+    private ByteBuffer encodeBinary() {
+        return BinaryProtocol.chat(7, System.currentTimeMillis(), null, body);
+    }
+
+    // Строка протокола: ищем конец строки и декодируем её целиком
+    private String decodeText() {
+        ByteBuffer frame = textFrame.duplicate();
+        int end = frame.position();
+        while (frame.get(end) != '\n') {
+            end++;
+        }
+        byte[] bytes = new byte[end - frame.position()];
+        frame.get(frame.position(), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Двоичный кадр: длина, тип, номер отправителя, время, комната и текст читаются прямо из буфера
+    private String decodeBinary() {
+        ByteBuffer frame = binaryFrame.duplicate();
+        int length = BinaryProtocol.frameLength(frame);
+        frame.position(frame.position() + BinaryProtocol.varintSize(length) + 1);
+        int senderId = BinaryProtocol.getVarint(frame);
+        long timestamp = frame.getLong();
+        int roomLength = BinaryProtocol.getVarint(frame);
+        frame.position(frame.position() + roomLength);
+        fields = senderId ^ timestamp;
+        return BinaryProtocol.decodeText(frame, frame.position(), frame.remaining());
+    }
+
+    @Override
+    public Runnable operation(String name) {
+        switch (name) {
+            case "encodeText":
+                return () -> sink = encodeText();
+            case "encodeBinary":
+                return () -> sink = encodeBinary();
+            case "decodeText":
+                return () -> sink = decodeText();
+            case "decodeBinary":
+                return () -> sink = decodeBinary();
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Устойчивая скорость журнала: записей в миллисекунду с политикой сброса по умолчанию, с fsync каждой пачки
+и с групповым fsync раз в 10 мс:
+mvn -Pjmh test-compile exec:exec -Djmh.args="AppendLogBenchmark" */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendLogBenchmark {
+
+    @Param({"default", "fsync", "groupCommit"})
+    public String flushPolicy;
+
+    private Fixture fixture;
+    private Runnable appendLog;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("AppendLogFixture", flushPolicy);
+        appendLog = fixture.operation("appendLog");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000) // AppendLogFixture.BATCH записей за вызов
+    public void appendLog() {
+        appendLog.run();
+    }
+}
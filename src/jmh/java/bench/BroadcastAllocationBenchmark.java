@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Сколько байт выделяется на одну рассылку при кодировании для каждого получателя и при общем кадре:
+mvn -Pjmh test-compile exec:exec -Djmh.args="BroadcastAllocationBenchmark -prof gc"
+(смотрите gc.alloc.rate.norm — байт на операцию) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastAllocationBenchmark {
+
+    @Param({"1000"})
+    public int recipients;
+
+    private Fixture fixture;
+    private Runnable perRecipientEncoding;
+    private Runnable sharedFrame;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("BroadcastFixture", recipients);
+        perRecipientEncoding = fixture.operation("perRecipientEncoding");
+        sharedFrame = fixture.operation("sharedFrame");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void perRecipientEncoding() {
+        perRecipientEncoding.run();
+    }
+
+    @Benchmark
+    public void sharedFrame() {
+        sharedFrame.run();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Время одной рассылки ChatServer.broadcast при разном числе получателей:
+mvn -Pjmh test-compile exec:exec -Djmh.args="BroadcastFanOutBenchmark"
+(время должно расти линейно с числом получателей) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastFanOutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    private Fixture fixture;
+    private Runnable broadcast;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("BroadcastFanOutFixture", recipients);
+        broadcast = fixture.operation("broadcast");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcast.run();
+    }
+}
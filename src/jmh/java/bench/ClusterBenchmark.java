@@ -0,0 +1,43 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Суммарная пропускная способность кластера: сообщений в мс, принятых узлами по очереди и доставленных
+всем клиентам всех узлов, при 1, 2 и 3 узлах по 10 клиентов на петлевом интерфейсе:
+mvn -Pjmh test-compile exec:exec -Djmh.args="ClusterBenchmark"
+(узлы делят одну машину, поэтому рост виден только при свободных ядрах; число доставок растёт вместе с узлами) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBenchmark {
+
+    @Param({"1", "2", "3"})
+    public int nodes;
+
+    @Param({"10"})
+    public int clientsPerNode;
+
+    private Fixture fixture;
+    private Runnable message;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("ClusterFixture", nodes, clientsPerNode);
+        message = fixture.operation("message");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void message() {
+        message.run();
+    }
+}
@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Цена сжатия против сэкономленных байт на типичном трафике чата: короткие реплики, вставленный журнал
+и история из 50 реплик при входе; уровни deflate 1 (быстрый) и 6 (по умолчанию в zlib):
+mvn -Pjmh test-compile exec:exec -Djmh.args="CompressionBenchmark"
+(размер до и после сжатия печатается в выводе каждого запуска; сервер сжимает сообщение один раз на рассылку) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"short", "paste", "history"})
+    public String traffic;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private Fixture fixture;
+    private Runnable compress;
+    private Runnable inflate;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("CompressionFixture", traffic, level);
+        compress = fixture.operation("compress");
+        inflate = fixture.operation("inflate");
+    }
+
+    @Benchmark
+    public void compress() {
+        compress.run();
+    }
+
+    @Benchmark
+    public void inflate() {
+        inflate.run();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Задержка входа нового клиента (соединение, регистрация, эхо первого сообщения) в разных режимах сервера
+по петлевому интерфейсу; SampleTime даёт перцентили:
+mvn -Pjmh test-compile exec:exec -Djmh.args="ConnectBenchmark" */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectBenchmark {
+
+    @Param({"platform", "virtual", "nio"})
+    public String mode;
+
+    private Fixture fixture;
+    private Runnable connectAndRegister;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("ConnectFixture", mode);
+        connectAndRegister = fixture.operation("connectAndRegister");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void connectAndRegister() {
+        connectAndRegister.run();
+    }
+}
@@ -0,0 +1,29 @@
+package bench;
+
+/* Код чата лежит в пакете по умолчанию, а JMH требует, чтобы бенчмарк был в именованном пакете.
+Из именованного пакета классы пакета по умолчанию недоступны, поэтому подготовка и сами операции живут
+в «фикстурах» пакета по умолчанию (src/jmh/java), а классы бенчмарков вызывают их через этот интерфейс */
+public interface Fixture extends AutoCloseable {
+
+    // Операция бенчмарка по имени; вызывается в горячем цикле, поэтому ищется один раз в @Setup
+    Runnable operation(String name);
+
+    @Override
+    default void close() throws Exception {
+    }
+
+    // Создаёт фикстуру пакета по умолчанию по имени класса и аргументам её конструктора
+    static Fixture load(String className, Object... args) {
+        try {
+            Class<?>[] types = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                types[i] = args[i] instanceof Integer ? int.class : args[i] instanceof Long ? long.class : args[i].getClass();
+            }
+            var constructor = Class.forName(className).getDeclaredConstructor(types);
+            constructor.setAccessible(true);
+            return (Fixture) constructor.newInstance(args);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Не удалось создать фикстуру " + className, ex);
+        }
+    }
+}
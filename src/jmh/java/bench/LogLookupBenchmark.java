@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Время поиска в сегментированном журнале при разном общем размере журнала.
+Журнал 10 ГБ строится несколько минут и требует места на диске, поэтому по умолчанию не запускается:
+mvn -Pjmh test-compile exec:exec -Djmh.args="LogLookupBenchmark -p logBytes=1048576,10737418240" */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogLookupBenchmark {
+
+    @Param({"1048576", "104857600", "1073741824"})
+    public long logBytes;
+
+    private Fixture fixture;
+    private Runnable since;
+    private Runnable lastN;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("LogLookupFixture", logBytes);
+        since = fixture.operation("since");
+        lastN = fixture.operation("lastN");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void since() {
+        since.run();
+    }
+
+    @Benchmark
+    public void lastN() {
+        lastN.run();
+    }
+}
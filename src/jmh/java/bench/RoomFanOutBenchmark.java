@@ -0,0 +1,49 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Пропускная способность рассылки в комнату и по всему серверу при разном числе комнат по 100 участников:
+mvn -Pjmh test-compile exec:exec -Djmh.args="RoomFanOutBenchmark"
+(roomMessage не должен зависеть от числа комнат, serverWideMessage падает пропорционально числу пользователей) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomFanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int rooms;
+
+    @Param({"100"})
+    public int usersPerRoom;
+
+    private Fixture fixture;
+    private Runnable roomMessage;
+    private Runnable serverWideMessage;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("RoomFanOutFixture", rooms, usersPerRoom);
+        roomMessage = fixture.operation("roomMessage");
+        serverWideMessage = fixture.operation("serverWideMessage");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void roomMessage() {
+        roomMessage.run();
+    }
+
+    @Benchmark
+    public void serverWideMessage() {
+        serverWideMessage.run();
+    }
+}
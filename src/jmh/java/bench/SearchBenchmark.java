@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Время запроса /search по индексу журнала разного размера: редкое слово (есть в каждом сегменте
+по одному разу), частое слово, пересечение двух слов и слово с отправителем.
+Индекс на 100 млн сообщений строится долго, поэтому по умолчанию не запускается:
+mvn -Pjmh test-compile exec:exec -Djmh.args="SearchBenchmark -p messages=100000000" */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public long messages;
+
+    private Fixture fixture;
+    private Runnable rare;
+    private Runnable common;
+    private Runnable and;
+    private Runnable user;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("SearchFixture", messages);
+        rare = fixture.operation("rare");
+        common = fixture.operation("common");
+        and = fixture.operation("and");
+        user = fixture.operation("user");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void rareTerm() {
+        rare.run();
+    }
+
+    @Benchmark
+    public void commonTerm() {
+        common.run();
+    }
+
+    @Benchmark
+    public void twoTerms() {
+        and.run();
+    }
+
+    @Benchmark
+    public void termAndUser() {
+        user.run();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Цена перепостановки проверки простоя в колесе таймеров при 1 000 и 100 000 соединений:
+mvn -Pjmh test-compile exec:exec -Djmh.args="TimerWheelBenchmark"
+(время операции не должно расти с числом соединений) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+    @Param({"1000", "100000"})
+    public int connections;
+
+    private Fixture fixture;
+    private Runnable rescheduleIdleCheck;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("TimerWheelFixture", connections);
+        rescheduleIdleCheck = fixture.operation("rescheduleIdleCheck");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void rescheduleIdleCheck() {
+        rescheduleIdleCheck.run();
+    }
+}
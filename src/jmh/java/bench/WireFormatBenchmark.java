@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Стоимость кодирования и разбора одного сообщения в строковом и двоичном протоколе:
+mvn -Pjmh test-compile exec:exec -Djmh.args="WireFormatBenchmark -prof gc"
+(размер кадров в байтах печатается в выводе каждого запуска) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"32", "256"})
+    public int bodyLength;
+
+    private Fixture fixture;
+    private Runnable encodeText;
+    private Runnable encodeBinary;
+    private Runnable decodeText;
+    private Runnable decodeBinary;
+
+    @Setup
+    public void setup() {
+        fixture = Fixture.load("WireFormatFixture", bodyLength);
+        encodeText = fixture.operation("encodeText");
+        encodeBinary = fixture.operation("encodeBinary");
+        decodeText = fixture.operation("decodeText");
+        decodeBinary = fixture.operation("decodeBinary");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void encodeText() {
+        encodeText.run();
+    }
+
+    @Benchmark
+    public void encodeBinary() {
+        encodeBinary.run();
+    }
+
+    @Benchmark
+    public void decodeText() {
+        decodeText.run();
+    }
+
+    @Benchmark
+    public void decodeBinary() {
+        decodeBinary.run();
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/* Читает кадры двоичного протокола из потока в один переиспользуемый массив.
+Кадр разбирается прямо в этом массиве, без копий: payload() оборачивает его, а не копирует.
+Если включён приём сжатых кадров, DEFLATED и BATCH распаковываются здесь же: читающий видит
+обычные кадры, как если бы они пришли несжатыми */
+class BinaryFrameReader {
+    private final InputStream in;
+    private final int maxFrameLength;
+    private byte[] frame = new byte[256];
+    private int length;
+    private Inflater inflater; // null — сжатые кадры не ожидаются
+    private ByteBuffer batch; // распакованная пачка BATCH: кадры, ещё не отданные next()
+
+    BinaryFrameReader(InputStream in) {
+        this(in, BinaryProtocol.MAX_FRAME_LENGTH);
+    }
+
+    // Кадры длиннее maxFrameLength отвергаются до чтения их содержимого
+    BinaryFrameReader(InputStream in, int maxFrameLength) {
+        this.in = in;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    // Включает распаковку кадров DEFLATED и BATCH; клиент вызывает, если попросил сжатие
+    void acceptCompressed() {
+        inflater = new Inflater(true);
+    }
+
+    // Читает следующий кадр; false — поток закончился между кадрами
+    boolean next() throws IOException {
+        if (batch != null) {
+            if (batch.hasRemaining()) {
+                return nextFromBatch();
+            }
+            batch = null;
+        }
+        if (!readFrame()) {
+            return false;
+        }
+        if (inflater != null && frame[0] == BinaryProtocol.DEFLATED) {
+            byte[] inner = FrameCompressor.inflate(inflater, ByteBuffer.wrap(frame, 1, length - 1), maxFrameLength);
+            frame = inner;
+            length = inner.length;
+        } else if (inflater != null && frame[0] == BinaryProtocol.BATCH) {
+            batch = ByteBuffer.wrap(FrameCompressor.inflate(inflater, ByteBuffer.wrap(frame, 1, length - 1), maxFrameLength));
+            return next();
+        }
+        return true;
+    }
+
+    // Следующий кадр распакованной пачки; он копируется в массив кадра, как прочитанный из потока
+    private boolean nextFromBatch() throws IOException {
+        int value = BinaryProtocol.frameLength(batch);
+        if (value <= 0 || BinaryProtocol.varintSize(value) + value > batch.remaining()) {
+            throw new IOException("Повреждённая пачка кадров");
+        }
+        batch.position(batch.position() + BinaryProtocol.varintSize(value));
+        if (frame.length < value) {
+            frame = new byte[Math.max(value, frame.length * 2)];
+        }
+        batch.get(frame, 0, value);
+        length = value;
+        return true;
+    }
+
+    private boolean readFrame() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return false;
+                }
+                throw new EOFException("Поток оборвался посреди длины кадра");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new IOException("Слишком длинный varint длины кадра");
+            }
+        }
+        if (value <= 0 || value > maxFrameLength) {
+            throw new IOException("Недопустимая длина кадра: " + value);
+        }
+        if (frame.length < value) {
+            frame = new byte[Math.max(value, frame.length * 2)];
+        }
+        int read = 0;
+        while (read < value) {
+            int n = in.read(frame, read, value - read);
+            if (n < 0) {
+                throw new EOFException("Поток оборвался посреди кадра");
+            }
+            read += n;
+        }
+        length = value;
+        return true;
+    }
+
+    // Длина последнего кадра вместе с байтом типа
+    int length() {
+        return length;
+    }
+
+    byte type() {
+        return frame[0];
+    }
+
+    // Текст кадра после байта типа
+    String text() {
+        return BinaryProtocol.decodeText(ByteBuffer.wrap(frame), 1, length - 1);
+    }
+
+    // Содержимое кадра после байта типа; действительно до следующего вызова next()
+    ByteBuffer payload() {
+        return ByteBuffer.wrap(frame, 1, length - 1);
+    }
+}
@@ -0,0 +1,179 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* Двоичный протокол чата — необязательная замена строкового. Клиент выбирает его сразу после соединения,
+послав байт MAGIC и номер версии: строковый клиент так начинать не может, потому что его первая строка — имя.
+Дальше обе стороны обмениваются кадрами: длина (varint), тип (байт), содержимое.
+Имена отправителей передаются один раз: сервер присваивает имени номер и перед первым сообщением
+от этого отправителя присылает кадр USER, а в сообщениях идёт только номер (varint).
+Время сообщения — миллисекунды эпохи (8 байт), текст — UTF-8 до конца кадра */
+final class BinaryProtocol {
+    static final int MAGIC = 0x00;
+    static final int VERSION = 1;
+    static final int VERSION_DEFLATE = 2; // та же версия, клиент принимает сжатые кадры DEFLATED и BATCH
+    static final int MAX_FRAME_LENGTH = 1 << 20; // кадр длиннее считается ошибкой протокола
+
+    // Клиент -> сервер
+    static final byte HELLO = 0x01; // имя пользователя
+    static final byte TEXT = 0x02; // строка чата: сообщение или команда, как в строковом протоколе
+    static final byte PONG = 0x03; // ответ на PING, без содержимого
+
+    // Сервер -> клиент
+    static final byte WELCOME = 0x10; // номер, присвоенный имени клиента
+    static final byte USER = 0x11; // номер отправителя и его имя
+    static final byte CHAT = 0x12; // номер отправителя, время, комната (пустая — общая), текст
+    static final byte DIRECT = 0x13; // личное сообщение: номер отправителя, время, текст
+    static final byte NOTICE = 0x14; // служебное сообщение сервера
+    static final byte PING = 0x15; // проверка, что клиент жив; клиент отвечает PONG
+    static final byte DEFLATED = 0x16; // сжатый кадр: исходная длина (varint), deflate типа и содержимого
+    static final byte BATCH = 0x17; // сжатая пачка кадров: исходная длина (varint), deflate кадров с их длинами
+
+    /* Проверка связи в строковом протоколе: сервер присылает строку PING_LINE, клиент отвечает PONG_LINE.
+    Любая другая строка от клиента тоже считается признаком жизни */
+    static final String PING_LINE = "/ping";
+    static final String PONG_LINE = "/pong";
+
+    /* Продолжение после обрыва в строковом протоколе: клиент до имени присылает RESUME_LINE (ResumeRequest),
+    после этого сообщения ему приходят с номерами записей журнала, а когда пропущенное отдано —
+    строка «RESUMED_LINE <журнал>» с идентификатором журнала сервера */
+    static final String RESUME_LINE = "/resume";
+    static final String RESUMED_LINE = "/resumed";
+
+    private BinaryProtocol() {
+    }
+
+    static ByteBuffer hello(String username) {
+        return text(HELLO, username);
+    }
+
+    static ByteBuffer text(String line) {
+        return text(TEXT, line);
+    }
+
+    static ByteBuffer notice(String text) {
+        return text(NOTICE, text);
+    }
+
+    // Кадр из одного байта типа (PING, PONG)
+    static ByteBuffer empty(byte type) {
+        ByteBuffer buf = allocate(0);
+        buf.put(type);
+        return finish(buf);
+    }
+
+    static ByteBuffer welcome(int id) {
+        ByteBuffer buf = allocate(varintSize(id));
+        buf.put(WELCOME);
+        putVarint(buf, id);
+        return finish(buf);
+    }
+
+    static ByteBuffer user(int id, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = allocate(varintSize(id) + bytes.length);
+        buf.put(USER);
+        putVarint(buf, id);
+        buf.put(bytes);
+        return finish(buf);
+    }
+
+    static ByteBuffer chat(int senderId, long timestamp, String room, String body) {
+        byte[] roomBytes = room == null ? new byte[0] : room.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = allocate(varintSize(senderId) + Long.BYTES + varintSize(roomBytes.length) + roomBytes.length
+                + bytes.length);
+        buf.put(CHAT);
+        putVarint(buf, senderId);
+        buf.putLong(timestamp);
+        putVarint(buf, roomBytes.length);
+        buf.put(roomBytes);
+        buf.put(bytes);
+        return finish(buf);
+    }
+
+    static ByteBuffer direct(int senderId, long timestamp, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = allocate(varintSize(senderId) + Long.BYTES + bytes.length);
+        buf.put(DIRECT);
+        putVarint(buf, senderId);
+        buf.putLong(timestamp);
+        buf.put(bytes);
+        return finish(buf);
+    }
+
+    private static ByteBuffer text(byte type, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = allocate(bytes.length);
+        buf.put(type);
+        buf.put(bytes);
+        return finish(buf);
+    }
+
+    // Буфер под кадр: длина, тип и payload байт содержимого
+    private static ByteBuffer allocate(int payload) {
+        int length = 1 + payload;
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buf, length);
+        return buf;
+    }
+
+    private static ByteBuffer finish(ByteBuffer buf) {
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    // Читает varint с текущей позиции буфера и сдвигает её
+    static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Слишком длинный varint");
+    }
+
+    /* Длина кадра, который начинается с позиции буфера, или -1, если varint длины ещё не дочитан.
+    Позицию буфера не сдвигает */
+    static int frameLength(ByteBuffer buf) {
+        int value = 0;
+        int index = buf.position();
+        for (int shift = 0; shift < 35; shift += 7, index++) {
+            if (index == buf.limit()) {
+                return -1;
+            }
+            byte b = buf.get(index);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return Integer.MAX_VALUE; // пять байт без конца — заведомо слишком длинный кадр
+    }
+
+    // Строка UTF-8 из length байт буфера начиная с from; из буфера в куче декодируется без промежуточной копии
+    static String decodeText(ByteBuffer buf, int from, int length) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(buf.slice(from, length)).toString();
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/* Сессия клиента в блокирующих режимах. Читает соединение обработчик handleClient, а пишет
+отдельная задача writeLoop(): она забирает кадры из очереди и отправляет их в сокет пачками */
+class BlockingSession extends ClientSession {
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0); // сигнал писателю завершиться
+
+    private final Socket socket;
+    private volatile boolean closed;
+    private volatile boolean draining; // остановка сервера: дописать очередь и закрыть соединение
+
+    BlockingSession(Socket socket, int queueCapacity, OverflowPolicy overflowPolicy) {
+        super(queueCapacity, overflowPolicy);
+        this.socket = socket;
+    }
+
+    @Override
+    void onEnqueued() {
+        // писатель ждёт в take() и проснётся сам
+    }
+
+    /* Тело писателя: пишет кадры в буферизованный поток и сбрасывает его, когда очередь опустела,
+    так что пачка сообщений уходит одним системным вызовом */
+    void writeLoop() {
+        BlockingQueue<ByteBuffer> queue = outboundQueue();
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] chunk = new byte[8192];
+            while (!closed) {
+                ByteBuffer frame = queue.poll();
+                if (frame == null) {
+                    out.flush();
+                    // draining выставляется после постановки последних кадров, поэтому перепроверяем очередь
+                    frame = draining ? queue.poll() : queue.take();
+                    if (frame == null) {
+                        break;
+                    }
+                }
+                if (frame == CLOSE) {
+                    break;
+                }
+                for (int offset = 0; offset < frame.remaining(); offset += chunk.length) {
+                    int length = Math.min(chunk.length, frame.remaining() - offset);
+                    frame.get(frame.position() + offset, chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+            out.flush();
+            if (draining) {
+                close();
+            }
+        } catch (IOException ex) {
+            close(); // клиент недоступен
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Писатель допишет очередь до конца и сам закроет соединение
+    @Override
+    CompletableFuture<Void> drainAndClose() {
+        draining = true;
+        outboundQueue().offer(CLOSE); // будит писателя; если очередь полна, он и так не спит
+        return closedFuture();
+    }
+
+    @Override
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        BlockingQueue<ByteBuffer> queue = outboundQueue();
+        if (!queue.offer(CLOSE)) {
+            queue.clear();
+            queue.offer(CLOSE);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // соединение уже закрыто
+        }
+        markClosed();
+    }
+}
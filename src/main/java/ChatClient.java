@@ -1,8 +1,13 @@
 import java.io.*;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -22,6 +27,8 @@ public class ChatClient {
 
     // Булевская переменная для контроля активности клиента
     private volatile boolean running = true;
+    private boolean binaryProtocol; // использовать двоичный протокол вместо строкового
+    private boolean compression; // просить сервер сжимать кадры (только двоичный протокол)
 
     // Конструктор принимает адрес сервера, порт и имя пользователя
     public ChatClient(String address, int port, String username) {
@@ -39,89 +46,194 @@ public class ChatClient {
         return running;
     }
 
+    // Включает двоичный протокол (до вызова run)
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // Просит сервер сжимать большие сообщения и историю; действует вместе с двоичным протоколом (до вызова run)
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     /*
-    Основная точка входа для запуска клиента: соединение с сервером, авторизация и последующий обмен сообщениями
+    Основная точка входа для запуска клиента: соединение с сервером, авторизация и последующий обмен сообщениями.
+    Строковый протокол обслуживает ChatClientEngine: он сам переподключается и повторяет неподтверждённые
+    сообщения, а консоль только передаёт ему введённые строки
     */
     public void run() throws Exception {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT)) { // Правильно определяем socket здесь
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+        if (binaryProtocol) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
+                runBinary(socket, executor);
+            } finally {
+                executor.shutdownNow();
+            }
+            return;
+        }
+        ChatClientEngine engine = new ChatClientEngine(SERVER_ADDRESS, SERVER_PORT, USERNAME, new ConsoleListener());
+        engine.start();
+        try {
+            BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
+            while (running) {
+                String line = userInput.readLine();
+                if (line == null || "/exit".equalsIgnoreCase(line)) {
+                    engine.send("/exit"); // сервер сразу снимает пользователя, а не ждёт обрыва соединения
+                    stop();
+                } else if (!line.trim().isEmpty() && !engine.send(line)) {
+                    sysW.println("Сервер не подтвердил слишком много сообщений, это не отправлено.");
+                }
+            }
+        } finally {
+            engine.close();
+        }
+    }
 
-            // Авторизуемся на сервере
-            writer.println(USERNAME);
+    // Выводит принятое пачками и сообщает о потере и восстановлении связи
+    private final class ConsoleListener implements ChatClientEngine.Listener {
+        private boolean reconnecting;
 
-            // Запускаем поток для приёма сообщений от сервера
-            executor.submit(() -> receiveMessages(reader));
+        @Override
+        public void onLines(List<String> lines) {
+            sysW.printLines(lines);
+        }
 
-            // Берём захваченный поток вывода
-            ByteArrayOutputStream capturedOutput = sysW.captureOutput();
-            // Конвертируем его в InputStream
-            InputStream inputStream = new ByteArrayInputStream(capturedOutput.toByteArray());
-            // Вместо прямого использования System.in создаём читающий буфер поверх SystemWrapper
-            //BufferedReader userInput = new BufferedReader(new InputStreamReader(inputStream));
+        @Override
+        public void onConnected() {
+            if (reconnecting) {
+                sysW.println("Связь с сервером восстановлена.");
+                reconnecting = false;
+            }
+        }
 
-            BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
-            String line;
-            while (running) {
-                line = userInput.readLine();
-                if ("/exit".equalsIgnoreCase(line)) {
-                    stop();
-                } else if (line != null && !line.trim().isEmpty()) {
-                    writer.println(line);
+        @Override
+        public void onDisconnected(String reason, long reconnectInMillis) {
+            if (!reconnecting) {
+                sysW.println("Связь с сервером потеряна (" + reason + "), переподключаемся...");
+                reconnecting = true;
+            }
+        }
+    }
+
+    /* Тот же обмен сообщениями по двоичному протоколу: MAGIC и версия (VERSION_DEFLATE — со сжатием),
+    кадр HELLO с именем, затем каждая введённая строка уходит кадром TEXT */
+    private void runBinary(Socket socket, ExecutorService executor) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(BinaryProtocol.MAGIC);
+        out.write(compression ? BinaryProtocol.VERSION_DEFLATE : BinaryProtocol.VERSION);
+        writeFrame(out, BinaryProtocol.hello(USERNAME));
+        out.flush();
+
+        BinaryFrameReader frames = new BinaryFrameReader(new BufferedInputStream(socket.getInputStream()));
+        if (compression) {
+            frames.acceptCompressed();
+        }
+        executor.submit(() -> receiveFrames(frames, out));
+
+        BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
+        while (running) {
+            String line = userInput.readLine();
+            if (line == null || "/exit".equalsIgnoreCase(line)) {
+                stop();
+            } else if (!line.trim().isEmpty()) {
+                synchronized (out) { // PONG из потока приёма идёт в тот же поток
+                    writeFrame(out, BinaryProtocol.text(line));
+                    out.flush();
                 }
             }
         }
     }
 
-    // Останавливает клиента и закрывает соединение
-    public void stop() {
-        running = false; // Сигнал для остановки приёма сообщений
-        sysW.println("Вы вышли из чата."); // Замена System.out.println()
+    private static void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(frame.position(), bytes);
+        out.write(bytes);
     }
 
-    /*
-    Непрерывно принимает входящие сообщения от сервера и выводит их на экран.
-    Каждая принятая строка также сохраняется в файле журнала.
-    */
-    private void receiveMessages(BufferedReader reader) {
+    /* Принимает кадры двоичного протокола и выводит сообщения в том же виде, что и строковый протокол.
+    Имена отправителей приходят кадрами USER один раз, дальше сообщения ссылаются на них по номеру */
+    private void receiveFrames(BinaryFrameReader frames, OutputStream out) {
+        Map<Integer, String> names = new HashMap<>();
         try {
-            String line;
-
-            while ((line = reader.readLine()) != null && !"/exit".equals(line)) {
-                if (line == null || line.trim().isEmpty()) {
-                    continue; // Пропускаем пустые строки и null-значения
+            while (frames.next()) {
+                ByteBuffer payload = frames.payload();
+                switch (frames.type()) {
+                    case BinaryProtocol.USER:
+                        int id = BinaryProtocol.getVarint(payload);
+                        names.put(id, BinaryProtocol.decodeText(payload, payload.position(), payload.remaining()));
+                        break;
+                    case BinaryProtocol.CHAT:
+                    case BinaryProtocol.DIRECT:
+                        sysW.println(renderMessage(frames.type(), payload, names));
+                        break;
+                    case BinaryProtocol.NOTICE:
+                        sysW.println(frames.text());
+                        break;
+                    case BinaryProtocol.PING:
+                        synchronized (out) {
+                            writeFrame(out, BinaryProtocol.empty(BinaryProtocol.PONG));
+                            out.flush();
+                        }
+                        break;
+                    default:
+                        break; // WELCOME и неизвестные типы на экран не выводятся
                 }
-                sysW.println(line); // Замена System.out.println() Выводим полученное сообщение
-                //System.out.println("Получено сообщение: " + line); // Логируем получение сообщений
             }
         } catch (IOException ex) {
             if (!running) {
-                sysW.println("Связь закрыта."); // Замена System.out.println()
+                sysW.println("Связь закрыта.");
             } else {
-                sysW.println("Ошибка при чтении сообщений: " + ex.getMessage()); // Замена System.out.println()
+                sysW.println("Ошибка при чтении сообщений: " + ex.getMessage());
             }
         }
     }
 
-    /* Главная точка входа клиента. Чтение порта из файла настроек, установка имени пользователя и запуск
+    // Собирает строку вида "[время] [отправитель]: текст" из кадра CHAT или DIRECT
+    private String renderMessage(byte type, ByteBuffer payload, Map<Integer, String> names) {
+        String sender = names.getOrDefault(BinaryProtocol.getVarint(payload), "?");
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(payload.getLong()), ZoneId.systemDefault());
+        String header;
+        if (type == BinaryProtocol.DIRECT) {
+            header = "[" + time + "] [" + sender + " -> " + USERNAME + "]";
+        } else {
+            int roomLength = BinaryProtocol.getVarint(payload);
+            String room = BinaryProtocol.decodeText(payload, payload.position(), roomLength);
+            payload.position(payload.position() + roomLength);
+            header = "[" + time + "] [" + sender + "]" + (room.isEmpty() ? "" : " [#" + room + "]");
+        }
+        return header + ": " + BinaryProtocol.decodeText(payload, payload.position(), payload.remaining());
+    }
+
+    // Останавливает клиента и закрывает соединение
+    public void stop() {
+        running = false; // Сигнал для остановки приёма сообщений
+        sysW.println("Вы вышли из чата."); // Замена System.out.println()
+    }
+
+    /* Главная точка входа клиента. Чтение адреса и порта из файла настроек, установка имени пользователя и запуск
      процесса взаимодействия с сервером */
     public static void main(String[] args) throws Exception {
-        String settingsFileName = "settings.txt"; // Файл конфигурации
-        // используем механизм загрузки ресурсов, чтобы не использовать относительный путь
-        Path settingsPath = Paths.get(ChatClient.class.getClassLoader().getResource("settings.txt").toURI());
-        int port = readPortFromSettings(settingsPath.toString());
-
-        String serverAddress = "localhost";
+        if (args.length > 0 && "load".equalsIgnoreCase(args[0])) {
+            // Режим генератора нагрузки: без консоли, параметры — как у ChatLoadGenerator
+            ChatLoadGenerator.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Адрес и порт сервера — из тех же настроек, что и у сервера: -Dchat.settings=путь или settings.txt в classpath
+        ChatSettings settings = ChatSettings.load();
+        String serverAddress = settings.getHost();
+        int port = settings.getPort();
         String username = askForUsername();
 
-        new ChatClient(serverAddress, port, username).run();
+        ChatClient client = new ChatClient(serverAddress, port, username);
+        // Необязательный аргумент binary включает двоичный протокол, binary deflate — ещё и сжатие
+        client.setBinaryProtocol(args.length > 0 && "binary".equalsIgnoreCase(args[0]));
+        client.setCompression(args.length > 1 && "deflate".equalsIgnoreCase(args[1]));
+        client.run();
     }
 
-    // Метод читает значение порта из файла настроек
+    // Метод читает значение порта из файла настроек: тот же разбор, что у сервера
     public static int readPortFromSettings(String filename) throws IOException {
-        String content = Files.readString(Path.of(filename));
-        return Integer.parseInt(content.trim()); // trim удаляет лишнее пространство и переводы строки
+        return ChatSettings.load(Path.of(filename)).getPort();
     }
 
     // Метод запрашивает имя пользователя, предназначенное для идентификации в чате
@@ -0,0 +1,523 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Клиент строкового протокола без консоли: один поток с Selector соединяется с сервером, отправляет строки
+и передаёт принятые получателю (Listener). Его используют консольный ChatClient, боты и нагрузочные утилиты.
+Принятые строки отдаются пачкой — всё, что пришло одним чтением, — поэтому всплеск сообщений выводится
+одной записью, а не строкой за строкой. Исходящие строки тоже копятся в одном буфере и уходят одной записью.
+Обрыв связи не завершает работу: клиент переподключается с экспоненциальной задержкой (со случайным
+разбросом, чтобы после перезапуска сервера клиенты не приходили все разом) и продолжает с места обрыва.
+Сообщения приходят с номерами записей журнала сервера; при входе клиент присылает /resume с номером
+последнего полученного и своими комнатами, и сервер отдаёт из журнала ровно пропущенное. Номера приходят
+не строго по порядку (рассылки разных комнат идут параллельно), поэтому клиент просит с запасом в WINDOW
+номеров и отбрасывает уже полученные — так пропуск не теряет и не повторяет сообщений.
+Неподтверждённые сообщения повторяются только после того, как пропущенное отдано: эхо принятого сервером
+сообщения приходит в пропущенном и подтверждает его. Подтверждение обычного сообщения — его эхо от сервера
+(рассылка возвращается и отправителю), личного — ответ о доставке. Сервер обрабатывает строки соединения
+по порядку, поэтому подтверждение сообщения подтверждает и все отправленные до него.
+Доставка «хотя бы один раз»: повторяется сообщение, эхо которого не дошло и не попало в журнал сервера */
+public class ChatClientEngine {
+    private static final Logger logger = LoggerFactory.getLogger(ChatClientEngine.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024; // длиннее сервер строк не присылает
+    private static final byte[] PONG = (BinaryProtocol.PONG_LINE + "\n").getBytes(StandardCharsets.US_ASCII);
+    private static final int WINDOW = 1024; // сколько последних номеров помнится для отбрасывания повторов
+
+    // Получатель событий; вызывается из потока клиента и не должен в нём надолго задерживаться
+    public interface Listener {
+        // Строки, пришедшие одним чтением, в порядке получения
+        void onLines(List<String> lines);
+
+        default void onConnected() {
+        }
+
+        // Связь потеряна; следующая попытка подключиться — через reconnectInMillis
+        default void onDisconnected(String reason, long reconnectInMillis) {
+        }
+    }
+
+    // Неподтверждённое сообщение; recipient не null — личное сообщение этому пользователю
+    private record Pending(String line, String recipient) {
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final Listener listener;
+    private long minBackoffMillis = 100;
+    private long maxBackoffMillis = 10_000;
+    private int maxUnacked = 1024;
+
+    private final Queue<String> inbox = new ConcurrentLinkedQueue<>(); // строки от send(), ждут потока клиента
+    private final AtomicInteger unacked = new AtomicInteger();
+    private volatile boolean running;
+    private volatile boolean connected;
+    private Selector selector;
+    private Thread thread;
+
+    // Дальше всё меняет только поток клиента
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final Set<String> rooms = new LinkedHashSet<>(); // комнаты, кроме общей, в порядке входа
+    private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long backoffMillis;
+    private long reconnectAt;
+    private boolean resuming; // ждём от сервера конец пропущенного (/resumed)
+    private long logId; // журнал сервера, к которому относятся номера; 0 — ещё не известен
+    private long highest = -1; // наибольший полученный номер
+    private final BitSet seen = new BitSet(WINDOW); // полученные номера в окне (highest - WINDOW, highest]
+
+    public ChatClientEngine(String host, int port, String username, Listener listener) {
+        if (username == null || username.isBlank() || username.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Недопустимое имя пользователя: " + username);
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.listener = listener;
+    }
+
+    // Задержка переподключения: от minMillis, удваивается после каждой неудачи до maxMillis (до вызова start)
+    public void setReconnectBackoff(long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Задержки переподключения должны быть положительными, max не меньше min");
+        }
+        this.minBackoffMillis = minMillis;
+        this.maxBackoffMillis = maxMillis;
+    }
+
+    // Сколько сообщений может ждать подтверждения; дальше send() отказывает (до вызова start)
+    public void setMaxUnacked(int maxUnacked) {
+        if (maxUnacked <= 0) {
+            throw new IllegalArgumentException("Число неподтверждённых сообщений должно быть положительным: " + maxUnacked);
+        }
+        this.maxUnacked = maxUnacked;
+    }
+
+    // Запускает поток клиента; он сразу начинает подключаться
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Клиент уже запущен");
+        }
+        selector = Selector.open();
+        backoffMillis = minBackoffMillis;
+        reconnectAt = System.nanoTime();
+        running = true;
+        thread = new Thread(this::run, "chat-client-" + username);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Ставит строку в очередь на отправку из любого потока. Пока связи нет, сообщения и команды ждут её
+    восстановления. false — слишком много сообщений ещё не подтверждено, строка не принята */
+    public boolean send(String text) {
+        if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Строка не должна содержать перевод строки");
+        }
+        if (text.isBlank()) {
+            return true; // пустые строки сервер всё равно не рассылает
+        }
+        if (tracked(text) && unacked.incrementAndGet() > maxUnacked) {
+            unacked.decrementAndGet();
+            return false;
+        }
+        inbox.add(text);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        return true;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Сколько отправленных сообщений ещё не подтверждено сервером
+    public int getUnackedCount() {
+        return unacked.get();
+    }
+
+    /* Останавливает клиента: если связь есть, строки, уже переданные send() (например, /exit), отправляются
+    вместе с недописанным в сокет; неподтверждённое теряется */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+        }
+        if (t == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Команды, кроме /msg, не повторяются и не ждут подтверждения
+    private static boolean tracked(String text) {
+        return !text.startsWith("/") || recipientOf(text) != null;
+    }
+
+    // Получатель личного сообщения «/msg <пользователь> <текст>»; null — это не личное сообщение
+    private static String recipientOf(String text) {
+        if (!text.startsWith("/msg ")) {
+            return null;
+        }
+        String[] parts = text.substring("/msg ".length()).trim().split("\\s+", 2);
+        return parts.length < 2 || parts[1].isBlank() ? null : parts[0];
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (channel == null && System.nanoTime() - reconnectAt >= 0) {
+                    connect();
+                }
+                drainInbox();
+                updateInterest();
+                long timeout = channel == null
+                        ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(reconnectAt - System.nanoTime())) : 0;
+                selector.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selected = keys.next();
+                    keys.remove();
+                    if (selected.isValid()) {
+                        handle(selected);
+                    }
+                }
+            }
+            if (connected) {
+                drainInbox(); // строки, переданные send() перед close()
+                writeOut(); // последние строки, если сокет их сразу примет
+            }
+        } catch (IOException ex) {
+            logger.error("Клиент чата остановлен из-за ошибки: {}", ex.getMessage());
+        } finally {
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // закрываем напоследок, ошибка уже не важна
+            }
+        }
+    }
+
+    private void handle(SelectionKey selected) {
+        try {
+            if (selected.isConnectable() && channel.finishConnect()) {
+                onConnected();
+            }
+            if (selected.isValid() && selected.isReadable()) {
+                read();
+            }
+            if (selected.isValid() && selected.isWritable()) {
+                writeOut();
+            }
+        } catch (IOException ex) {
+            disconnect(ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+    }
+
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // Адрес разрешается заново при каждой попытке: перезапущенный сервер мог сменить его
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                key = channel.register(selector, SelectionKey.OP_READ);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException ex) {
+            disconnect(ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+    }
+
+    /* Вход заново: /resume с последним номером и комнатами, имя и активная комната. Неподтверждённые
+    сообщения и новые строки ждут, пока сервер не отдаст пропущенное */
+    private void onConnected() {
+        connected = true;
+        resuming = true;
+        backoffMillis = minBackoffMillis;
+        StringBuilder resume = new StringBuilder(BinaryProtocol.RESUME_LINE).append(' ').append(logId).append(' ')
+                .append(logId == 0 ? -1 : Math.max(-1, highest - WINDOW));
+        for (String room : rooms) {
+            resume.append(' ').append(room);
+        }
+        append(resume.toString());
+        append(username);
+        String active = null;
+        for (String room : rooms) {
+            active = room;
+        }
+        if (active != null) {
+            append("/join " + active); // комнаты сервер вернул по /resume, остаётся сделать последнюю активной
+        }
+        logger.debug("Клиент {} подключился к {}:{}", username, host, port);
+        notifyListener(() -> listener.onConnected());
+    }
+
+    // Сервер отдал пропущенное: повторяем неподтверждённые сообщения в прежнем порядке
+    private void onResumed(String text) {
+        long id = Long.parseLong(text.substring(BinaryProtocol.RESUMED_LINE.length()).trim());
+        if (id != logId) {
+            logId = id; // у сервера другой журнал: прежние номера с его номерами не сравнимы
+            highest = -1;
+            seen.clear();
+        }
+        resuming = false;
+        for (Pending message : pending) {
+            append(message.line());
+        }
+        logger.debug("Клиент {} продолжил с записи {}, повторяется сообщений: {}", username, highest + 1, pending.size());
+    }
+
+    // Отмечает номер полученного сообщения; false — это сообщение уже получено
+    private boolean firstSeen(long sequence) {
+        if (sequence > highest) {
+            for (long s = Math.max(highest + 1, sequence - WINDOW + 1); s < sequence; s++) {
+                seen.clear((int) (s % WINDOW));
+            }
+            seen.set((int) (sequence % WINDOW));
+            highest = sequence;
+            return true;
+        }
+        if (sequence <= highest - WINDOW) {
+            return true; // старше окна: например, история комнаты, в которую клиент только что вошёл
+        }
+        int bit = (int) (sequence % WINDOW);
+        if (seen.get(bit)) {
+            return false;
+        }
+        seen.set(bit);
+        return true;
+    }
+
+    private static boolean isNumber(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return to - from <= 18;
+    }
+
+    /* Пока связи нет или сервер отдаёт пропущенное, строки ждут в inbox и уходят по порядку после
+    неподтверждённых, когда сервер отдаст пропущенное. Так не теряются и команды вроде /search, которые
+    не повторяются: они просто отправляются позже */
+    private void drainInbox() {
+        if (resuming || !connected) {
+            return;
+        }
+        String text;
+        while ((text = inbox.poll()) != null) {
+            if (text.startsWith("/join ")) {
+                String room = text.substring("/join ".length()).trim();
+                rooms.remove(room); // последняя вошедшая комната станет активной и после переподключения
+                if (!RoomRegistry.DEFAULT_ROOM.equals(room)) {
+                    rooms.add(room);
+                }
+            } else if (text.startsWith("/leave ")) {
+                rooms.remove(text.substring("/leave ".length()).trim());
+            } else if (tracked(text)) {
+                pending.add(new Pending(text, recipientOf(text)));
+            }
+            append(text);
+        }
+    }
+
+    private void append(String text) {
+        append(text.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    private void append(byte[] bytes, boolean newline) {
+        int needed = bytes.length + (newline ? 1 : 0);
+        if (out.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+        out.put(bytes);
+        if (newline) {
+            out.put((byte) '\n');
+        }
+    }
+
+    private void updateInterest() {
+        if (connected && key.isValid()) {
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void writeOut() throws IOException {
+        out.flip();
+        try {
+            channel.write(out);
+        } finally {
+            out.compact();
+        }
+    }
+
+    // Читает, что есть в сокете, и отдаёт все целые строки получателю одной пачкой
+    private void read() throws IOException {
+        in.clear();
+        int n = channel.read(in);
+        if (n < 0) {
+            throw new IOException("Сервер закрыл соединение");
+        }
+        in.flip();
+        List<String> lines = null;
+        byte[] array = in.array();
+        for (int i = 0; i < in.limit(); i++) {
+            byte b = array[i];
+            if (b != '\n') {
+                if (lineLength == MAX_LINE_LENGTH) {
+                    throw new IOException("Строка от сервера длиннее " + MAX_LINE_LENGTH + " байт");
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, line.length * 2));
+                }
+                line[lineLength++] = b;
+                continue;
+            }
+            int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            String text = new String(line, 0, length, StandardCharsets.UTF_8);
+            lineLength = 0;
+            if (BinaryProtocol.PING_LINE.equals(text)) {
+                append(PONG, false); // сервер проверяет, что мы на связи
+                continue;
+            }
+            if (text.startsWith(BinaryProtocol.RESUMED_LINE + " ")) {
+                onResumed(text);
+                continue;
+            }
+            int space = text.startsWith("#") ? text.indexOf(' ') : -1;
+            if (space > 1 && isNumber(text, 1, space)) {
+                // «#<номер> строка»: повтор отбрасываем, получателю отдаём строку без номера
+                if (!firstSeen(Long.parseLong(text.substring(1, space)))) {
+                    continue;
+                }
+                text = text.substring(space + 1);
+            }
+            acknowledge(text);
+            if (lines == null) {
+                lines = new ArrayList<>();
+            }
+            lines.add(text);
+        }
+        if (lines != null) {
+            List<String> batch = lines;
+            notifyListener(() -> listener.onLines(batch));
+        }
+    }
+
+    // Снимает с очереди сообщение, подтверждённое строкой text, и все отправленные до него
+    private void acknowledge(String text) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        String echo = echoText(text);
+        int index = 0;
+        for (Pending message : pending) {
+            index++;
+            boolean acked = message.recipient() == null
+                    ? message.line().equals(echo)
+                    : text.equals("Доставлено пользователю " + message.recipient())
+                    || text.startsWith("Пользователь " + message.recipient() + " ");
+            if (acked) {
+                for (int i = 0; i < index; i++) {
+                    pending.poll();
+                }
+                unacked.addAndGet(-index);
+                return;
+            }
+        }
+    }
+
+    // Текст своего сообщения из строки рассылки «[время] [имя] [#комната]: текст»; null — строка не наша
+    private String echoText(String text) {
+        String self = "] [" + username + "]";
+        int at = text.indexOf("] [");
+        if (at < 0 || !text.startsWith(self, at)) {
+            return null;
+        }
+        int end = at + self.length();
+        if (text.startsWith(": ", end)) {
+            return text.substring(end + 2);
+        }
+        if (text.startsWith(" [#", end)) {
+            int colon = text.indexOf("]: ", end);
+            return colon < 0 ? null : text.substring(colon + 3);
+        }
+        return null;
+    }
+
+    private void disconnect(String reason) {
+        boolean wasConnected = connected;
+        closeChannel();
+        long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+        reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        if (wasConnected) {
+            logger.debug("Клиент {} потерял связь: {}", username, reason);
+        }
+        notifyListener(() -> listener.onDisconnected(reason, delay));
+    }
+
+    private void closeChannel() {
+        connected = false;
+        resuming = false;
+        out.clear();
+        lineLength = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // соединение и так потеряно
+            }
+            channel = null;
+            key = null;
+        }
+    }
+
+    // Ошибка получателя не должна останавливать поток клиента
+    private void notifyListener(Runnable event) {
+        try {
+            event.run();
+        } catch (RuntimeException ex) {
+            logger.error("Ошибка обработчика событий клиента: {}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,416 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* Генератор нагрузки без консоли: открывает clients соединений по строковому протоколу, из них senders
+отправляют сообщения с общей частотой ratePerSecond в течение durationSeconds, а все соединения принимают рассылку.
+В каждом сообщении — момент, когда его полагалось отправить по расписанию, и момент фактической отправки.
+Задержка считается от запланированного момента: если отправитель сам задержался, потому что сервер не успевал
+принимать, это время тоже попадает в задержку (поправка на coordinated omission). Для сравнения
+отдельно ведётся гистограмма от фактической отправки — её перцентили выглядят лучше, чем есть на самом деле.
+Приём идёт на нескольких циклах Selector, поэтому десятки тысяч соединений не требуют потока на каждое */
+public class ChatLoadGenerator {
+    private static final byte[] MARKER = "loadgen ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PING = BinaryProtocol.PING_LINE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = (BinaryProtocol.PONG_LINE + "\n").getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long READY_TIMEOUT_SECONDS = 120;
+    private static final long DRAIN_TIMEOUT_SECONDS = 10;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int senders;
+    private final int ratePerSecond;
+    private final int durationSeconds;
+
+    private final long epoch = System.nanoTime(); // метки времени в сообщениях отсчитываются от него и неотрицательны
+    private final int runId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE); // чужие строки, например из истории, не учитываются
+    private final Recorder corrected = new Recorder(3); // микросекунды от запланированной отправки
+    private final Recorder uncorrected = new Recorder(3); // микросекунды от фактической отправки
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong maxSenderLagNanos = new AtomicLong(); // наибольшее опоздание отправителя за интервал
+    private CountDownLatch ready;
+    private volatile boolean running = true;
+
+    public ChatLoadGenerator(String host, int port, int clients, int senders, int ratePerSecond, int durationSeconds) {
+        if (clients <= 0 || senders <= 0 || senders > clients || ratePerSecond <= 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Недопустимые параметры нагрузки");
+        }
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.senders = senders;
+        this.ratePerSecond = ratePerSecond;
+        this.durationSeconds = durationSeconds;
+    }
+
+    /* Итог прогона: сколько отправлено и доставлено, пропускная способность, гистограммы задержек (мкс)
+    и секунда, на которой сервер начал отставать (-1 — не отставал) */
+    public record Result(long sent, long delivered, double messagesPerSecond, double deliveriesPerSecond,
+                         Histogram corrected, Histogram uncorrected, int fellBehindAtSecond) {
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        int loopCount = Math.max(1, Math.min(clients, Runtime.getRuntime().availableProcessors()));
+        ReceiverLoop[] loops = new ReceiverLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new ReceiverLoop();
+            Thread thread = new Thread(loops[i], "loadgen-receiver-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Connection[] connections = new Connection[clients];
+        ready = new CountDownLatch(clients);
+        try {
+            System.out.println("Подключаем " + clients + " клиентов к " + host + ":" + port);
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                connections[i] = new Connection(channel);
+                connections[i].write(("loadgen-" + runId + "-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                channel.configureBlocking(false);
+                loops[i % loopCount].add(connections[i]);
+            }
+            awaitReady(connections[0]);
+            return measure(connections);
+        } finally {
+            running = false;
+            for (ReceiverLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+            for (Connection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /* Все клиенты зарегистрированы, когда каждый получил рассылку-маркер. Маркер повторяется:
+    клиенты, которых сервер зарегистрировал позже, получат следующий */
+    private void awaitReady(Connection sender) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(READY_TIMEOUT_SECONDS);
+        byte[] marker = ("loadgen " + runId + " ready\n").getBytes(StandardCharsets.US_ASCII);
+        while (!ready.await(500, TimeUnit.MILLISECONDS)) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Не все клиенты зарегистрировались: ждём ещё " + ready.getCount());
+            }
+            sender.write(marker);
+        }
+        System.out.println("Все клиенты на связи, начинаем: " + ratePerSecond + " сообщений/с от " + senders
+                + " отправителей, " + durationSeconds + " с");
+    }
+
+    private Result measure(Connection[] connections) throws InterruptedException {
+        corrected.reset();
+        uncorrected.reset();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Thread pacer = new Thread(() -> pace(connections, start, end), "loadgen-sender");
+        pacer.start();
+
+        Histogram totalCorrected = new Histogram(3);
+        Histogram totalUncorrected = new Histogram(3);
+        Histogram interval = null;
+        int fellBehindAt = -1;
+        long previousDelivered = 0;
+        long previousSent = 0;
+        System.out.printf("%5s %10s %12s %9s %9s %9s %12s %10s%n",
+                "сек", "отпр/с", "доставл/с", "p50_мс", "p99_мс", "p99.9_мс", "очередь", "опозд_мс");
+        for (int second = 1; pacer.isAlive() || second <= durationSeconds || backlog() > 0; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            interval = corrected.getIntervalHistogram(interval);
+            totalCorrected.add(interval);
+            totalUncorrected.add(uncorrected.getIntervalHistogram());
+            long nowSent = sent.get();
+            long nowDelivered = delivered.sum();
+            long backlog = backlog();
+            long lagMillis = TimeUnit.NANOSECONDS.toMillis(maxSenderLagNanos.getAndSet(0));
+            /* Сервер отстаёт, если недоставленного накопилось больше, чем на секунду трафика,
+            или отправитель не успевает отправлять по расписанию больше чем на секунду */
+            boolean behind = backlog > (long) ratePerSecond * clients || lagMillis > 1000;
+            if (behind && fellBehindAt < 0) {
+                fellBehindAt = second;
+            }
+            System.out.printf("%5d %10d %12d %9.2f %9.2f %9.2f %12d %10d%s%n", second, nowSent - previousSent,
+                    nowDelivered - previousDelivered, millis(interval, 50), millis(interval, 99), millis(interval, 99.9),
+                    backlog, lagMillis, behind ? "  сервер не успевает" : "");
+            previousSent = nowSent;
+            previousDelivered = nowDelivered;
+            if (!pacer.isAlive() && second > durationSeconds + DRAIN_TIMEOUT_SECONDS) {
+                break; // часть рассылки потеряна (например, вытеснена из переполненных очередей сервера)
+            }
+        }
+        pacer.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Result result = new Result(sent.get(), delivered.sum(), sent.get() / seconds, delivered.sum() / seconds,
+                totalCorrected, totalUncorrected, fellBehindAt);
+        printSummary(result);
+        return result;
+    }
+
+    // Сколько доставок ещё не дошло: каждое сообщение должны получить все клиенты
+    private long backlog() {
+        return sent.get() * clients - delivered.sum();
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /* Открытая модель нагрузки: сообщение k должно уйти в момент start + k * period независимо от того,
+    успел ли сервер принять предыдущие. Опоздание отправителя не сдвигает расписание */
+    private void pace(Connection[] connections, long start, long end) {
+        long period = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        try {
+            for (long k = 0; ; k++) {
+                long intended = start + k * period;
+                if (intended >= end || !running) {
+                    return;
+                }
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                long actual = System.nanoTime();
+                maxSenderLagNanos.accumulateAndGet(actual - intended, Math::max);
+                Connection sender = connections[(int) (k % senders)];
+                sender.write(("loadgen " + runId + " " + (intended - epoch) + " " + (actual - epoch) + "\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                sent.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            System.err.println("Отправитель остановлен: " + ex.getMessage());
+        }
+    }
+
+    private void printSummary(Result result) {
+        System.out.printf("Отправлено %d сообщений (%.1f/с), доставлено %d (%.1f/с), потеряно %d%n",
+                result.sent(), result.messagesPerSecond(), result.delivered(), result.deliveriesPerSecond(),
+                result.sent() * clients - result.delivered());
+        System.out.printf("Задержка с поправкой на coordinated omission: p50 %.2f мс, p99 %.2f мс, p99.9 %.2f мс, max %.2f мс%n",
+                millis(result.corrected(), 50), millis(result.corrected(), 99), millis(result.corrected(), 99.9),
+                result.corrected().getMaxValue() / 1000.0);
+        System.out.printf("Без поправки (от фактической отправки):   p50 %.2f мс, p99 %.2f мс, p99.9 %.2f мс, max %.2f мс%n",
+                millis(result.uncorrected(), 50), millis(result.uncorrected(), 99), millis(result.uncorrected(), 99.9),
+                result.uncorrected().getMaxValue() / 1000.0);
+        System.out.println(result.fellBehindAtSecond() < 0 ? "Сервер справлялся с нагрузкой все время"
+                : "Сервер начал отставать на " + result.fellBehindAtSecond() + "-й секунде");
+    }
+
+    /* Разбор принятой строки прямо в буфере приёма: ищем маркер и читаем числа после него.
+    Строка рассылки выглядит как "[время] [имя]: loadgen <runId> <запланировано> <отправлено>" */
+    private void onLine(Connection connection, ByteBuffer buf, int from, int to, long receivedAt, int[] cursor) {
+        int at = indexOf(buf, from, to, MARKER);
+        if (at < 0) {
+            if (to - from == PING.length && indexOf(buf, from, to, PING) == from) {
+                pong(connection); // долгий прогон: сервер проверяет, что молчащие получатели живы
+            }
+            return;
+        }
+        cursor[0] = at + MARKER.length;
+        if (parseNumber(buf, cursor, to) != runId) {
+            return;
+        }
+        if (cursor[0] < to && buf.get(cursor[0]) == 'r') {
+            if (!connection.ready) {
+                connection.ready = true;
+                ready.countDown();
+            }
+            return;
+        }
+        long intended = parseNumber(buf, cursor, to);
+        long actual = parseNumber(buf, cursor, to);
+        long now = receivedAt - epoch;
+        corrected.recordValue(Math.max(0, now - intended) / 1000);
+        uncorrected.recordValue(Math.max(0, now - actual) / 1000);
+        delivered.increment();
+    }
+
+    private static void pong(Connection connection) {
+        try {
+            connection.write(PONG);
+        } catch (IOException ex) {
+            // соединение закрыто; это заметит цикл приёма
+        }
+    }
+
+    private static int indexOf(ByteBuffer buf, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // Десятичное число с позиции cursor[0]; позиция сдвигается за число и следующий пробел
+    private static long parseNumber(ByteBuffer buf, int[] cursor, int to) {
+        long value = 0;
+        int i = cursor[0];
+        while (i < to) {
+            byte b = buf.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            i++;
+        }
+        cursor[0] = i < to && buf.get(i) == ' ' ? i + 1 : i;
+        return value;
+    }
+
+    // Соединение генератора: канал и недочитанный хвост строки
+    private static class Connection {
+        final SocketChannel channel;
+        byte[] tail = new byte[0];
+        int tailLength;
+        boolean ready;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Запись из потока отправителя или ответ PONG из цикла приёма; канал неблокирующий, поэтому дожимаем остаток сами
+        synchronized void write(byte[] bytes) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                if (channel.write(buf) == 0) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        void appendTail(ByteBuffer buf, int from, int to) {
+            int length = to - from;
+            if (tail.length < tailLength + length) {
+                tail = Arrays.copyOf(tail, Math.max(256, (tailLength + length) * 2));
+            }
+            buf.get(from, tail, tailLength, length);
+            tailLength += length;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // соединение уже закрыто
+            }
+        }
+    }
+
+    // Цикл приёма: читает готовые соединения в общий буфер и разбирает строки на месте
+    private class ReceiverLoop implements Runnable {
+        final Selector selector;
+        final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        final ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final int[] cursor = new int[1]; // позиция разбора строки
+
+        ReceiverLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Connection added;
+                    while ((added = pending.poll()) != null) {
+                        added.channel.register(selector, SelectionKey.OP_READ, added);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid() && key.isReadable()) {
+                            read((Connection) key.attachment(), key);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException ex) {
+                if (running) {
+                    System.err.println("Ошибка цикла приёма: " + ex.getMessage());
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // уже закрыт
+                }
+            }
+        }
+
+        private void read(Connection connection, SelectionKey key) {
+            buf.clear();
+            int n;
+            try {
+                n = connection.channel.read(buf);
+            } catch (IOException ex) {
+                n = -1;
+            }
+            if (n < 0) {
+                key.cancel();
+                connection.close();
+                return;
+            }
+            long receivedAt = System.nanoTime();
+            buf.flip();
+            int start = 0;
+            for (int i = 0; i < buf.limit(); i++) {
+                if (buf.get(i) != '\n') {
+                    continue;
+                }
+                if (connection.tailLength > 0) {
+                    connection.appendTail(buf, start, i);
+                    onLine(connection, ByteBuffer.wrap(connection.tail), 0, connection.tailLength, receivedAt, cursor);
+                    connection.tailLength = 0;
+                } else {
+                    onLine(connection, buf, start, i, receivedAt, cursor);
+                }
+                start = i + 1;
+            }
+            if (start < buf.limit()) {
+                connection.appendTail(buf, start, buf.limit());
+            }
+        }
+    }
+
+    /* Запуск: ChatLoadGenerator [хост] [порт] [клиентов] [отправителей] [сообщений в секунду] [секунд].
+    По умолчанию localhost, порт из настроек (ChatSettings), 1000 клиентов, 10 отправителей, 100 сообщений/с, 30 с */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ChatSettings.load().getPort();
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int rate = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        int duration = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+        new ChatLoadGenerator(host, port, clients, senders, rate, duration).run();
+    }
+}
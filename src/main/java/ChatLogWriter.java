@@ -0,0 +1,303 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/* Фоновый журнал чата. Отправители только кладут запись в ограниченную очередь и никогда не ждут диск;
+единственный поток-писатель дописывает записи в сегментированный журнал пачками по LogFlushPolicy.
+Номер записи в журнале присваивается уже при постановке в очередь: очередь и журнал упорядочены одинаково,
+поэтому этот номер и есть порядковый номер сообщения на сервере, который видят клиенты.
+
+Записи, получившие номер, не теряются: если диск не принял пачку, писатель держит её в памяти и повторяет
+с растущей паузой, а новые записи, пока журнал неисправен, не принимаются вовсе. Полная очередь запись
+не принимает; чтобы до этого не доходило, сервер приостанавливает чтение отправителей, пока очередь
+заполнена больше чем на BACKLOG_PERCENT процентов (см. isBacklogged) */
+class ChatLogWriter implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ChatLogWriter.class);
+
+    private static final int MAX_BATCH = 4096; // сколько записей писатель забирает из очереди за раз
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    private static final int BACKLOG_PERCENT = 75; // с какой заполненности очереди отправителей придерживают
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    // Маркер синхронизации: заставляет писателя немедленно сбросить всё, что было в очереди до него
+    private static final String SYNC = new String("sync");
+
+    private final SegmentedLog log;
+    private final BlockingQueue<String> queue;
+    private final int backlogLimit; // размер очереди, с которого она считается перегруженной
+    private volatile LogFlushPolicy policy;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean healthy; // журнал открыт и последняя запись на диск удалась
+
+    private final AtomicLong accepted = new AtomicLong(); // записей принято в очередь
+    /* Номер выдаётся и запись ставится в очередь под одной блокировкой, чтобы порядок номеров и очереди совпадал.
+    Под блокировкой никто не ждёт: постановка в очередь не блокирующая */
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+    private long nextSequence; // номер следующей принятой записи; под sequenceLock
+    private final AtomicLong dropped = new AtomicLong(); // записей не принято: очередь полна или журнал неисправен
+    private volatile long written; // записей записано в файл
+
+    // Состояние ниже принадлежит только потоку-писателю
+    private final List<String> batch = new ArrayList<>(MAX_BATCH);
+    private int pendingEntries;
+    private long firstPendingAt;
+    private boolean syncRequested;
+    private boolean unforced; // записанное ещё не синхронизировано с диском (групповой fsync)
+    private long lastForceAt = System.nanoTime();
+
+    ChatLogWriter(SegmentedLog log, int queueCapacity, LogFlushPolicy policy) {
+        this.log = log;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.backlogLimit = Math.max(1, (int) ((long) queueCapacity * BACKLOG_PERCENT / 100));
+        this.policy = policy;
+        this.thread = new Thread(this, "chat-log-writer");
+        this.thread.setDaemon(true);
+    }
+
+    /* Открывает журнал в вызывающем потоке, чтобы сразу знать номер следующей записи, и запускает писателя.
+    Если открыть не удалось, записи не принимаются, пока писатель не откроет журнал: номера берутся
+    только из открытого журнала */
+    void start() {
+        openLog();
+        thread.start();
+    }
+
+    private boolean openLog() {
+        try {
+            log.open();
+        } catch (IOException ex) {
+            logger.warn("Ошибка открытия журнала: {}", ex.getMessage());
+            return false;
+        }
+        sequenceLock.lock();
+        try {
+            nextSequence = log.nextSequence();
+        } finally {
+            sequenceLock.unlock();
+        }
+        healthy = true;
+        return true;
+    }
+
+    // Журнал открыт и пишется; пока нет, новые записи не принимаются
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    SegmentedLog getLog() {
+        return log;
+    }
+
+    void setPolicy(LogFlushPolicy policy) {
+        this.policy = policy;
+    }
+
+    LogFlushPolicy getPolicy() {
+        return policy;
+    }
+
+    /* Ставит запись в очередь, не ожидая ни диска, ни места в очереди, и возвращает её номер в журнале.
+    Если очередь полна или журнал неисправен, запись не принимается, учитывается и номера не получает (-1):
+    такое сообщение рассылать нельзя */
+    long append(String entry) {
+        sequenceLock.lock();
+        try {
+            if (running && healthy && queue.offer(entry)) {
+                accepted.incrementAndGet();
+                return nextSequence++;
+            }
+        } finally {
+            sequenceLock.unlock();
+        }
+        dropped.incrementAndGet();
+        return -1;
+    }
+
+    /* Очередь почти полна: писатель не успевает за отправителями. Сервер в ответ приостанавливает
+    чтение соединений, а не держит отправителя внутри append */
+    boolean isBacklogged() {
+        return queue.size() >= backlogLimit;
+    }
+
+    // Номер, который получит следующая принятая запись
+    long nextSequence() {
+        sequenceLock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    // Ждёт, пока все записи, принятые до вызова, окажутся в файле (или пройдёт timeoutMillis)
+    boolean sync(long timeoutMillis) {
+        long target = accepted.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean marked = false;
+        while (written < target) {
+            if (!marked) {
+                marked = queue.offer(SYNC);
+            }
+            if (System.nanoTime() > deadline || !thread.isAlive()) {
+                return false;
+            }
+            LockSupport.parkNanos(50_000);
+        }
+        return true;
+    }
+
+    int backlog() {
+        return queue.size();
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!healthy) {
+                retry(this::openLog);
+            }
+            while (running || !queue.isEmpty()) {
+                String entry = queue.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    accept(entry);
+                    queue.drainTo(batch, MAX_BATCH);
+                    for (String next : batch) {
+                        accept(next);
+                    }
+                    batch.clear();
+                }
+                if (shouldFlush()) {
+                    flush();
+                }
+                if (unforced && System.nanoTime() - lastForceAt >= TimeUnit.MILLISECONDS.toNanos(policy.getFsyncIntervalMillis())) {
+                    force();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flush();
+            if (unforced) {
+                force();
+            }
+            log.close();
+        }
+    }
+
+    // Сколько ждать новых записей: до срока сброса пачки или группового fsync, что раньше
+    private long waitMillis() {
+        long now = System.nanoTime();
+        long wait = IDLE_WAIT_MILLIS;
+        if (pendingEntries > 0) {
+            wait = policy.getIntervalMillis() - TimeUnit.NANOSECONDS.toMillis(now - firstPendingAt);
+        }
+        if (unforced) {
+            wait = Math.min(wait, policy.getFsyncIntervalMillis() - TimeUnit.NANOSECONDS.toMillis(now - lastForceAt));
+        }
+        return Math.max(0, wait);
+    }
+
+    private boolean shouldFlush() {
+        if (pendingEntries == 0) {
+            return false;
+        }
+        LogFlushPolicy current = policy;
+        return syncRequested || !running
+                || pendingEntries >= current.getEveryEntries()
+                || System.nanoTime() - firstPendingAt >= TimeUnit.MILLISECONDS.toNanos(current.getIntervalMillis());
+    }
+
+    private void accept(String entry) {
+        if (entry == SYNC) {
+            syncRequested = true;
+            return;
+        }
+        if (pendingEntries == 0) {
+            firstPendingAt = System.nanoTime();
+        }
+        pendingEntries++;
+        if (!log.append(entry)) {
+            // Прошлая пачка не записана: дописываем её и повторяем эту запись
+            if (!retry(() -> log.writePending() && log.append(entry))) {
+                pendingEntries--;
+            }
+        }
+    }
+
+    private void flush() {
+        if (!retry(log::writePending)) {
+            return; // писатель остановлен, а диск так и не принял пачку
+        }
+        if (pendingEntries > 0 && policy.isFsync()) {
+            if (policy.isFsyncEachBatch()) {
+                force();
+            } else {
+                unforced = true; // один force на все пачки интервала
+            }
+        }
+        written += pendingEntries;
+        pendingEntries = 0;
+        syncRequested = false;
+    }
+
+    /* Повторяет действие с журналом, пока оно не удастся; на это время журнал неисправен и новые записи
+    не принимаются. false — писатель остановлен раньше: записи в памяти потеряны */
+    private boolean retry(BooleanSupplier action) {
+        long backoff = MIN_RETRY_MILLIS;
+        while (!action.getAsBoolean()) {
+            if (healthy) {
+                healthy = false;
+                logger.error("Журнал неисправен: сообщения не принимаются, запись повторяется");
+            }
+            if (!running) {
+                logger.error("Журнал остановлен с незаписанными записями: {}", pendingEntries + queue.size());
+                return false;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(backoff));
+            backoff = Math.min(MAX_RETRY_MILLIS, backoff * 2);
+        }
+        if (!healthy) {
+            healthy = true;
+            logger.info("Журнал снова пишется");
+        }
+        return true;
+    }
+
+    private void force() {
+        log.force();
+        unforced = false;
+        lastForceAt = System.nanoTime();
+    }
+
+    /* Останавливает писателя: новые записи больше не принимаются, уже поставленные в очередь
+    дописываются в файл. Возвращает false, если за timeoutMillis писатель не успел закончить */
+    boolean close(long timeoutMillis) {
+        running = false;
+        queue.offer(SYNC); // будим писателя, если он ждёт новых записей
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+}
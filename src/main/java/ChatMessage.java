@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+
+/* Сообщение рассылки в виде, не зависящем от протокола получателя. Текстовый кадр кодируется сразу
+(его получают строковые клиенты и он же попадает в историю), двоичный — при первой доставке двоичному
+клиенту, сжатый — при первой доставке клиенту, согласившемуся на сжатие. Каждый кадр кодируется один раз
+на сообщение и разделяется всеми получателями.
+Строковым клиентам, попросившим номера сообщений (/resume), уходит тот же текст с номером записи журнала
+впереди: «#<номер> [время] [имя]: текст».
+Двоичный кадр всегда короче текстового: вместо даты и имени в нём 8 байт времени и varint номера,
+а сжатый — не длиннее двоичного */
+final class ChatMessage {
+    private final byte type; // BinaryProtocol.CHAT или BinaryProtocol.DIRECT
+    private final SenderDirectory.Sender sender;
+    private final long timestamp; // миллисекунды эпохи
+    private final long sequence; // номер записи в журнале сервера; -1 — сообщение в журнал не попало
+    private final String room; // null — общая комната или личное сообщение
+    private final String body;
+    private final String textLine;
+    private final ByteBuffer textFrame;
+    private volatile ByteBuffer sequencedFrame;
+    private volatile ByteBuffer binaryFrame;
+    private volatile CompressedFrame compressedFrame; // последний сжатый кадр и настройки, с которыми он сжат
+
+    ChatMessage(byte type, SenderDirectory.Sender sender, long timestamp, String room, String body, String textLine) {
+        this(type, sender, timestamp, -1, room, body, textLine);
+    }
+
+    ChatMessage(byte type, SenderDirectory.Sender sender, long timestamp, long sequence, String room, String body,
+                String textLine) {
+        this.type = type;
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.textLine = textLine;
+        this.room = room;
+        this.body = body;
+        this.textFrame = ClientSession.frame(textLine);
+    }
+
+    SenderDirectory.Sender sender() {
+        return sender;
+    }
+
+    ByteBuffer textFrame() {
+        return textFrame;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    // Текстовый кадр с номером; у сообщения без номера — обычный
+    ByteBuffer sequencedFrame() {
+        ByteBuffer frame = sequencedFrame;
+        if (frame == null) {
+            frame = sequence < 0 ? textFrame : ClientSession.frame(sequenced(sequence, textLine));
+            sequencedFrame = frame;
+        }
+        return frame;
+    }
+
+    // Строка протокола с номером записи журнала впереди
+    static String sequenced(long sequence, String line) {
+        return "#" + sequence + " " + line;
+    }
+
+    // Гонка при первом кодировании безопасна: оба потока получат одинаковые кадры, сохранится один
+    ByteBuffer binaryFrame() {
+        ByteBuffer frame = binaryFrame;
+        if (frame == null) {
+            frame = type == BinaryProtocol.DIRECT
+                    ? BinaryProtocol.direct(sender.id(), timestamp, body)
+                    : BinaryProtocol.chat(sender.id(), timestamp, room, body);
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+
+    /* Кадр для клиентов со сжатием: DEFLATED или тот же двоичный кадр, если сжимать не стоит.
+    После перечитывания настроек у старых и новых сессий разные порог и уровень, поэтому кадр из кэша
+    отдаётся, только если сжат с теми же порогом и уровнем, что у компрессора сессии */
+    ByteBuffer compressedFrame(FrameCompressor compressor) {
+        CompressedFrame cached = compressedFrame;
+        if (cached == null || cached.threshold() != compressor.threshold() || cached.level() != compressor.level()) {
+            cached = new CompressedFrame(compressor.threshold(), compressor.level(), compressor.compress(binaryFrame()));
+            compressedFrame = cached;
+        }
+        return cached.frame();
+    }
+
+    private record CompressedFrame(int threshold, int level, ByteBuffer frame) {
+    }
+
+    // Оценка памяти сообщения сверху: текстовый кадр и не большие его двоичный и сжатый
+    int retainedBytes() {
+        return 3 * textFrame.capacity();
+    }
+}
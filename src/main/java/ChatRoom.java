@@ -0,0 +1,58 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Комната чата: множество участников и своя история последних сообщений.
+Сообщение комнаты получают только её участники, поэтому рассылка стоит O(размер комнаты),
+а не O(все пользователи сервера). Множество участников потокобезопасное: вход и выход
+не блокируют рассылку, а рассылка видит участника не позже, чем он вошёл */
+class ChatRoom {
+    private final String name;
+    private final Set<ClientSession> members = ConcurrentHashMap.newKeySet();
+    private volatile HistoryRing history; // null — история комнаты не хранится
+
+    ChatRoom(String name, HistoryRing history) {
+        this.name = name;
+        this.history = history;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    HistoryRing getHistory() {
+        return history;
+    }
+
+    void setHistory(HistoryRing history) {
+        this.history = history;
+    }
+
+    // Добавляет сообщение в историю комнаты и ставит его в очереди всех участников; возвращает число доставок
+    int publish(ChatMessage message) {
+        HistoryRing ring = history;
+        long index = ring == null ? Long.MAX_VALUE : ring.append(message, System.currentTimeMillis());
+        int delivered = 0;
+        for (ClientSession member : members) {
+            if (member.deliver(message, ring, index)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    boolean addMember(ClientSession session) {
+        return members.add(session);
+    }
+
+    boolean removeMember(ClientSession session) {
+        return members.remove(session);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    int size() {
+        return members.size();
+    }
+}
@@ -1,154 +1,1190 @@
-import java.io.BufferedReader;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.net.SocketException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 /* класс для реализации логики ожидания входящих соединений, регистрации пользователей и распространения
 сообщений среди активных клиентов */
 public class ChatServer {
-    /* clients хранит список активных пользователей, где ключ — это имя пользователя, а значение — PrintWriter,
-    используемый для отправки сообщений этому пользователю */
-    private final Map<String, PrintWriter> clients = new HashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(ChatServer.class);
+
+    /* clients хранит список активных пользователей, где ключ — это имя пользователя, а значение — сессия,
+    используемая для отправки сообщений этому пользователю. Реестр потокобезопасный: его меняют
+    обработчики всех соединений, а рассылка обходит его без общей блокировки */
+    private final Map<String, ClientSession> clients = new ConcurrentHashMap<>();
     private final int PORT; // порт, на котором сервер будет ждать подключения
-    private final String LOG_FILE_NAME = "file.log"; // имя файла журнала
+    private final ServerMode MODE; // способ обслуживания соединений
     private ServerSocket serverSocket;
+    private volatile NioChatEngine nioEngine;
+    private volatile ExecutorService clientExecutor; // исполнитель обработчиков в блокирующих режимах
+    private volatile ExecutorService writerExecutor; // исполнитель писателей сессий в блокирующих режимах
+    private int poolSize = 200; // размер пула для режима POOL
+    private volatile int outboundQueueCapacity = 1024; // ёмкость исходящей очереди каждого клиента
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /* Комнаты с участниками и историей последних сообщений. История — готовые кадры в памяти,
+    чтобы лавина переподключений не превращалась в тысячи чтений журнала */
+    private static final int HISTORY_MAX_FRAME_BYTES = 64 * 1024;
+    private final RoomRegistry rooms = new RoomRegistry(HISTORY_MAX_FRAME_BYTES);
+    private final SenderDirectory senders = new SenderDirectory(); // номера имён для двоичного протокола
+
+    /* Почтовые ящики для личных сообщений пользователям не в сети: ящик заводится при первом входе
+    пользователя и хранит не более mailboxCapacity сообщений. 0 — личные сообщения только тем, кто в сети */
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private volatile int mailboxCapacity;
+
+    /* Защита от клиентов, заваливающих сервер строками: лимиты отправителя (маркерные вёдра) и длина строки.
+    Превысивший лимит сначала замедляется паузой чтения его соединения, а отключается, только если
+    не выходит из превышения дольше rateLimitDisconnectMillis. 0 сообщений в секунду — лимиты выключены */
+    private volatile int rateLimitMessages;
+    private volatile int rateLimitBytes;
+    private volatile long rateLimitDisconnectMillis;
+    private volatile int maxLineLength = ChatSettings.DEFAULT_MAX_LINE_LENGTH;
+    private volatile FrameCompressor compressor; // null — сжатие не предлагается
+
+    /* Общее колесо таймеров сервера: проверки простоя соединений и возобновление чтения после паузы.
+    Один поток и шаг 10 мс при любом числе соединений. Клиенту, молчащему pingIntervalMillis, уходит
+    PING; не подавшего признаков жизни за idleTimeoutMillis отключаем. 0 — проверки выключены */
+    private static final long TIMER_TICK_MILLIS = 10;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private final TimerWheel timers = new TimerWheel("chat-timers", TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+    private volatile long pingIntervalMillis;
+    private volatile long idleTimeoutMillis;
+
+    /* Журнал пишется фоновым потоком: отправители только ставят запись в очередь.
+    Путь к файлу вычисляется один раз, а не при каждой записи */
+    private static final int LOG_QUEUE_CAPACITY = 64 * 1024;
+    private static final long LOG_SYNC_TIMEOUT_MILLIS = 5000;
+    // На сколько приостанавливается чтение отправителя, пока очередь журнала перегружена
+    private static final long LOG_BACKLOG_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int RESUME_CHUNK = 1024; // сколько записей журнала читается за раз при /resume
+    private static final String LOG_UNAVAILABLE = "Сообщение не отправлено: журнал сервера недоступен, повторите позже";
+
+    // Остановка: сколько по умолчанию ждём, пока клиенты получат свои очереди, а журнал — свою
+    static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 5000;
+    static final String SHUTDOWN_NOTICE = "Сервер останавливается";
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final ChatLogWriter logWriter;
+    private final SearchIndex searchIndex; // поиск по журналу; индекс догоняет журнал в своём потоке
+
+    /* Метрики: счётчики и гистограммы на горячем пути, раз в секунду — пересчёт скоростей.
+    Доступны через JMX и, если задан порт, текстом по HTTP на /metrics */
+    private final ServerMetrics metrics = new ServerMetrics(); // сервер подключается в startMetrics()
+    // Кластер: порт для соседних узлов (0 — сервер работает один) и их статический список
+    private volatile int clusterPort;
+    private volatile List<InetSocketAddress> peers = List.of();
+    private volatile ClusterNode cluster;
+    private volatile int metricsPort; // 0 — HTTP-точка метрик не запускается
+    private ScheduledExecutorService metricsTicker;
+    private HttpServer metricsHttp;
+    private ObjectName metricsName;
+    private volatile ChatSettings settings = ChatSettings.defaults(); // последние применённые настройки
+    private SettingsWatcher settingsWatcher;
 
     public ChatServer(int port) {
         // конструктор принимает port и инициализирует
+        this(port, ServerMode.PLATFORM);
+    }
+
+    public ChatServer(int port, ServerMode mode) {
+        this(port, mode, Paths.get(".").toAbsolutePath().normalize() // находим текущий рабочий каталог
+                .resolve("src/main/resources") // строим путь к src/main/resources
+                .resolve("file.log"));
+    }
+
+    // Сервер с журналом в заданном файле; у каждого журнала должен быть ровно один сервер-писатель
+    ChatServer(int port, ServerMode mode, Path logFile) {
         this.PORT = port;
+        this.MODE = mode;
+        this.logWriter = new ChatLogWriter(new SegmentedLog(logFile), LOG_QUEUE_CAPACITY, LogFlushPolicy.DEFAULT);
+        this.logWriter.start();
+        this.searchIndex = new SearchIndex(logWriter.getLog());
+        this.searchIndex.start();
+    }
+
+    // Задаёт политику сброса журнала на диск; действует со следующей пачки
+    public void setLogFlushPolicy(LogFlushPolicy policy) {
+        logWriter.setPolicy(policy);
+    }
+
+    // Задаёт пороги закрытия сегмента журнала: по размеру в байтах и по возрасту
+    public void setLogSegmentLimits(long maxBytes, long maxAgeMillis) {
+        logWriter.getLog().setSegmentLimits(maxBytes, maxAgeMillis);
+    }
+
+    // Задаёт политику хранения закрытых сегментов журнала
+    public void setLogRetention(LogRetentionPolicy retention) {
+        logWriter.getLog().setRetention(retention);
+    }
+
+    /* Вошедшему в комнату отправляются последние maxMessages сообщений комнаты, но не старше maxAgeMillis
+    (0 — без ограничения по времени). maxMessages = 0 отключает историю. Вызывается до run() */
+    public void setHistory(int maxMessages, long maxAgeMillis) {
+        if (maxMessages < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Параметры истории не могут быть отрицательными");
+        }
+        rooms.setHistory(maxMessages, maxAgeMillis);
+    }
+
+    // Сколько байт сейчас занимают истории комнат и сколько могут занять в худшем случае
+    long[] getHistoryMemoryBytes() {
+        return rooms.historyMemoryBytes();
+    }
+
+    /* Включает хранение личных сообщений для пользователей не в сети: не более capacity сообщений
+    на пользователя, более старые вытесняются. 0 отключает хранение. Вызывается до run() */
+    public void setMailboxCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Ёмкость почтового ящика не может быть отрицательной: " + capacity);
+        }
+        this.mailboxCapacity = capacity;
+    }
+
+    /* Лимит каждого пользователя: не больше messagesPerSecond сообщений и bytesPerSecond байт в секунду
+    с всплеском до секунды каждой скорости. Отправителя, превышающего лимит непрерывно дольше
+    disconnectAfterMillis, отключаем. messagesPerSecond = bytesPerSecond = 0 выключает лимиты.
+    Действует сразу и для уже подключённых: их вёдра заменяются новыми, полными */
+    public void setRateLimit(int messagesPerSecond, int bytesPerSecond, long disconnectAfterMillis) {
+        if (messagesPerSecond < 0 || bytesPerSecond < 0 || disconnectAfterMillis < 0
+                || (messagesPerSecond == 0) != (bytesPerSecond == 0)) {
+            throw new IllegalArgumentException("Лимиты должны быть оба положительными или оба нулевыми");
+        }
+        boolean changed = messagesPerSecond != rateLimitMessages || bytesPerSecond != rateLimitBytes
+                || disconnectAfterMillis != rateLimitDisconnectMillis;
+        this.rateLimitMessages = messagesPerSecond;
+        this.rateLimitBytes = bytesPerSecond;
+        this.rateLimitDisconnectMillis = disconnectAfterMillis;
+        if (changed) {
+            for (ClientSession session : clients.values()) {
+                session.setRateLimiter(newRateLimiter());
+            }
+        }
+    }
+
+    private RateLimiter newRateLimiter() {
+        return rateLimitMessages > 0
+                ? new RateLimiter(rateLimitMessages, rateLimitBytes, rateLimitDisconnectMillis, System.nanoTime())
+                : null;
+    }
+
+    /* Клиенту, от которого ничего не приходило pingIntervalMillis, сервер посылает PING, а молчащего
+    idleTimeoutMillis отключает. Оба нуля выключают проверку. Действует для новых соединений */
+    public void setHeartbeat(long pingIntervalMillis, long idleTimeoutMillis) {
+        if (pingIntervalMillis < 0 || idleTimeoutMillis < 0 || (pingIntervalMillis == 0) != (idleTimeoutMillis == 0)
+                || idleTimeoutMillis < pingIntervalMillis) {
+            throw new IllegalArgumentException("Срок простоя должен быть не меньше интервала PING, оба — положительные или нули");
+        }
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    // Наибольшая длина строки (кадра) от клиента в байтах; более длинная строка закрывает соединение
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("Длина строки должна быть положительной: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /* Сжатие для двоичных клиентов, согласившихся на него: кадры сообщений не короче thresholdBytes
+    сжимаются deflate уровня level (1 — быстрее, 9 — плотнее), история при входе — пачками.
+    thresholdBytes = 0 выключает сжатие. Действует для новых соединений */
+    public void setCompression(int thresholdBytes, int level) {
+        if (thresholdBytes < 0 || level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Порог сжатия не может быть отрицательным, уровень — от 1 до 9");
+        }
+        this.compressor = thresholdBytes == 0 ? null : new FrameCompressor(thresholdBytes, level);
+    }
+
+    FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    // Порт HTTP-точки /metrics с метриками в текстовом виде; 0 — не запускать. Вызывается до run()
+    public void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0) {
+            throw new IllegalArgumentException("Порт метрик не может быть отрицательным: " + metricsPort);
+        }
+        this.metricsPort = metricsPort;
+    }
+
+    /* Включает кластер: узел принимает соседей на clusterPort и пересылает сообщения своих клиентов
+    узлам peers, а их сообщения рассылает своим клиентам. Вызывается до run() */
+    public void setCluster(int clusterPort, List<InetSocketAddress> peers) {
+        if (clusterPort <= 0 || clusterPort > 65535) {
+            throw new IllegalArgumentException("Неверный порт кластера: " + clusterPort);
+        }
+        this.clusterPort = clusterPort;
+        this.peers = List.copyOf(peers);
+    }
+
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    ChatLogWriter getLogWriter() {
+        return logWriter;
+    }
+
+    // Наибольшая и суммарная глубина исходящих очередей клиентов; считается обходом сессий при чтении метрик
+    long[] outboundQueueDepths() {
+        long max = 0;
+        long total = 0;
+        for (ClientSession session : clients.values()) {
+            int depth = session.outboundDepth();
+            max = Math.max(max, depth);
+            total += depth;
+        }
+        return new long[]{max, total};
+    }
+
+    // Количество существующих комнат, включая общую
+    int getRoomCount() {
+        return rooms.roomCount();
+    }
+
+    // Сегментированный журнал сервера: поиск по времени и номеру записи
+    SegmentedLog getLog() {
+        return logWriter.getLog();
+    }
+
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /* Применяет все настройки из файла; вызывается до run(). Режим и порт задаются конструктором,
+    адрес сервера нужен только клиенту */
+    public void configure(ChatSettings settings) {
+        setPoolSize(settings.getPoolSize());
+        setHistory(settings.getHistoryMessages(), settings.getHistoryMaxAgeMillis());
+        setMailboxCapacity(settings.getMailboxCapacity());
+        setMetricsPort(settings.getMetricsPort());
+        if (settings.getClusterPort() > 0) {
+            setCluster(settings.getClusterPort(), settings.getPeers());
+        }
+        applyReloadable(settings);
+        this.settings = settings;
+    }
+
+    /* Применяет перечитанные настройки к работающему серверу, не трогая соединения. На лету меняются
+    лимиты отправителей, сброс журнала, длина строки, очереди, сжатие и PING; изменения остальных
+    настроек (порт, режим, история, кластер…) только записываются в журнал — они требуют перезапуска */
+    public void reload(ChatSettings settings) {
+        List<String> restart = settings.restartRequired(this.settings);
+        if (!restart.isEmpty()) {
+            logger.warn("Изменённые настройки {} вступят в силу только после перезапуска сервера", restart);
+        }
+        applyReloadable(settings);
+        this.settings = settings;
+        logger.info("Настройки перечитаны из {}", settings.getFile());
+    }
+
+    private void applyReloadable(ChatSettings settings) {
+        setOutboundQueueCapacity(settings.getQueueCapacity());
+        setOverflowPolicy(settings.getOverflowPolicy());
+        setLogFlushPolicy(settings.getLogFlushPolicy());
+        setRateLimit(settings.getRateLimitMessages(), settings.getRateLimitBytes(),
+                settings.getRateLimitDisconnectMillis());
+        setHeartbeat(settings.getPingIntervalMillis(), settings.getIdleTimeoutMillis());
+        setMaxLineLength(settings.getMaxLineLength());
+        FrameCompressor current = compressor;
+        int threshold = current != null ? current.threshold() : 0;
+        int level = current != null ? current.level() : 0;
+        if (threshold != settings.getCompressionThreshold() || level != settings.getCompressionLevel()) {
+            setCompression(settings.getCompressionThreshold(), settings.getCompressionLevel());
+        }
+    }
+
+    ChatSettings getSettings() {
+        return settings;
+    }
+
+    /* Следит за файлом настроек и применяет его изменения через reload(); файл с ошибкой
+    не применяется. Наблюдение прекращается при остановке сервера */
+    public synchronized void watchSettings(Path file) throws IOException {
+        if (settingsWatcher == null) {
+            settingsWatcher = new SettingsWatcher(file, this::reload);
+        }
+    }
+
+    // Задаёт размер пула обработчиков для режима POOL (до вызова run)
+    public void setPoolSize(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Размер пула должен быть положительным: " + poolSize);
+        }
+        this.poolSize = poolSize;
+    }
+
+    // Задаёт ёмкость исходящей очереди для новых соединений
+    public void setOutboundQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ёмкость очереди должна быть положительной: " + capacity);
+        }
+        this.outboundQueueCapacity = capacity;
+    }
+
+    // Задаёт политику переполнения исходящей очереди для новых соединений
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // Количество зарегистрированных пользователей
+    int getClientCount() {
+        return clients.size();
     }
 
     public void run() throws Exception {
+        int historyMessages = rooms.getHistoryMessages();
+        if (historyMessages > 0) {
+            logger.info("История комнаты для вошедших: {} сообщений, память не более {} КБ на комнату",
+                    historyMessages, (long) historyMessages * HISTORY_MAX_FRAME_BYTES / 1024);
+        }
+        startMetrics();
+        if (clusterPort > 0) {
+            ClusterNode node = new ClusterNode(this, clusterPort, peers);
+            node.start();
+            cluster = node;
+        }
+        if (MODE == ServerMode.NIO) {
+            // Селекторный движок: несколько циклов событий, примерно по одному на ядро
+            nioEngine = new NioChatEngine(this, PORT, Runtime.getRuntime().availableProcessors());
+            nioEngine.run();
+            return;
+        }
         // ServerSocket позволяет организовать прием входящих TCP/IP соединений
         // создаем объект, ожидающий входящих соединений на заданном порту
+        ExecutorService executor = MODE.newExecutor(poolSize);
+        ExecutorService writers = MODE.newWriterExecutor();
+        clientExecutor = executor;
+        writerExecutor = writers;
         try {
             serverSocket = new ServerSocket(PORT);
             serverSocket.setReuseAddress(true); // Разрешаем повторное использование адреса и порта
-            System.out.println("Сервер запущен на порте " + PORT);
+            logger.info("Сервер запущен на порте {} (режим {})", PORT, MODE);
 
             while (!serverSocket.isClosed()) {
             /* Основное тело метода бесконечно ждёт поступления новых соединений от клиентов.
-                Каждое соединение порождает новый поток для обслуживания конкретного клиента */
-                Socket socket = serverSocket.accept();
-                new Thread(() -> handleClient(socket)).start();
+                Каждое соединение обслуживается отдельной задачей исполнителя выбранного режима */
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException ex) {
+                    if (stopping.get()) {
+                        break; // сокет закрыт методом stop()
+                    }
+                    throw ex;
+                }
+                metrics.onAccept();
+                try {
+                    executor.execute(() -> handleClient(socket));
+                } catch (RejectedExecutionException ex) {
+                    // Пул и его очередь заполнены: отказываем соединению, а не копим его бесконечно
+                    logger.warn("Соединение отклонено: пул обработчиков заполнен");
+                    socket.close();
+                }
             }
         } finally {
+            executor.shutdown();
+            writers.shutdown();
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
         }
     }
 
-    /* Метод для отправки сообщения всем зарегистрированным пользователям.
-    Сначала формирует строковую запись для лога, содержащую метку времени, имя отправителя и само сообщение */
-    private synchronized void broadcast(String sender, String msg) {
+    /* Метод для отправки сообщения участникам комнаты.
+    Сначала формирует строковую запись для лога, содержащую метку времени, имя отправителя и само сообщение;
+    сообщения не общей комнаты помечаются её именем. false — журнал не принял сообщение, и оно никому не ушло */
+    boolean broadcast(String sender, String room, String msg) {
         if (msg == null || msg.trim().isEmpty()) {
-            return; // Игнорируем пустые сообщения
+            return true; // Игнорируем пустые сообщения
+        }
+        ChatRoom target = rooms.get(room);
+        if (target == null) {
+            return true; // из комнаты уже все вышли
+        }
+
+        long timestamp = System.currentTimeMillis();
+        if (!publish(target, sender, room, timestamp, LocalDateTime.now(), msg)) {
+            return false;
         }
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.relay(sender, room, timestamp, msg); // соседи разошлют его своим клиентам
+        }
+        return true;
+    }
 
-        LocalDateTime now = LocalDateTime.now();
-        String logEntry = "[" + now.toString() + "] [" + sender + "]: " + msg + "\n";
+    /* Сообщение клиента соседнего узла: записываем в свой журнал и рассылаем своим участникам комнаты.
+    Дальше оно не пересылается — источник сам отправил его каждому соседу */
+    void deliverRemote(String sender, String room, long timestamp, String msg) {
+        metrics.onRelayedIn();
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        publish(rooms.get(room), sender, room, timestamp, time, msg);
+    }
 
-        appendLog(logEntry); // добавляем сформированную запись в файл журнала
+    // Пишет сообщение в журнал и, если в комнате кто-то есть, рассылает его; false — журнал его не принял
+    private boolean publish(ChatRoom target, String sender, String room, long timestamp, LocalDateTime time, String msg) {
+        boolean general = RoomRegistry.DEFAULT_ROOM.equals(room);
+        String roomTag = general ? "" : " [#" + room + "]";
+        String logEntry = "[" + time.toString() + "] [" + sender + "]" + roomTag + ": " + msg + "\n";
 
-        /* Перебираем всех зарегистрированных пользователей и отправляем каждому сообщение через
-         соответствующий PrintWriter. Метод flush() гарантирует немедленную передачу данных */
-        clients.values().forEach(writer -> {
-            writer.println(logEntry.trim());
-            writer.flush();
-        });
+        long sequence = appendLog(logEntry); // добавляем сформированную запись в файл журнала
+        if (sequence < 0) {
+            return false; // сообщение без записи в журнал не рассылается: его нельзя было бы продолжить после обрыва
+        }
+        if (target == null) {
+            return true; // на этом узле в комнате никого нет
+        }
+
+        // Каждый формат кодируется один раз, все участники комнаты разделяют одни и те же байты
+        long started = System.nanoTime();
+        int delivered = target.publish(new ChatMessage(BinaryProtocol.CHAT, senders.intern(sender), timestamp, sequence,
+                general ? null : room, msg, logEntry.trim()));
+        metrics.onFanOut(System.nanoTime() - started);
+        metrics.onMessagesOut(delivered);
+        return true;
+    }
+
+    /* Перебираем всех зарегистрированных пользователей независимо от комнат и ставим сообщение в очередь каждой сессии.
+    В сокеты пишут писатели сессий, поэтому стоимость рассылки не зависит от скорости получателей.
+    Кадры только для чтения: сессии копируют из них байты по абсолютным индексам и не сдвигают их позицию */
+    void fanOut(ChatMessage message) {
+        for (ClientSession session : clients.values()) {
+            session.deliver(message, null, Long.MAX_VALUE);
+        }
+    }
+
+    // Рассылка готового сообщения участникам одной комнаты, без журнала
+    void fanOut(String room, ChatMessage message) {
+        ChatRoom target = rooms.get(room);
+        if (target != null) {
+            target.publish(message);
+        }
+    }
+
+    SenderDirectory getSenders() {
+        return senders;
+    }
+
+    /* Регистрирует пользователя под именем из первой строки протокола.
+    Возвращает false, если имя пустое и соединение нужно закрыть */
+    boolean register(String username, ClientSession session) {
+        if (username == null || username.isEmpty()) {
+            logger.info("Отказано в регистрации: Имя пользователя не предоставлено");
+            return false;
+        }
+        if (stopping.get()) {
+            session.send(SHUTDOWN_NOTICE);
+            return false;
+        }
+        session.setUsername(username);
+        session.setRateLimiter(newRateLimiter());
+        SenderDirectory.Sender self = senders.intern(username);
+        if (session.isBinary()) {
+            session.enqueue(BinaryProtocol.welcome(self.id())); // номер своего имени клиент узнаёт первым
+        }
+        int capacity = mailboxCapacity;
+        Mailbox mailbox = capacity == 0 ? null : mailboxes.computeIfAbsent(username, key -> new Mailbox(capacity));
+        clients.put(username, session);
+        ResumeRequest resume = session.getResume();
+        boolean gap = resume != null && resume.logId() == logWriter.getLog().logId();
+        if (gap) {
+            // Продолжение после обрыва: пропущенное придёт из журнала, живые сообщения подождут его окончания
+            session.beginReplay();
+            rooms.rejoin(RoomRegistry.DEFAULT_ROOM, session);
+            resume.rooms().forEach(room -> rooms.rejoin(room, session));
+        } else {
+            // Каждый пользователь начинает в общей комнате и получает её историю
+            rooms.join(RoomRegistry.DEFAULT_ROOM, session);
+            if (resume != null) {
+                resume.rooms().forEach(room -> rooms.join(room, session)); // журнал другой: только история комнат
+            }
+        }
+        session.setActiveRoom(RoomRegistry.DEFAULT_ROOM);
+        logger.info("Пользователь '{}' присоединился.", username);
+        if (pingIntervalMillis > 0) {
+            session.touch();
+            scheduleIdleCheck(session, TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis));
+        }
+        if (mailbox != null) {
+            // Личные сообщения, пришедшие, пока пользователя не было, отдаём после истории
+            int stored;
+            synchronized (mailbox) {
+                stored = mailbox.drainTo(session);
+            }
+            if (stored > 0) {
+                logger.info("Пользователю '{}' переданы отложенные личные сообщения: {}", username, stored);
+            }
+        }
+        if (gap) {
+            Thread.ofVirtual().name("chat-resume-" + username).start(() -> resume(session, resume.lastSeen()));
+        } else if (resume != null) {
+            session.send(BinaryProtocol.RESUMED_LINE + " " + logWriter.getLog().logId());
+        }
+        return true;
+    }
+
+    /* Строковый клиент может до имени прислать «/resume <журнал> <номер> [комнаты...]» (ResumeRequest).
+    Возвращает false, если строка не такая — тогда это имя */
+    boolean acceptResume(ClientSession session, String line) {
+        if (session.isBinary() || session.getResume() != null || !line.startsWith(BinaryProtocol.RESUME_LINE + " ")) {
+            return false;
+        }
+        ResumeRequest request = ResumeRequest.parse(line);
+        if (request == null) {
+            session.send("Использование: /resume <журнал> <номер> [комнаты...]");
+        } else {
+            session.setResume(request);
+        }
+        return true;
+    }
+
+    /* Отдаёт сессии записи журнала после lastSeen, которые она получила бы, будучи на связи: сообщения её комнат
+    и личные сообщения ей. Живые сообщения в это время откладываются сессией и уходят следом; попавшие и туда,
+    и сюда клиент отбрасывает по номеру. Журнал читается кусками через отображённые в память сегменты,
+    и следующий кусок ставится, только когда в очереди сессии есть место, поэтому пропуск любой длины
+    не заполняет очередь и не задерживает рассылку. Выполняется в отдельном виртуальном потоке */
+    private void resume(ClientSession session, long lastSeen) {
+        SegmentedLog log = logWriter.getLog();
+        int streamed = 0;
+        try {
+            long end = logWriter.nextSequence();
+            logWriter.sync(LOG_SYNC_TIMEOUT_MILLIS); // все записи до end уже в файле
+            long from = lastSeen + 1;
+            while (from < end && !session.closedFuture().isDone()) {
+                List<LogRecord> records = log.range(from, (int) Math.min(RESUME_CHUNK, end - from));
+                if (records.isEmpty()) {
+                    break;
+                }
+                for (LogRecord record : records) {
+                    String line = record.text().trim();
+                    if (record.sequence() < end && visibleTo(session, line)) {
+                        while (session.outboundQueue().remainingCapacity() == 0 && !session.closedFuture().isDone()) {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                        }
+                        session.enqueue(ClientSession.frame(ChatMessage.sequenced(record.sequence(), line)));
+                        streamed++;
+                    }
+                }
+                from = records.get(records.size() - 1).sequence() + 1;
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Ошибка чтения журнала для пользователя '{}': {}", session.getUsername(), ex.getMessage());
+        } finally {
+            session.finishReplay(List.of(), null, Long.MAX_VALUE);
+            session.send(BinaryProtocol.RESUMED_LINE + " " + log.logId());
+        }
+        logger.info("Пользователь '{}' продолжил с записи {}, передано пропущенных: {}", session.getUsername(),
+                lastSeen + 1, streamed);
+    }
+
+    /* Видна ли сессии запись журнала «[время] [отправитель] [#комната]: текст»: сообщение её комнаты
+    или личное сообщение ей («[время] [отправитель -> получатель]: текст») */
+    private static boolean visibleTo(ClientSession session, String entry) {
+        int at = entry.indexOf("] [");
+        int end = at < 0 ? -1 : entry.indexOf(']', at + 3);
+        if (end < 0) {
+            return false;
+        }
+        String sender = entry.substring(at + 3, end);
+        int arrow = sender.indexOf(" -> ");
+        if (arrow >= 0) {
+            return sender.substring(arrow + 4).equals(session.getUsername());
+        }
+        String room = RoomRegistry.DEFAULT_ROOM;
+        if (entry.startsWith(" [#", end + 1)) {
+            int close = entry.indexOf(']', end + 4);
+            if (close < 0) {
+                return false;
+            }
+            room = entry.substring(end + 4, close);
+        }
+        return session.getRooms().contains(room);
+    }
+
+    private void scheduleIdleCheck(ClientSession session, long delayNanos) {
+        session.setIdleCheck(timers.schedule(() -> checkIdle(session), delayNanos));
+    }
+
+    /* Проверка простоя в потоке колеса таймеров: если клиент молчит дольше интервала, посылаем PING
+    и ждём до срока простоя; если молчит и дольше срока — отключаем. Иначе проверим снова, когда
+    с последнего признака жизни пройдёт интервал. Стоимость не зависит от числа соединений */
+    private void checkIdle(ClientSession session) {
+        long pingNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        if (timeoutNanos == 0 || clients.get(session.getUsername()) != session) {
+            return; // проверки выключены или клиент уже отключился
+        }
+        long idle = System.nanoTime() - session.getLastInbound();
+        if (idle >= timeoutNanos) {
+            metrics.onIdleEviction();
+            logger.info("Пользователь '{}' не отвечает {} мс и будет отключён", session.getUsername(),
+                    TimeUnit.NANOSECONDS.toMillis(idle));
+            session.close();
+        } else if (idle >= pingNanos) {
+            session.sendPing();
+            scheduleIdleCheck(session, timeoutNanos - idle);
+        } else {
+            scheduleIdleCheck(session, pingNanos - idle);
+        }
+    }
+
+    /* Учитывает принятую от пользователя строку размером bytes в его лимите. Возвращает, на сколько
+    наносекунд транспорт должен перестать читать соединение (0 — читать дальше), или -1, если
+    пользователь слишком долго превышает лимит и соединение надо закрыть. Пока очередь журнала
+    перегружена, чтение тоже приостанавливается: так отправители ждут диск вне журнала
+    и никогда не в потоке цикла событий */
+    long admit(ClientSession session, int bytes) {
+        RateLimiter limiter = session.getRateLimiter();
+        long pause = limiter == null ? 0 : limiter.acquire(bytes, System.nanoTime());
+        if (pause >= 0 && logWriter.isBacklogged()) {
+            pause = Math.max(pause, LOG_BACKLOG_PAUSE_NANOS);
+        }
+        if (pause > 0) {
+            metrics.onThrottled();
+        } else if (pause < 0) {
+            metrics.onRateLimitDisconnect();
+            logger.warn("Пользователь '{}' слишком долго превышает лимит сообщений и будет отключён",
+                    session.getUsername());
+            session.send("Слишком много сообщений: соединение закрыто");
+        }
+        return pause;
+    }
+
+    // Удаляет сессию из активного списка (если под этим именем не зарегистрирована уже другая)
+    void unregister(ClientSession session) {
+        if (session.getUsername() == null) {
+            return; // клиент так и не зарегистрировался
+        }
+        rooms.leaveAll(session);
+        TimerWheel.Timeout idleCheck = session.getIdleCheck();
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        if (clients.remove(session.getUsername(), session)) {
+            logger.info("Пользователь '{}' покинул чат.", session.getUsername());
+            if (session.getDroppedFrames() > 0) {
+                logger.info("Пользователю '{}' не доставлено сообщений: {}", session.getUsername(),
+                        session.getDroppedFrames());
+            }
+        }
+    }
+
+    // Обрабатывает очередную строку от зарегистрированного клиента: команду комнат или сообщение в активную комнату
+    void onMessage(ClientSession session, String line) {
+        if (BinaryProtocol.PONG_LINE.equals(line)) {
+            return; // ответ на проверку связи; признак жизни уже учтён при чтении
+        }
+        metrics.onMessageIn();
+        // Каждое сообщение печатается только на уровне DEBUG: синхронный вывод на горячем пути слишком дорог
+        logger.debug("Принято от клиента {}: {}", session.getUsername(), line);
+        if (line.startsWith("/msg ")) {
+            String[] parts = line.substring("/msg ".length()).trim().split("\\s+", 2);
+            if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                session.send("Использование: /msg <пользователь> <текст>");
+                return;
+            }
+            DeliveryStatus status = sendDirect(session.getUsername(), parts[0], parts[1]);
+            if (status == DeliveryStatus.DELIVERED) {
+                metrics.onMessagesOut(1);
+            }
+            reportDelivery(session, parts[0], status);
+            return;
+        }
+        if (line.startsWith("/join ")) {
+            joinRoom(session, line.substring("/join ".length()).trim());
+            return;
+        }
+        if (line.startsWith("/leave ")) {
+            leaveRoom(session, line.substring("/leave ".length()).trim());
+            return;
+        }
+        if (line.startsWith("/search ")) {
+            // Ответ придёт из потока поиска: поток, читающий соединение, дальше обслуживает сообщения
+            searchIndex.submit(line.substring("/search ".length()), entry -> visibleTo(session, entry), session::send);
+            return;
+        }
+        String room = session.getActiveRoom();
+        if (room == null) {
+            session.send("Вы не состоите ни в одной комнате: войдите командой /join <комната>");
+            return;
+        }
+        if (!broadcast(session.getUsername(), room, line)) {
+            session.send(LOG_UNAVAILABLE);
+        }
+    }
+
+    /* Личное сообщение: кадр ставится только в очередь получателя, найденного по имени в реестре,
+    остальные сессии и комнаты не затрагиваются. Если получателя нет на этом узле, а узел состоит в кластере,
+    сообщение пересылается соседям. Иначе, если получателя нет в сети, сообщение кладётся в его почтовый ящик
+    (если ящики включены и пользователь уже входил на сервер) */
+    DeliveryStatus sendDirect(String sender, String recipient, String text) {
+        long timestamp = System.currentTimeMillis();
+        ChatMessage message = directMessage(sender, recipient, timestamp, LocalDateTime.now(), text);
+        if (message == null) {
+            return DeliveryStatus.REJECTED;
+        }
+
+        ClusterNode node = cluster;
+        Mailbox mailbox = mailboxes.get(recipient);
+        if (mailbox == null) {
+            ClientSession target = clients.get(recipient);
+            if (target != null && target.deliver(message, null, Long.MAX_VALUE)) {
+                return DeliveryStatus.DELIVERED;
+            }
+            return node != null && node.relayDirect(sender, recipient, timestamp, text)
+                    ? DeliveryStatus.RELAYED : DeliveryStatus.UNKNOWN_USER;
+        }
+        synchronized (mailbox) {
+            ClientSession target = clients.get(recipient);
+            if (target != null && target.deliver(message, null, Long.MAX_VALUE)) {
+                return DeliveryStatus.DELIVERED;
+            }
+            // В кластере получатель может быть на другом узле; ящик ведётся только без соседей
+            if (node != null && node.relayDirect(sender, recipient, timestamp, text)) {
+                return DeliveryStatus.RELAYED;
+            }
+            mailbox.store(message);
+            return DeliveryStatus.STORED;
+        }
+    }
+
+    /* Личное сообщение клиента соседнего узла. Доставляет его только узел, к которому подключён получатель:
+    он записывает сообщение в свой журнал (оттуда его вернёт /resume) и ставит в очередь получателя */
+    void deliverRemoteDirect(String sender, String recipient, long timestamp, String text) {
+        metrics.onRelayedIn();
+        ClientSession target = clients.get(recipient);
+        if (target == null) {
+            return; // получатель на другом узле или не в сети
+        }
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        ChatMessage message = directMessage(sender, recipient, timestamp, time, text);
+        if (message == null) {
+            logger.warn("Журнал не принял личное сообщение для '{}' с соседнего узла", recipient);
+        } else if (target.deliver(message, null, Long.MAX_VALUE)) {
+            metrics.onMessagesOut(1);
+        }
+    }
+
+    // Записывает личное сообщение в журнал и готовит его кадры; null — журнал запись не принял
+    private ChatMessage directMessage(String sender, String recipient, long timestamp, LocalDateTime time, String text) {
+        String logEntry = "[" + time.toString() + "] [" + sender + " -> " + recipient + "]: " + text + "\n";
+        long sequence = appendLog(logEntry);
+        if (sequence < 0) {
+            return null;
+        }
+        return new ChatMessage(BinaryProtocol.DIRECT, senders.intern(sender), timestamp, sequence, null,
+                text, logEntry.trim());
+    }
+
+    // Сообщает отправителю личного сообщения, что с ним стало
+    private void reportDelivery(ClientSession sender, String recipient, DeliveryStatus status) {
+        switch (status) {
+            case DELIVERED:
+                sender.send("Доставлено пользователю " + recipient);
+                break;
+            case STORED:
+                sender.send("Пользователь " + recipient + " не в сети, сообщение будет доставлено при входе");
+                break;
+            case REJECTED:
+                sender.send(LOG_UNAVAILABLE);
+                break;
+            case RELAYED:
+                sender.send("Пользователь " + recipient + " не на этом узле, сообщение передано узлам кластера");
+                break;
+            default:
+                sender.send("Пользователь " + recipient + " не найден");
+        }
+    }
+
+    /* Команда /join <комната>: вход в комнату (она создаётся при первом входе) и получение её истории.
+    Комната становится активной: в неё уходят следующие сообщения пользователя */
+    void joinRoom(ClientSession session, String room) {
+        if (!RoomRegistry.isValidName(room)) {
+            session.send("Недопустимое имя комнаты: " + room);
+            return;
+        }
+        if (rooms.join(room, session)) {
+            logger.info("Пользователь '{}' вошёл в комнату #{}", session.getUsername(), room);
+        }
+        session.setActiveRoom(room);
+        session.send("Вы в комнате #" + room);
+    }
+
+    /* Команда /leave <комната>: выход из комнаты. Если она была активной, активной становится общая комната
+    (если пользователь в ней) или любая другая из его комнат */
+    void leaveRoom(ClientSession session, String room) {
+        if (!rooms.leave(room, session)) {
+            session.send("Вы не состоите в комнате #" + room);
+            return;
+        }
+        logger.info("Пользователь '{}' вышел из комнаты #{}", session.getUsername(), room);
+        if (room.equals(session.getActiveRoom())) {
+            String next = session.getRooms().contains(RoomRegistry.DEFAULT_ROOM) ? RoomRegistry.DEFAULT_ROOM
+                    : session.getRooms().stream().findFirst().orElse(null);
+            session.setActiveRoom(next);
+        }
+        session.send("Вы вышли из комнаты #" + room
+                + (session.getActiveRoom() == null ? "" : "; сообщения уходят в #" + session.getActiveRoom()));
     }
 
     /* Метод handleClient() обслуживает одного конкретного клиента. Получает входящий поток данных
-     от клиента и выходной поток для передачи сообщений обратно клиенту */
+     от клиента и выходной поток для передачи сообщений обратно клиенту.
+     По первому байту определяет протокол: MAGIC — двоичный, иначе строковый (первая строка — имя) */
     private void handleClient(Socket socket) {
-        try (
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)
-        ) {
-            String username = reader.readLine().trim(); // Прочитайте строку и удалите пробелы
-            if (username.isEmpty()) {
-                System.out.println("Отказано в регистрации: Имя пользователя не предоставлено");
-                return; // Закрываем соединение сразу
-            }
-            clients.put(username, writer);
-            System.out.println("Пользователь '" + username + "' присоединился.");
-
-            /* Циклически читаем сообщения от клиента, пока тот не пошлет команду /exit. Все принятые
-            сообщения транслируются остальным участникам чата методом broadcast() */
-            String line;
-
-            while ((line = reader.readLine()) != null && !"/exit".equals(line)) {
-                if (line == null || line.trim().isEmpty()) {
-                    continue; // Пропустим пустые строки
-                }
-                System.out.println("Принято от клиента: " + line);
-                broadcast(username, line);
+        BlockingSession session = new BlockingSession(socket, outboundQueueCapacity, overflowPolicy);
+        try (InputStream in = new BufferedInputStream(socket.getInputStream())) {
+            in.mark(1);
+            int first = in.read();
+            if (first < 0) {
+                return; // Клиент отключился, не представившись
+            }
+            if (first == BinaryProtocol.MAGIC) {
+                session.setBinary(true);
+                serveBinary(session, in);
+            } else {
+                in.reset();
+                serveText(session, new LineReader(in, maxLineLength));
             }
 
             // удаляем клиента из активного списка и закрываем соединение, если произошла ошибка
-            clients.remove(username);
-            System.out.println("Пользователь '" + username + "' покинул чат.");
-        } catch (IOException ex) {
-            System.err.println("Ошибка при обработке клиента: " + ex.getMessage());
+            unregister(session);
+        } catch (IOException | RejectedExecutionException ex) {
+            if (stopping.get()) {
+                logger.debug("Соединение закрыто при остановке сервера: {}", ex.getMessage());
+            } else {
+                logger.warn("Ошибка при обработке клиента: {}", ex.getMessage());
+            }
+            unregister(session);
+        } finally {
+            session.close();
         }
     }
-    // Метод добавляет запись в файл журнала, дополняя его существующими данными
-    private void appendLog(String entry) {
-        try {
 
-            Path rootProjectDir = Paths.get(".").toAbsolutePath().normalize(); // находим текущий рабочий каталог
-            Path resourceDir = rootProjectDir.resolve("src/main/resources"); // строим путь к src/main/resources
-            Path logPath = resourceDir.resolve("file.log"); // получаем путь к файлу лога
+    // Строковый протокол: первая строка — имя, дальше сообщения и команды до /exit
+    private void serveText(BlockingSession session, LineReader reader) throws IOException {
+        String firstLine = reader.readLine();
+        if (firstLine != null && acceptResume(session, firstLine)) {
+            firstLine = reader.readLine(); // после /resume идёт имя
+        }
+        if (firstLine == null) {
+            return; // Клиент отключился, не представившись
+        }
+        String username = firstLine.trim(); // Прочитайте строку и удалите пробелы
+        if (!register(username, session)) {
+            return; // Закрываем соединение сразу
+        }
+        /* Писатель сессии работает отдельной задачей своего исполнителя, а не пула обработчиков:
+        иначе в режиме POOL писатели ждали бы в очереди пула за читателями */
+        writerExecutor.execute(session::writeLoop);
+
+        /* Циклически читаем сообщения от клиента, пока тот не пошлет команду /exit. Все принятые
+        сообщения транслируются остальным участникам чата методом broadcast() */
+        String line;
+
+        while ((line = reader.readLine()) != null && !"/exit".equals(line)) {
+            session.touch();
+            if (!line.trim().isEmpty()) { // Пропустим пустые строки
+                onMessage(session, line);
+            }
+            if (!throttle(session, reader.lastBytes())) {
+                return;
+            }
+        }
+    }
+
+    /* Двоичный протокол: байт версии, кадр HELLO с именем, дальше кадры TEXT с тем же содержимым,
+    что и строки строкового протокола. Кадры читаются в один переиспользуемый массив */
+    private void serveBinary(BlockingSession session, InputStream in) throws IOException {
+        int version = in.read();
+        if (version == BinaryProtocol.VERSION_DEFLATE) {
+            session.setCompressor(compressor);
+        } else if (version != BinaryProtocol.VERSION) {
+            return; // неподдерживаемая версия протокола
+        }
+        BinaryFrameReader frames = new BinaryFrameReader(in, maxLineLength + 1); // строка и байт типа
+        if (!frames.next() || frames.type() != BinaryProtocol.HELLO || !register(frames.text().trim(), session)) {
+            return;
+        }
+        writerExecutor.execute(session::writeLoop);
+
+        while (frames.next()) {
+            session.touch();
+            if (frames.type() == BinaryProtocol.PONG) {
+                continue;
+            }
+            if (frames.type() != BinaryProtocol.TEXT) {
+                return; // ошибка протокола
+            }
+            String line = frames.text();
+            if ("/exit".equals(line)) {
+                return;
+            }
+            if (!line.trim().isEmpty()) {
+                onMessage(session, line);
+            }
+            if (!throttle(session, frames.length())) {
+                return;
+            }
+        }
+    }
 
-            Files.writeString(logPath, entry + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        } catch (IOException ex) {
-            System.err.println("Ошибка записи в лог-файл: " + ex.getMessage());
+    /* Блокирующий режим: пока пользователь в долгу по лимиту, поток не читает его сокет,
+    и отправитель упирается в заполненные буферы TCP. false — соединение пора закрыть */
+    private boolean throttle(ClientSession session, int bytes) {
+        long pause = admit(session, bytes);
+        if (pause > 0) {
+            LockSupport.parkNanos(pause);
         }
+        return pause >= 0 && !Thread.currentThread().isInterrupted();
+    }
+
+    /* Метод добавляет запись в файл журнала, дополняя его существующими данными, и возвращает её номер
+    (-1 — журнал неисправен или его очередь полна). Сама запись на диск выполняется фоновым
+    писателем, вызывающий поток не ждёт ни диска, ни места в очереди */
+    private long appendLog(String entry) {
+        return logWriter.append(entry);
     }
 
     public void stop() {
+        stop(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    /* Мягкая остановка не дольше timeoutMillis: сервер перестаёт принимать соединения, сообщает
+    всем клиентам об остановке, параллельно дописывает каждому его очередь и закрывает соединения,
+    затем дописывает журнал. Что не успело за отведённое время, закрывается принудительно.
+    Возвращает true, если всё завершилось вовремя. Повторный вызов ничего не делает */
+    public boolean stop(long timeoutMillis) {
+        if (!stopping.compareAndSet(false, true)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // 1. Больше не принимаем соединения; уже открытые пока обслуживаются
+        if (nioEngine != null) {
+            nioEngine.stopAccepting();
+        }
+        if (clientExecutor != null) {
+            clientExecutor.shutdown(); // новые обработчики больше не принимаются
+        }
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+        }
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                logger.warn("Ошибка закрытия серверного сокета", e);
+            }
+        }
+
+        synchronized (this) {
+            if (settingsWatcher != null) {
+                settingsWatcher.close();
+            }
+        }
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.stop(); // соседи перестают присылать сообщения, а их узлы узнают об остановке по обрыву связи
+        }
+
+        // 2. Уведомление встаёт в конец каждой очереди; соединения дописываются и закрываются параллельно
+        List<CompletableFuture<Void>> closing = new ArrayList<>();
+        for (ClientSession session : clients.values()) {
+            session.send(SHUTDOWN_NOTICE);
+            closing.add(session.drainAndClose());
+        }
+        boolean drained = await(CompletableFuture.allOf(closing.toArray(CompletableFuture<?>[]::new)), deadline);
+        if (!drained) {
+            logger.warn("Не все клиенты получили свои сообщения до остановки: {}", clients.size());
+            for (ClientSession session : clients.values()) {
+                session.close();
+            }
+        }
+
+        // 3. Дописываем в файл всё, что осталось в очереди журнала
+        boolean logged = logWriter.close(Math.max(1, remainingMillis(deadline)));
+        if (!logged) {
+            logger.error("Журнал не успел записать очередь: {} записей", logWriter.backlog());
+        }
+
+        searchIndex.stop(Math.max(1, remainingMillis(deadline))); // индекс текущего сегмента сохраняется на диск
+
+        // 4. Останавливаем потоки обслуживания соединений
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+        }
+        terminate(clientExecutor, deadline);
+        terminate(writerExecutor, deadline);
+        timers.stop();
+        stopMetrics();
+        logger.info("Сервер остановлен{}", drained && logged ? "" : " (по истечении срока)");
+        return drained && logged;
+    }
+
+    private static void terminate(ExecutorService executor, long deadline) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private static boolean await(CompletableFuture<Void> future, long deadline) {
+        try {
+            future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+    // Запускает пересчёт метрик раз в секунду, регистрирует MBean и, если задан порт, HTTP-точку
+    private synchronized void startMetrics() {
+        metricsTicker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.attach(this); // до публикации: MBean и HTTP-точка снимают показатели с сервера
+        metricsTicker.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        try {
+            ObjectName name = new ObjectName("chat:type=ChatServer,port=" + PORT);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            logger.warn("MBean метрик не зарегистрирован: {}", ex.getMessage());
+        }
+        if (metricsPort > 0) {
+            try {
+                metricsHttp = metrics.startHttpEndpoint(metricsPort);
+                logger.info("Метрики доступны на http://localhost:{}/metrics", metricsPort);
+            } catch (IOException ex) {
+                logger.warn("HTTP-точка метрик не запущена: {}", ex.getMessage());
             }
         }
     }
 
+    private synchronized void stopMetrics() {
+        if (metricsTicker != null) {
+            metricsTicker.shutdownNow();
+        }
+        if (metricsHttp != null) {
+            metricsHttp.stop(0);
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                logger.warn("MBean метрик не снят с регистрации: {}", ex.getMessage());
+            }
+            metricsName = null;
+        }
+    }
+
+    // Добавляет запись в журнал и дожидается, пока она окажется в файле
     public void addLogEntry(String entry) {
         appendLog(entry);
+        logWriter.sync(LOG_SYNC_TIMEOUT_MILLIS);
     }
 
+    // Рассылает сообщение от имени sender в общую комнату и дожидается его записи в журнал
     public void sendMessage(String sender, String message) {
-        broadcast(sender, message);
+        sendMessage(sender, RoomRegistry.DEFAULT_ROOM, message);
+    }
+
+    // Рассылает сообщение от имени sender участникам комнаты room и дожидается его записи в журнал
+    public void sendMessage(String sender, String room, String message) {
+        broadcast(sender, room, message);
+        logWriter.sync(LOG_SYNC_TIMEOUT_MILLIS);
     }
 
     // Главная точка входа приложения.
     // Читаем порт из файла настроек и запускаем сервер на указанном порту.
     public static void main(String[] args) throws Exception {
-        //String settingsFileName = "src/main/resources/settings.txt"; // Файл конфигурации
-        // int port = readPortFromSettings(settingsFileName);
-
-        // используем механизм загрузки ресурсов, чтобы не использовать относительный путь
-        Path settingsPath = Paths.get(ChatServer.class.getClassLoader().getResource("settings.txt").toURI());
-        int port = readPortFromSettings(settingsPath.toString());
-        new ChatServer(port).run();
+        // Настройки из -Dchat.settings=путь или из settings.txt в classpath; ошибка в файле не даёт запуститься
+        ChatSettings settings = ChatSettings.load();
+        // Необязательные аргументы перекрывают файл: режим работы (platform, pool, virtual, nio) и размер пула для pool
+        ServerMode mode = args.length > 0 ? ServerMode.parse(args[0]) : settings.getMode();
+        ChatServer server = new ChatServer(settings.getPort(), mode);
+        server.configure(settings);
+        if (args.length > 1) {
+            server.setPoolSize(Integer.parseInt(args[1]));
+        }
+        server.setMetricsPort(Integer.getInteger("chat.metrics.port", settings.getMetricsPort())); // -Dchat.metrics.port=9090
+        if (settings.getFile() != null) {
+            server.watchSettings(settings.getFile()); // внешний файл перечитывается при изменении
+        }
+        // При остановке процесса клиенты получают уведомление и свои очереди, журнал дописывается
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.run();
     }
 
-    // Метод читает число из файла настроек и возвращает его в виде целочисленного значения
+    // Порт из файла настроек
     public static int readPortFromSettings(String filename) throws IOException {
-        String content = Files.readString(Path.of(filename));
-        return Integer.parseInt(content.trim()); // trim() уберёт пробелы и переводы строки
+        return ChatSettings.load(Path.of(filename)).getPort();
     }
 }
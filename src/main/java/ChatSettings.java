@@ -0,0 +1,322 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+
+/* Настройки сервера и клиента из файла settings.txt: строки «ключ=значение», # — комментарий.
+Прежний формат, одно число, по-прежнему означает порт. Файл ищется по пути из -Dchat.settings,
+иначе загружается из classpath (getResourceAsStream работает и внутри jar).
+Все значения проверяются при загрузке: неизвестный ключ — ошибка с номером строки, недопустимое значение —
+с именем настройки, а не тихое значение по умолчанию. Объект неизменяемый; при перечитывании файла создаётся новый */
+public final class ChatSettings {
+    public static final String RESOURCE = "settings.txt";
+    public static final String PATH_PROPERTY = "chat.settings";
+    static final int DEFAULT_MAX_LINE_LENGTH = 256 * 1024; // длина строки от клиента, после которой соединение закрывается
+
+    // Ключи и значения по умолчанию; порядок — как в документации
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("port", "8080");
+        DEFAULTS.put("host", "localhost"); // адрес сервера для клиента
+        DEFAULTS.put("mode", "platform");
+        DEFAULTS.put("pool.size", "200");
+        DEFAULTS.put("queue.capacity", "1024");
+        DEFAULTS.put("queue.overflow", "drop_oldest");
+        DEFAULTS.put("log.flush.entries", "256");
+        DEFAULTS.put("log.flush.interval.ms", "100");
+        DEFAULTS.put("log.fsync", "false");
+        DEFAULTS.put("log.fsync.interval.ms", "0");
+        DEFAULTS.put("history.messages", "50");
+        DEFAULTS.put("history.max.age.ms", "0");
+        DEFAULTS.put("mailbox.capacity", "100");
+        DEFAULTS.put("rate.messages", "20");
+        DEFAULTS.put("rate.bytes", "16384");
+        DEFAULTS.put("rate.disconnect.ms", "10000");
+        DEFAULTS.put("heartbeat.ping.ms", "30000");
+        DEFAULTS.put("heartbeat.idle.ms", "90000");
+        DEFAULTS.put("max.line.length", String.valueOf(DEFAULT_MAX_LINE_LENGTH));
+        DEFAULTS.put("metrics.port", "0");
+        DEFAULTS.put("compression.threshold", "512");
+        DEFAULTS.put("compression.level", "1");
+        DEFAULTS.put("cluster.port", "0");
+        DEFAULTS.put("cluster.peers", "");
+    }
+
+    /* Эти настройки действуют только при запуске; остальные сервер применяет на лету при изменении файла.
+    host читает только клиент, поэтому его изменение перезапуска сервера не требует */
+    static final Set<String> RESTART_KEYS = Set.of("port", "mode", "pool.size", "history.messages",
+            "history.max.age.ms", "mailbox.capacity", "metrics.port", "cluster.port", "cluster.peers");
+
+    private final Map<String, String> values;
+    private final Path file; // null — загружены из classpath
+
+    private final int port;
+    private final String host;
+    private final ServerMode mode;
+    private final int poolSize;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final LogFlushPolicy logFlushPolicy;
+    private final int historyMessages;
+    private final long historyMaxAgeMillis;
+    private final int mailboxCapacity;
+    private final int rateLimitMessages;
+    private final int rateLimitBytes;
+    private final long rateLimitDisconnectMillis;
+    private final long pingIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final int maxLineLength;
+    private final int metricsPort;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final int clusterPort;
+    private final List<InetSocketAddress> peers;
+
+    private ChatSettings(Map<String, String> values, Path file) {
+        this.values = values;
+        this.file = file;
+        port = intValue("port", 1, 65535);
+        host = values.get("host").trim();
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("Настройка host не может быть пустой");
+        }
+        mode = enumValue("mode", ServerMode::parse);
+        poolSize = intValue("pool.size", 1, Integer.MAX_VALUE);
+        queueCapacity = intValue("queue.capacity", 1, Integer.MAX_VALUE);
+        overflowPolicy = enumValue("queue.overflow", OverflowPolicy::parse);
+        logFlushPolicy = new LogFlushPolicy(intValue("log.flush.entries", 1, Integer.MAX_VALUE),
+                longValue("log.flush.interval.ms"), booleanValue("log.fsync"), longValue("log.fsync.interval.ms"));
+        historyMessages = intValue("history.messages", 0, Integer.MAX_VALUE);
+        historyMaxAgeMillis = longValue("history.max.age.ms");
+        mailboxCapacity = intValue("mailbox.capacity", 0, Integer.MAX_VALUE);
+        rateLimitMessages = intValue("rate.messages", 0, Integer.MAX_VALUE);
+        rateLimitBytes = intValue("rate.bytes", 0, Integer.MAX_VALUE);
+        rateLimitDisconnectMillis = longValue("rate.disconnect.ms");
+        if ((rateLimitMessages == 0) != (rateLimitBytes == 0)) {
+            throw new IllegalArgumentException("rate.messages и rate.bytes должны быть оба положительными или оба нулевыми");
+        }
+        pingIntervalMillis = longValue("heartbeat.ping.ms");
+        idleTimeoutMillis = longValue("heartbeat.idle.ms");
+        if ((pingIntervalMillis == 0) != (idleTimeoutMillis == 0) || idleTimeoutMillis < pingIntervalMillis) {
+            throw new IllegalArgumentException("heartbeat.idle.ms должен быть не меньше heartbeat.ping.ms, оба — положительные или нули");
+        }
+        maxLineLength = intValue("max.line.length", 1, Integer.MAX_VALUE);
+        metricsPort = intValue("metrics.port", 0, 65535);
+        compressionThreshold = intValue("compression.threshold", 0, Integer.MAX_VALUE);
+        compressionLevel = intValue("compression.level", Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION);
+        clusterPort = intValue("cluster.port", 0, 65535);
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : values.get("cluster.peers").split(",")) {
+            if (!peer.isBlank()) {
+                addresses.add(ClusterNode.parseAddress(peer.trim()));
+            }
+        }
+        peers = Collections.unmodifiableList(addresses);
+    }
+
+    // Настройки из файла по пути из -Dchat.settings, а если он не задан — из settings.txt в classpath
+    public static ChatSettings load() throws IOException {
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path != null) {
+            return load(Path.of(path));
+        }
+        try (InputStream in = ChatSettings.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                throw new FileNotFoundException("Файл настроек " + RESOURCE + " не найден в classpath");
+            }
+            return parse(new String(in.readAllBytes(), StandardCharsets.UTF_8), RESOURCE, null);
+        }
+    }
+
+    public static ChatSettings load(Path file) throws IOException {
+        return parse(Files.readString(file), file.toString(), file.toAbsolutePath());
+    }
+
+    // Настройки по умолчанию; в тестах и встраиваемом сервере — без файла
+    public static ChatSettings defaults() {
+        return new ChatSettings(new LinkedHashMap<>(DEFAULTS), null);
+    }
+
+    static ChatSettings parse(String content, String source, Path file) {
+        Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+        String[] lines = content.split("\n");
+        boolean first = true;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if (eq < 0) {
+                if (first) {
+                    values.put("port", line); // прежний формат: файл из одного номера порта
+                    first = false;
+                    continue;
+                }
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": ожидается ключ=значение: " + line);
+            }
+            first = false;
+            String key = line.substring(0, eq).trim();
+            if (!DEFAULTS.containsKey(key)) {
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": неизвестная настройка " + key);
+            }
+            values.put(key, line.substring(eq + 1).trim());
+        }
+        try {
+            return new ChatSettings(values, file);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(source + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private int intValue(String key, int min, int max) {
+        long value = longValue(key);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(key + " должно быть от " + min + " до " + max + ": " + value);
+        }
+        return (int) value;
+    }
+
+    private long longValue(String key) {
+        String text = values.get(key);
+        long value;
+        try {
+            value = Long.parseLong(text);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " должно быть целым числом: " + text);
+        }
+        if (value < 0) {
+            throw new IllegalArgumentException(key + " не может быть отрицательным: " + value);
+        }
+        return value;
+    }
+
+    private boolean booleanValue(String key) {
+        String text = values.get(key);
+        if (!"true".equalsIgnoreCase(text) && !"false".equalsIgnoreCase(text)) {
+            throw new IllegalArgumentException(key + " должно быть true или false: " + text);
+        }
+        return Boolean.parseBoolean(text);
+    }
+
+    private <T> T enumValue(String key, Function<String, T> parser) {
+        try {
+            return parser.apply(values.get(key));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Недопустимое значение " + key + ": " + values.get(key));
+        }
+    }
+
+    // Настройки, которые отличаются от other, но применяются только при перезапуске
+    List<String> restartRequired(ChatSettings other) {
+        List<String> changed = new ArrayList<>();
+        for (String key : DEFAULTS.keySet()) {
+            if (RESTART_KEYS.contains(key) && !Objects.equals(values.get(key), other.values.get(key))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    // Файл, из которого загружены настройки; null — из classpath, следить не за чем
+    public Path getFile() {
+        return file;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public LogFlushPolicy getLogFlushPolicy() {
+        return logFlushPolicy;
+    }
+
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    public long getHistoryMaxAgeMillis() {
+        return historyMaxAgeMillis;
+    }
+
+    public int getMailboxCapacity() {
+        return mailboxCapacity;
+    }
+
+    public int getRateLimitMessages() {
+        return rateLimitMessages;
+    }
+
+    public int getRateLimitBytes() {
+        return rateLimitBytes;
+    }
+
+    public long getRateLimitDisconnectMillis() {
+        return rateLimitDisconnectMillis;
+    }
+
+    public long getPingIntervalMillis() {
+        return pingIntervalMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+}
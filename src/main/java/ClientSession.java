@@ -0,0 +1,314 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Базовый класс подключённого пользователя. Сервер работает с клиентами только через него,
+поэтому рассылка сообщений не зависит от того, каким движком обслуживается соединение.
+У каждой сессии своя ограниченная очередь исходящих кадров: отправитель только ставит кадр в очередь,
+а в сокет его пишет писатель этой сессии, поэтому медленный клиент не задерживает остальных */
+abstract class ClientSession {
+    private static final Logger logger = LoggerFactory.getLogger(ClientSession.class);
+    private static final ByteBuffer PING_TEXT = frame(BinaryProtocol.PING_LINE);
+    private static final ByteBuffer PING_BINARY = BinaryProtocol.empty(BinaryProtocol.PING);
+
+    private volatile String username; // имя пользователя, известно после первой строки протокола
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(); // комнаты, в которых состоит пользователь
+    private volatile String activeRoom; // комната, в которую уходят сообщения пользователя
+
+    /* Двоичный протокол выбирается клиентом при соединении. Для двоичной сессии помним,
+    чьи имена уже отправлены кадром USER; под этой же блокировкой кадр имени ставится строго
+    перед первым сообщением отправителя, даже если рассылают несколько потоков сразу */
+    private volatile boolean binary;
+    private BitSet announcedSenders;
+    private volatile FrameCompressor compressor; // не null — клиент принимает сжатые кадры
+    private volatile ResumeRequest resume; // не null — строковый клиент просил номера сообщений (/resume)
+
+    /* Лимит отправителя; им пользуется только поток, читающий соединение, а при перечитывании
+    настроек сервер подменяет его целиком */
+    private volatile RateLimiter rateLimiter;
+
+    // Признак жизни: когда из соединения последний раз что-то прочитано (System.nanoTime)
+    private volatile long lastInbound = System.nanoTime();
+    private volatile TimerWheel.Timeout idleCheck; // следующая проверка простоя в колесе таймеров сервера
+
+    /* Связная очередь с тем же пределом: память занимают только стоящие в ней кадры, а не массив на всю ёмкость,
+    поэтому простаивающее соединение обходится в сотни байт, а не в килобайты */
+    private final BlockingQueue<ByteBuffer> outbound;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    /* Пока клиенту проигрывается история, живые кадры откладываются, чтобы не обогнать её.
+    Блокировка сессии нужна только в это короткое окно; в остальное время доставка без блокировок */
+    private volatile List<HeldFrame> held;
+    private final ReentrantLock replayLock = new ReentrantLock();
+
+    private final CompletableFuture<Void> closed = new CompletableFuture<>(); // завершается при закрытии
+
+    ClientSession(int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.outbound = new LinkedBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    Set<String> getRooms() {
+        return rooms;
+    }
+
+    String getActiveRoom() {
+        return activeRoom;
+    }
+
+    void setActiveRoom(String activeRoom) {
+        this.activeRoom = activeRoom;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    // Отмечает, что клиент жив; транспорт вызывает при каждом чтении
+    void touch() {
+        lastInbound = System.nanoTime();
+    }
+
+    long getLastInbound() {
+        return lastInbound;
+    }
+
+    TimerWheel.Timeout getIdleCheck() {
+        return idleCheck;
+    }
+
+    void setIdleCheck(TimerWheel.Timeout idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    // Проверка связи: клиент должен ответить PONG (или прислать что угодно) до истечения срока простоя
+    void sendPing() {
+        enqueue(binary ? PING_BINARY : PING_TEXT);
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Переключает сессию на двоичный протокол; вызывается до регистрации
+    void setBinary(boolean binary) {
+        this.binary = binary;
+        this.announcedSenders = binary ? new BitSet() : null;
+    }
+
+    // Включает сжатие кадров для двоичной сессии; вызывается до регистрации, null — без сжатия
+    void setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    ResumeRequest getResume() {
+        return resume;
+    }
+
+    // Запоминает просьбу /resume; с этого момента кадры сообщений идут с номерами. Вызывается до регистрации
+    void setResume(ResumeRequest resume) {
+        this.resume = resume;
+    }
+
+    // Отправляет клиенту служебную строку: строкой протокола или кадром NOTICE
+    void send(String line) {
+        enqueue(binary ? BinaryProtocol.notice(line) : frame(line));
+    }
+
+    /* Кодирует строку протокола в кадр: UTF-8 с переводом строки, только для чтения,
+    чтобы один и тот же кадр можно было безопасно раздать многим сессиям */
+    static ByteBuffer frame(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /* Доставка сообщения с номером index в истории source (null и Long.MAX_VALUE — сообщение вне истории).
+    Во время проигрывания истории сообщение откладывается до её окончания.
+    Возвращает false, если кадр не поставлен, потому что клиент отключён */
+    boolean deliver(ChatMessage message, HistoryRing source, long index) {
+        if (held != null) {
+            replayLock.lock();
+            try {
+                if (held != null) {
+                    held.add(new HeldFrame(message, source, index));
+                    return true;
+                }
+            } finally {
+                replayLock.unlock();
+            }
+        }
+        return write(message);
+    }
+
+    // Ставит в очередь кадр сообщения в протоколе сессии
+    private boolean write(ChatMessage message) {
+        if (!binary) {
+            return enqueue(resume != null ? message.sequencedFrame() : message.textFrame());
+        }
+        SenderDirectory.Sender sender = message.sender();
+        synchronized (announcedSenders) {
+            if (!announcedSenders.get(sender.id())) {
+                if (!enqueue(sender.announcement())) {
+                    return false;
+                }
+                announcedSenders.set(sender.id());
+            }
+            FrameCompressor c = compressor;
+            return enqueue(c != null ? message.compressedFrame(c) : message.binaryFrame());
+        }
+    }
+
+    // Начинает проигрывание истории: с этого момента живые кадры откладываются
+    void beginReplay() {
+        replayLock.lock();
+        try {
+            held = new ArrayList<>();
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    /* Ставит в очередь сообщения истории source (номера меньше mark), затем отложенные живые.
+    Отложенное сообщение той же истории с номером меньше mark второй раз не ставится, если оно есть в history;
+    слишком длинное для истории или пропущенное снимком в ней отсутствует и отправляется здесь.
+    Сообщения других комнат номерами этой истории не сравниваются */
+    void finishReplay(List<ChatMessage> history, HistoryRing source, long mark) {
+        replayLock.lock();
+        try {
+            if (compressor != null) {
+                replayCompressed(history);
+            } else {
+                for (ChatMessage message : history) {
+                    write(message);
+                }
+            }
+            for (HeldFrame frame : held) {
+                if (frame.source() != source || frame.index() >= mark || !replayed(history, frame.message())) {
+                    write(frame.message());
+                }
+            }
+            held = null;
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    // Есть ли сообщение в отправленной истории; отложенные сообщения — её последние, поэтому ищем с конца
+    private static boolean replayed(List<ChatMessage> history, ChatMessage message) {
+        for (int i = history.size() - 1; i >= 0; i--) {
+            if (history.get(i) == message) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* История клиенту со сжатием: кадры имён и сообщений собираются подряд и сжимаются пачками,
+    где повторяющиеся имена, даты и слова разных сообщений сжимаются вместе */
+    private void replayCompressed(List<ChatMessage> history) {
+        List<ByteBuffer> frames = new ArrayList<>(history.size() * 2);
+        synchronized (announcedSenders) {
+            for (ChatMessage message : history) {
+                SenderDirectory.Sender sender = message.sender();
+                if (!announcedSenders.get(sender.id())) {
+                    frames.add(sender.announcement());
+                    announcedSenders.set(sender.id());
+                }
+                frames.add(message.binaryFrame());
+            }
+        }
+        for (ByteBuffer frame : compressor.batch(frames)) {
+            enqueue(frame);
+        }
+    }
+
+    /* Ставит кадр в исходящую очередь, не блокируясь. При переполнении действует политика сессии.
+    Возвращает false, если кадр не поставлен, потому что клиент отключён */
+    boolean enqueue(ByteBuffer frame) {
+        if (!outbound.offer(frame)) {
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                logger.warn("Пользователь '{}' не успевает читать сообщения и будет отключён", username);
+                close();
+                return false;
+            }
+            do {
+                if (outbound.poll() != null) {
+                    droppedFrames.incrementAndGet();
+                }
+            } while (!outbound.offer(frame));
+        }
+        onEnqueued();
+        return true;
+    }
+
+    // Следующий кадр для записи или null, если очередь пуста
+    ByteBuffer pollOutbound() {
+        return outbound.poll();
+    }
+
+    BlockingQueue<ByteBuffer> outboundQueue() {
+        return outbound;
+    }
+
+    int outboundDepth() {
+        return outbound.size();
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    // Вызывается после постановки кадра в очередь: писатель сессии должен его заметить
+    abstract void onEnqueued();
+
+    // Закрывает соединение с клиентом
+    abstract void close();
+
+    /* Мягкое закрытие при остановке сервера: клиенту дописывается всё, что уже стоит в очереди,
+    и только потом соединение закрывается. Сессии без сокета закрываются сразу */
+    CompletableFuture<Void> drainAndClose() {
+        close();
+        markClosed();
+        return closed;
+    }
+
+    // Реализации с сокетом вызывают из close(), когда соединение закрыто
+    void markClosed() {
+        closed.complete(null);
+    }
+
+    CompletableFuture<Void> closedFuture() {
+        return closed;
+    }
+
+    private record HeldFrame(ChatMessage message, HistoryRing source, long index) {
+    }
+}
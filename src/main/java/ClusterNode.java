@@ -0,0 +1,422 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Узел кластера серверов чата. Узлы знают друг друга по статическому списку соседей (полная сетка):
+каждый пересылает соседям только сообщения своих клиентов, а пришедшие от соседей рассылает только своим
+клиентам и дальше не передаёт. Так пользователи всех узлов видят один общий чат, а каждое сообщение
+проходит по сети один раз на соседа.
+
+Связь с соседом — одно постоянное TCP-соединение с отдельным потоком-писателем: он забирает из очереди
+всё накопившееся и отправляет пачкой с одним сбросом буфера, поэтому под нагрузкой на сообщение
+приходится доля системного вызова. Обрыв связи писатель переживает сам: переподключается с растущей
+паузой, а сосед в ответ на приветствие сообщает последний принятый номер, и из окна последних
+RESEND_WINDOW сообщений повторяются только не дошедшие.
+
+Личное сообщение пользователю, которого нет на узле отправителя, пересылается соседям так же, но доставляет
+его только узел, к которому получатель подключён; остальные его пропускают.
+
+Каждое сообщение получает номер (узел-источник, порядковый номер). Номер узла случайный при каждом запуске,
+поэтому после перезапуска нумерация начинается заново без путаницы. Получатель помнит наибольший номер
+от каждого источника и отбрасывает повторы — и после переподключения, и если сосед указан дважды */
+class ClusterNode {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+
+    private static final int HELLO_MAGIC = 0x43484154; // "CHAT": первое слово соединения между узлами
+    private static final byte KIND_ROOM = 0; // сообщение в комнату
+    private static final byte KIND_DIRECT = 1; // личное сообщение
+    static final int QUEUE_CAPACITY = 64 * 1024; // сообщений в очереди к одному соседу
+    static final int MAX_BATCH = 512; // сообщений в одной пачке
+    static final int RESEND_WINDOW = 1024; // сколько последних сообщений повторяется после переподключения
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+    private static final long MIN_RECONNECT_MILLIS = 100;
+    private static final long MAX_RECONNECT_MILLIS = 5000;
+
+    private final ChatServer server;
+    private final long nodeId;
+    private final int port;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final ReentrantLock relayLock = new ReentrantLock(); // номер и постановка в очереди — одним шагом
+    private long sequence; // под relayLock
+    private final Map<Long, AtomicLong> lastSeen = new ConcurrentHashMap<>(); // источник -> наибольший номер
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    /* Сообщение, пересылаемое между узлами: номер источника, его порядковый номер и само сообщение.
+    У сообщения в комнату задан room, у личного — recipient */
+    record Relayed(long origin, long seq, long timestamp, String sender, String room, String recipient, String body) {
+    }
+
+    ClusterNode(ChatServer server, int port, List<InetSocketAddress> peers) {
+        this.server = server;
+        this.port = port;
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        this.nodeId = id;
+        for (InetSocketAddress peer : peers) {
+            links.add(new PeerLink(peer));
+        }
+    }
+
+    long getNodeId() {
+        return nodeId;
+    }
+
+    // Открывает порт для соседей и запускает связи с ними; сосед может подняться позже — писатель дождётся
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::acceptLoop, "chat-cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+        logger.info("Узел кластера {} слушает порт {}, соседей: {}", Long.toHexString(nodeId), port, links.size());
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Ошибка закрытия порта кластера", ex);
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        for (PeerLink link : links) {
+            link.stop();
+        }
+    }
+
+    /* Ставит сообщение своего клиента в очередь к каждому соседу; вызывается из потока рассылки и не блокируется.
+    Номер выдаётся и сообщение ставится во все очереди под одной блокировкой: иначе при одновременной
+    рассылке N+1 мог бы обогнать N, и получатель, помнящий только наибольший номер, отбросил бы N */
+    void relay(String sender, String room, long timestamp, String body) {
+        enqueue(sender, room, null, timestamp, body);
+    }
+
+    // Пересылает соседям личное сообщение пользователю, которого нет на этом узле; false — соседей нет
+    boolean relayDirect(String sender, String recipient, long timestamp, String body) {
+        return enqueue(sender, null, recipient, timestamp, body);
+    }
+
+    private boolean enqueue(String sender, String room, String recipient, long timestamp, String body) {
+        if (links.isEmpty()) {
+            return false;
+        }
+        relayLock.lock();
+        try {
+            Relayed message = new Relayed(nodeId, ++sequence, timestamp, sender, room, recipient, body);
+            for (PeerLink link : links) {
+                link.enqueue(message);
+            }
+        } finally {
+            relayLock.unlock();
+        }
+        server.getMetrics().onRelayedOut(links.size());
+        return true;
+    }
+
+    /* true, если сообщение от источника origin с номером seq ещё не встречалось. Сообщения одного источника
+    ставятся в очереди по порядку номеров и идут по одному соединению, поэтому достаточно помнить наибольший номер */
+    boolean firstSeen(long origin, long seq) {
+        AtomicLong last = lastSeen.computeIfAbsent(origin, key -> new AtomicLong());
+        long previous;
+        do {
+            previous = last.get();
+            if (seq <= previous) {
+                return false;
+            }
+        } while (!last.compareAndSet(previous, seq));
+        return true;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (running) {
+                    logger.error("Ошибка приёма соединения узла: {}", ex.getMessage());
+                }
+                return;
+            }
+            Thread reader = new Thread(() -> readLoop(socket), "chat-cluster-in-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // Читает пачки соседа и рассылает новые сообщения своим клиентам
+    private void readLoop(Socket socket) {
+        inbound.add(socket);
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            if (in.readInt() != HELLO_MAGIC) {
+                logger.warn("Соединение {} не от узла кластера", socket.getRemoteSocketAddress());
+                return;
+            }
+            long peerId = in.readLong();
+            // Отвечаем своим номером и последним принятым номером от соседа: по ним он решит, что повторить
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(nodeId);
+            AtomicLong last = lastSeen.get(peerId);
+            out.writeLong(last == null ? 0 : last.get());
+            out.flush();
+            if (peerId == nodeId) {
+                return; // в списке соседей указан сам узел
+            }
+            logger.info("Подключился узел {} ({})", Long.toHexString(peerId), socket.getRemoteSocketAddress());
+            while (running) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Relayed message = read(in);
+                    if (!firstSeen(message.origin(), message.seq())) {
+                        server.getMetrics().onRelayDuplicate();
+                    } else if (message.recipient() != null) {
+                        server.deliverRemoteDirect(message.sender(), message.recipient(), message.timestamp(), message.body());
+                    } else {
+                        server.deliverRemote(message.sender(), message.room(), message.timestamp(), message.body());
+                    }
+                }
+            }
+        } catch (EOFException | SocketException ex) {
+            // сосед закрыл соединение или узел останавливается
+        } catch (IOException ex) {
+            logger.warn("Ошибка связи с узлом {}: {}", socket.getRemoteSocketAddress(), ex.getMessage());
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    // Вид сообщения идёт перед строками: дальше имя отправителя, комната или получатель и текст
+    private static void write(DataOutputStream out, Relayed message) throws IOException {
+        out.writeLong(message.origin());
+        out.writeLong(message.seq());
+        out.writeLong(message.timestamp());
+        boolean direct = message.recipient() != null;
+        out.writeByte(direct ? KIND_DIRECT : KIND_ROOM);
+        writeString(out, message.sender());
+        writeString(out, direct ? message.recipient() : message.room());
+        writeString(out, message.body());
+    }
+
+    private static Relayed read(DataInputStream in) throws IOException {
+        long origin = in.readLong();
+        long seq = in.readLong();
+        long timestamp = in.readLong();
+        byte kind = in.readByte();
+        if (kind != KIND_ROOM && kind != KIND_DIRECT) {
+            throw new IOException("Неизвестный вид сообщения от узла: " + kind);
+        }
+        String sender = readString(in);
+        String target = readString(in);
+        String body = readString(in);
+        return kind == KIND_DIRECT
+                ? new Relayed(origin, seq, timestamp, sender, null, target, body)
+                : new Relayed(origin, seq, timestamp, sender, target, null, body);
+    }
+
+    // Строка — длина в байтах и UTF-8; writeUTF не подходит, он ограничен 64 КБ
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Недопустимая длина строки от узла: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // соединение уже закрыто
+        }
+    }
+
+    // Разбирает адрес соседа вида host:port
+    static InetSocketAddress parseAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon <= 0 || colon == value.length() - 1) {
+            throw new IllegalArgumentException("Адрес узла должен иметь вид host:port: " + value);
+        }
+        try {
+            int peerPort = Integer.parseInt(value.substring(colon + 1).trim());
+            return InetSocketAddress.createUnresolved(value.substring(0, colon).trim(), peerPort);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Неверный порт узла: " + value);
+        }
+    }
+
+    /* Исходящая связь с одним соседом. Очередь ограничена: если сосед недоступен долго, старые сообщения
+    вытесняются новыми, а не копятся без предела. Окно последних отправленных сообщений трогает только писатель */
+    private final class PeerLink {
+        private final InetSocketAddress address;
+        private final String name; // host:port для журнала
+        private final BlockingQueue<Relayed> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final ArrayDeque<Relayed> recent = new ArrayDeque<>(RESEND_WINDOW);
+        private final List<Relayed> batch = new ArrayList<>(MAX_BATCH);
+        private volatile Socket socket;
+        private Thread thread;
+        private long lastPeerId; // номер соседа при прошлом соединении
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        void start() {
+            thread = new Thread(this::writeLoop, "chat-cluster-link-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        void enqueue(Relayed message) {
+            while (!queue.offer(message)) {
+                if (queue.poll() != null) {
+                    server.getMetrics().onRelayDropped();
+                }
+            }
+        }
+
+        private void writeLoop() {
+            long backoff = MIN_RECONNECT_MILLIS;
+            while (running) {
+                try (Socket current = new Socket(address.getHostString(), address.getPort())) {
+                    socket = current;
+                    current.setTcpNoDelay(true); // пачку собирает писатель, Нейгл только добавил бы задержку
+                    current.setKeepAlive(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream(), 64 * 1024));
+                    out.writeInt(HELLO_MAGIC);
+                    out.writeLong(nodeId);
+                    out.flush();
+                    current.setSoTimeout((int) MAX_RECONNECT_MILLIS);
+                    DataInputStream in = new DataInputStream(current.getInputStream());
+                    long peerId = in.readLong();
+                    long acknowledged = in.readLong();
+                    current.setSoTimeout(0);
+                    if (peerId == nodeId) {
+                        logger.warn("Узел {} — это сам сервер, связь с ним не нужна", name);
+                        return;
+                    }
+                    if (peerId == lastPeerId) {
+                        // Сосед тот же: повторяем то, что он не успел принять до обрыва
+                        resend(out, acknowledged);
+                    } // иначе сосед перезапущен, и старые сообщения ему уже не нужны
+                    lastPeerId = peerId;
+                    out.flush();
+                    logger.info("Связь с узлом {} установлена", name);
+                    backoff = MIN_RECONNECT_MILLIS;
+                    while (running) {
+                        Relayed first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (Relayed message : batch) {
+                            remember(message);
+                        }
+                        sendBatch(out, batch);
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (InterruptedException ex) {
+                    return; // узел останавливается
+                } catch (IOException ex) {
+                    batch.clear(); // эти сообщения уже в окне повтора
+                    if (!running) {
+                        return;
+                    }
+                    logger.warn("Нет связи с узлом {}: {}; повтор через {} мс", name, ex.getMessage(), backoff);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    backoff = Math.min(MAX_RECONNECT_MILLIS, backoff * 2);
+                } finally {
+                    socket = null;
+                }
+            }
+        }
+
+        private void remember(Relayed message) {
+            if (recent.size() == RESEND_WINDOW) {
+                recent.pollFirst();
+            }
+            recent.addLast(message);
+        }
+
+        private void resend(DataOutputStream out, long acknowledged) throws IOException {
+            List<Relayed> missed = new ArrayList<>();
+            for (Relayed message : recent) {
+                if (message.seq() > acknowledged) {
+                    missed.add(message);
+                }
+            }
+            if (!missed.isEmpty()) {
+                logger.info("Узлу {} повторно отправлено {} сообщений", name, missed.size());
+                sendBatch(out, missed);
+            }
+        }
+
+        private void sendBatch(DataOutputStream out, List<Relayed> messages) throws IOException {
+            out.writeInt(messages.size());
+            for (Relayed message : messages) {
+                write(out, message);
+            }
+            server.getMetrics().onRelayBatch();
+        }
+    }
+}
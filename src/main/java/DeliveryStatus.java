@@ -0,0 +1,13 @@
+/* Результат отправки личного сообщения, о нём сервер сообщает отправителю */
+enum DeliveryStatus {
+    // Сообщение поставлено в очередь получателя
+    DELIVERED,
+    // Получатель не в сети, сообщение ждёт его в почтовом ящике
+    STORED,
+    // Такого пользователя нет в сети и для него не ведётся почтовый ящик
+    UNKNOWN_USER,
+    // Журнал не принял сообщение, поэтому оно не отправлено
+    REJECTED,
+    // Получателя нет на этом узле: сообщение передано соседям по кластеру, доставит его узел получателя
+    RELAYED
+}
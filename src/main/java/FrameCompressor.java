@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Сжатие кадров двоичного протокола (deflate без заголовка zlib). Клиент соглашается на него версией
+протокола VERSION_DEFLATE; остальные клиенты получают обычные кадры.
+Кадр DEFLATED — один сжатый кадр (тип и содержимое) целиком, BATCH — несколько подряд идущих кадров
+с их длинами, сжатых вместе (проигрывание истории). В обоих после типа идёт varint исходной длины,
+чтобы получатель выделил память один раз и отверг слишком большой результат до распаковки.
+Короткие сообщения не сжимаются: на них deflate тратит время и почти ничего не выигрывает, поэтому
+сжимается только то, что не короче threshold байт, и только если результат действительно меньше.
+Deflater держит несколько сотен КБ памяти вне кучи, поэтому объекты переиспользуются через общий пул */
+class FrameCompressor {
+    static final int MAX_BATCH_BYTES = 256 * 1024; // исходный размер одной сжатой пачки
+
+    private final int threshold;
+    private final int level;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    FrameCompressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    int threshold() {
+        return threshold;
+    }
+
+    int level() {
+        return level;
+    }
+
+    /* Кадр DEFLATED вместо frame или сам frame, если он короче порога или сжатие не помогло.
+    Вызывается один раз на сообщение: результат разделяют все получатели */
+    ByteBuffer compress(ByteBuffer frame) {
+        int length = BinaryProtocol.frameLength(frame);
+        if (length < threshold) {
+            return frame;
+        }
+        int start = frame.position() + BinaryProtocol.varintSize(length);
+        ByteBuffer compressed = deflate(BinaryProtocol.DEFLATED, frame, start, length);
+        return compressed != null ? compressed : frame;
+    }
+
+    /* Кадры проигрывания истории пачками BATCH не длиннее MAX_BATCH_BYTES до сжатия.
+    Пачка, которую не стоит сжимать, остаётся отдельными кадрами */
+    List<ByteBuffer> batch(List<ByteBuffer> frames) {
+        List<ByteBuffer> result = new ArrayList<>();
+        int from = 0;
+        while (from < frames.size()) {
+            int to = from;
+            int bytes = 0;
+            while (to < frames.size() && (to == from || bytes + frames.get(to).remaining() <= MAX_BATCH_BYTES)) {
+                bytes += frames.get(to++).remaining();
+            }
+            ByteBuffer compressed = null;
+            if (bytes >= threshold && to - from > 1) {
+                ByteBuffer raw = ByteBuffer.allocate(bytes);
+                for (int i = from; i < to; i++) {
+                    raw.put(frames.get(i).duplicate());
+                }
+                compressed = deflate(BinaryProtocol.BATCH, raw, 0, bytes);
+            }
+            if (compressed != null) {
+                result.add(compressed);
+            } else {
+                result.addAll(frames.subList(from, to));
+            }
+            from = to;
+        }
+        return result;
+    }
+
+    // Кадр type из сжатых length байт src начиная с from; null — сжатие не уменьшило размер
+    private ByteBuffer deflate(byte type, ByteBuffer src, int from, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.setInput(src.slice(from, length));
+            deflater.finish();
+            int header = 1 + BinaryProtocol.varintSize(length);
+            // Сжатый кадр должен быть меньше исходного: больший буфер не нужен
+            byte[] out = new byte[length];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (!deflater.finished() || size + header >= length) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.varintSize(header + size) + header + size);
+            BinaryProtocol.putVarint(buf, header + size);
+            buf.put(type);
+            BinaryProtocol.putVarint(buf, length);
+            buf.put(out, 0, size);
+            return buf.flip().asReadOnlyBuffer();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /* Распаковывает содержимое кадра DEFLATED или BATCH (после байта типа). Исходная длина больше
+    maxLength — ошибка протокола, память под неё не выделяется */
+    static byte[] inflate(Inflater inflater, ByteBuffer payload, int maxLength) throws IOException {
+        int length = BinaryProtocol.getVarint(payload);
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Недопустимая длина сжатого кадра: " + length);
+        }
+        byte[] out = new byte[length];
+        inflater.reset();
+        inflater.setInput(payload);
+        try {
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int n = inflater.inflate(out, size, length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != length) {
+                throw new IOException("Сжатый кадр оборван: " + size + " из " + length + " байт");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Повреждённый сжатый кадр: " + ex.getMessage());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Кольцевой буфер последних сообщений с уже закодированными кадрами. Рассылающие потоки добавляют кадры
+без блокировок (каждый получает свою ячейку через счётчик), а подключающиеся клиенты читают снимок,
+тоже без блокировок: ячейка, которую успели перезаписать, просто пропускается.
+Ячейку заменяет только кадр с большим номером: запоздавший добавляющий поток не затрёт более новый кадр.
+Память ограничена: не более capacity сообщений, текстовый кадр каждого не длиннее maxFrameBytes */
+class HistoryRing {
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10); // ожидание незаписанной ячейки
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final int maxFrameBytes;
+    private final AtomicLong tail = new AtomicLong(); // номер следующего кадра
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    HistoryRing(int capacity, int maxFrameBytes) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1; // ближайшая степень двойки
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /* Добавляет сообщение и возвращает его номер. Слишком длинные сообщения в историю не попадают,
+    но номер всё равно получают, чтобы порядок рассылки и истории совпадал */
+    long append(ChatMessage message, long timestamp) {
+        boolean retained = message.textFrame().remaining() <= maxFrameBytes;
+        long index = tail.getAndIncrement();
+        Entry entry = new Entry(index, timestamp, retained ? message : null);
+        int slot = (int) (index & mask);
+        Entry previous;
+        do {
+            previous = slots.get(slot);
+            if (previous != null && previous.index > index) {
+                return index; // пока поток стоял, кольцо ушло на круг вперёд: кадр уже вытеснен
+            }
+        } while (!slots.compareAndSet(slot, previous, entry));
+        retainedBytes.addAndGet(entry.bytes() - (previous == null ? 0 : previous.bytes()));
+        return index;
+    }
+
+    // Номер, который получит следующий кадр
+    long tail() {
+        return tail.get();
+    }
+
+    /* Снимок сообщений с номерами меньше end: не более limit последних и не старше minTimestamp.
+    Ячейку, номер в которой уже не совпадает (её перезаписали), пропускаем; ещё не заполненную — ждём,
+    но не дольше MAX_WAIT_NANOS: добавляющий поток мог надолго остановиться, и тогда ячейка тоже пропускается */
+    List<ChatMessage> snapshot(long end, int limit, long minTimestamp) {
+        long start = Math.max(0, end - Math.min(limit, slots.length()));
+        List<ChatMessage> messages = new ArrayList<>((int) (end - start));
+        for (long index = start; index < end; index++) {
+            Entry entry = slots.get((int) (index & mask));
+            long waitStarted = 0;
+            while (entry == null || entry.index < index) {
+                // добавляющий поток уже получил номер, но ещё не записал кадр
+                if (waitStarted == 0) {
+                    waitStarted = System.nanoTime();
+                } else if (System.nanoTime() - waitStarted > MAX_WAIT_NANOS) {
+                    break;
+                }
+                Thread.onSpinWait();
+                entry = slots.get((int) (index & mask));
+            }
+            if (entry != null && entry.index == index && entry.message != null && entry.timestamp >= minTimestamp) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    // Сколько байт кадров сейчас удерживает история (оценка сверху)
+    long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    // Верхняя граница памяти под кадры истории: текстовый, двоичный и сжатый кадр каждого сообщения
+    long maxRetainedBytes() {
+        return 3L * slots.length() * maxFrameBytes;
+    }
+
+    private record Entry(long index, long timestamp, ChatMessage message) {
+        int bytes() {
+            return message == null ? 0 : message.retainedBytes();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Читает строки UTF-8 из потока, держа в памяти не больше maxLength байт строки. В отличие от
+BufferedReader.readLine(), строка без перевода строки не копится бесконечно: при превышении лимита
+чтение прерывается ошибкой, и соединение закрывается */
+class LineReader {
+    private final InputStream in;
+    private final int maxLength;
+    private byte[] line;
+    private int lastBytes; // сколько байт заняла последняя строка в потоке, вместе с переводом строки
+
+    LineReader(InputStream in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+        this.line = new byte[Math.min(256, maxLength)];
+    }
+
+    // Следующая строка без \n и \r в конце; null — поток закончился
+    String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (length == maxLength) {
+                throw new IOException("Строка длиннее " + maxLength + " байт");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLength, line.length * 2));
+            }
+            line[length++] = (byte) b;
+        }
+        if (b < 0 && length == 0) {
+            return null;
+        }
+        lastBytes = b < 0 ? length : length + 1;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    int lastBytes() {
+        return lastBytes;
+    }
+}
@@ -0,0 +1,79 @@
+/* Когда фоновый писатель журнала сбрасывает накопленные записи на диск.
+Пачка записывается, как только выполнено любое из условий: накоплено everyEntries записей
+или с первой несброшенной записи прошло intervalMillis. fsync дополнительно дожидается физической
+записи (FileChannel.force): при fsyncIntervalMillis = 0 — после каждой пачки, иначе групповым сбросом
+не чаще раза в fsyncIntervalMillis, одним force на все пачки, записанные за это время */
+public final class LogFlushPolicy {
+    public static final LogFlushPolicy DEFAULT = new LogFlushPolicy(256, 100, false);
+
+    private final int everyEntries;
+    private final long intervalMillis;
+    private final boolean fsync;
+    private final long fsyncIntervalMillis;
+
+    public LogFlushPolicy(int everyEntries, long intervalMillis, boolean fsyncEachBatch) {
+        this(everyEntries, intervalMillis, fsyncEachBatch, 0);
+    }
+
+    public LogFlushPolicy(int everyEntries, long intervalMillis, boolean fsync, long fsyncIntervalMillis) {
+        if (everyEntries <= 0) {
+            throw new IllegalArgumentException("Размер пачки должен быть положительным: " + everyEntries);
+        }
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Интервал сброса не может быть отрицательным: " + intervalMillis);
+        }
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Интервал fsync не может быть отрицательным: " + fsyncIntervalMillis);
+        }
+        this.everyEntries = everyEntries;
+        this.intervalMillis = intervalMillis;
+        this.fsync = fsync;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    // Сбрасывать каждые n записей (и не реже, чем раз в интервал по умолчанию)
+    public static LogFlushPolicy everyEntries(int n) {
+        return new LogFlushPolicy(n, DEFAULT.intervalMillis, false);
+    }
+
+    // Сбрасывать всё накопленное раз в millis миллисекунд
+    public static LogFlushPolicy everyMillis(long millis) {
+        return new LogFlushPolicy(Integer.MAX_VALUE, millis, false);
+    }
+
+    // Политика по умолчанию, но каждая пачка дополнительно синхронизируется с диском
+    public static LogFlushPolicy fsyncEachBatch() {
+        return new LogFlushPolicy(DEFAULT.everyEntries, DEFAULT.intervalMillis, true);
+    }
+
+    // Политика по умолчанию с групповым fsync не чаще раза в millis миллисекунд
+    public static LogFlushPolicy groupCommit(long millis) {
+        return new LogFlushPolicy(DEFAULT.everyEntries, DEFAULT.intervalMillis, true, millis);
+    }
+
+    public int getEveryEntries() {
+        return everyEntries;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public boolean isFsyncEachBatch() {
+        return fsync && fsyncIntervalMillis == 0;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "каждые " + everyEntries + " записей или " + intervalMillis + " мс"
+                + (!fsync ? "" : fsyncIntervalMillis == 0 ? ", fsync" : ", fsync раз в " + fsyncIntervalMillis + " мс");
+    }
+}
@@ -0,0 +1,3 @@
+/* Запись журнала, прочитанная из сегмента: порядковый номер, время записи (мс эпохи) и текст */
+record LogRecord(long sequence, long timestamp, String text) {
+}
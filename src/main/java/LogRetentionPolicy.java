@@ -0,0 +1,31 @@
+/* Что делать со старыми сегментами журнала. Самые свежие keepUncompressed закрытых сегментов остаются
+как есть, более старые сжимаются gzip (если compress), а сегменты, последняя запись которых старше
+maxAgeMillis, удаляются (0 — хранить всегда) */
+public final class LogRetentionPolicy {
+    public static final LogRetentionPolicy DEFAULT = new LogRetentionPolicy(8, true, 0);
+
+    private final int keepUncompressed;
+    private final boolean compress;
+    private final long maxAgeMillis;
+
+    public LogRetentionPolicy(int keepUncompressed, boolean compress, long maxAgeMillis) {
+        if (keepUncompressed < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Параметры хранения журнала не могут быть отрицательными");
+        }
+        this.keepUncompressed = keepUncompressed;
+        this.compress = compress;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public int getKeepUncompressed() {
+        return keepUncompressed;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.ArrayDeque;
+
+/* Ограниченный почтовый ящик пользователя для личных сообщений, пришедших, пока он не в сети.
+При переполнении вытесняется самое старое сообщение. Доступ к ящику синхронизирован на нём самом:
+под той же блокировкой отправитель проверяет, не вошёл ли получатель, а вход получателя забирает ящик,
+поэтому сообщение не может застрять в ящике уже подключившегося пользователя */
+class Mailbox {
+    private final int capacity;
+    private final ArrayDeque<ChatMessage> messages = new ArrayDeque<>();
+    private long dropped; // сообщений вытеснено из-за переполнения
+
+    Mailbox(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Вызывается под блокировкой ящика
+    void store(ChatMessage message) {
+        if (messages.size() == capacity) {
+            messages.poll();
+            dropped++;
+        }
+        messages.add(message);
+    }
+
+    // Отдаёт накопленные сообщения сессии и очищает ящик; вызывается под блокировкой ящика
+    int drainTo(ClientSession session) {
+        int count = messages.size();
+        ChatMessage message;
+        while ((message = messages.poll()) != null) {
+            session.deliver(message, null, Long.MAX_VALUE);
+        }
+        return count;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,90 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/* Неблокирующий движок сервера. Поток, вызвавший run(), принимает соединения на ServerSocketChannel
+и по очереди раздаёт их небольшому числу циклов событий (по умолчанию по одному на ядро) */
+class NioChatEngine {
+    private static final Logger logger = LoggerFactory.getLogger(NioChatEngine.class);
+
+    private static final int ACCEPT_BACKLOG = 4096; // очередь ядра для лавины подключений
+
+    private final ChatServer server;
+    private final int port;
+    private final NioEventLoop[] loops;
+    private volatile ServerSocketChannel acceptor;
+
+    NioChatEngine(ChatServer server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop(server);
+        }
+    }
+
+    /* Принимает соединения, пока не вызван stopAccepting(). Циклы событий после этого продолжают
+    обслуживать уже открытые соединения до shutdown(), чтобы сервер успел их мягко закрыть */
+    void run() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            acceptor = channel;
+            for (int i = 0; i < loops.length; i++) {
+                loops[i].start("chat-nio-" + i);
+            }
+            logger.info("Сервер (NIO, циклов событий: {}) запущен на порте {}", loops.length, port);
+
+            int next = 0;
+            while (channel.isOpen()) {
+                SocketChannel socket;
+                try {
+                    socket = channel.accept();
+                } catch (IOException ex) {
+                    if (!channel.isOpen()) {
+                        break; // сервер остановлен
+                    }
+                    throw ex;
+                }
+                server.getMetrics().onAccept();
+                try {
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[next].register(socket);
+                } catch (IOException ex) {
+                    // Например, клиент уже сбросил соединение: закрываем только его и принимаем дальше
+                    logger.warn("Ошибка настройки принятого соединения: {}", ex.getMessage());
+                    NioEventLoop.closeQuietly(socket);
+                    continue;
+                }
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException | RuntimeException ex) {
+            shutdown(); // сервер не запустился или приём сломался: соединения обслуживать некому
+            throw ex;
+        }
+    }
+
+    // Закрывает серверный канал: новые соединения больше не принимаются
+    void stopAccepting() {
+        ServerSocketChannel channel = acceptor;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Ошибка закрытия серверного канала", e);
+            }
+        }
+    }
+
+    // Останавливает циклы событий; оставшиеся соединения закрываются
+    void shutdown() {
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
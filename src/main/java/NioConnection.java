@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Соединение в неблокирующем режиме. Разбивает входящий поток на строки или кадры двоичного протокола
+прямо в цикле событий и отправляет исходящие кадры, не блокируя ни отправителя, ни цикл */
+class NioConnection extends ClientSession {
+    private static final int MAX_KEPT_TAIL = 4096; // хвост большего размера не держим после разбора строки
+
+    // Протокол определяется по первым байтам соединения
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_VERSION = 1; // получен MAGIC, ждём байт версии
+    private static final int PROTOCOL_TEXT = 2;
+    private static final int PROTOCOL_BINARY = 3;
+    private int protocol = PROTOCOL_UNKNOWN;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Недочитанная часть строки или кадра; у простаивающего соединения буфера нет вовсе
+    private ByteBuffer lineTail;
+
+    // Кадры, взятые из очереди, но ещё не записанные в сокет целиком (принадлежат циклу)
+    private ArrayDeque<ByteBuffer> unsent;
+    private int unsentOffset; // сколько байт первого кадра из unsent уже отправлено
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::scheduledFlush;
+    private boolean writePending; // сокет не принял всё — ждём OP_WRITE
+    private boolean draining; // остановка сервера: больше не читаем, дописываем очередь и закрываемся
+    private boolean closed;
+
+    /* Пауза чтения для отправителя, превысившего лимит: OP_READ снимается, и клиент упирается
+    в буферы TCP. Уже прочитанные, но не разобранные байты ждут в lineTail до возобновления */
+    private boolean readPaused;
+    private final Runnable resumeTask = this::resumeReading;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, int queueCapacity, OverflowPolicy overflowPolicy) {
+        super(queueCapacity, overflowPolicy);
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // Кадр уже в очереди сессии; если запись ещё не запланирована, поручаем её циклу событий
+    @Override
+    void onEnqueued() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    /* Записывает в сокет всё, что накопилось. Кадры копируются в общий буфер цикла, поэтому несколько
+    коротких сообщений уходят одним системным вызовом. Если сокет не принял всё, ждём OP_WRITE */
+    void flush() {
+        if (closed) {
+            return;
+        }
+        ByteBuffer scratch = loop.writeScratch;
+        try {
+            while (true) {
+                scratch.clear();
+                fill(scratch);
+                if (scratch.position() == 0) {
+                    setWritePending(false);
+                    if (draining) {
+                        close();
+                    }
+                    return;
+                }
+                scratch.flip();
+                int written = channel.write(scratch);
+                consume(written);
+                if (scratch.hasRemaining()) {
+                    setWritePending(true);
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    private void fill(ByteBuffer scratch) {
+        int offset = unsentOffset;
+        if (unsent != null) {
+            for (ByteBuffer frame : unsent) {
+                if (!scratch.hasRemaining()) {
+                    return;
+                }
+                copy(frame, offset, scratch);
+                offset = 0;
+            }
+        }
+        ByteBuffer frame;
+        while (scratch.hasRemaining() && (frame = pollOutbound()) != null) {
+            if (unsent == null) {
+                unsent = new ArrayDeque<>();
+            }
+            unsent.add(frame);
+            copy(frame, 0, scratch);
+        }
+    }
+
+    // Копирует байты кадра начиная с from, не сдвигая позицию самого кадра
+    private static void copy(ByteBuffer frame, int from, ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), frame.remaining() - from);
+        dst.put(dst.position(), frame, frame.position() + from, n);
+        dst.position(dst.position() + n);
+    }
+
+    // Убирает из unsent полностью записанные кадры
+    private void consume(int written) {
+        while (written > 0) {
+            ByteBuffer head = unsent.peekFirst();
+            int left = head.remaining() - unsentOffset;
+            if (written >= left) {
+                unsent.pollFirst();
+                written -= left;
+                unsentOffset = 0;
+            } else {
+                unsentOffset += written;
+                written = 0;
+            }
+        }
+    }
+
+    private void setWritePending(boolean writePending) {
+        this.writePending = writePending;
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0);
+        if (key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    // Не читаем соединение pauseNanos; разбор уже прочитанного продолжится после паузы
+    private void pauseReading(long pauseNanos) {
+        readPaused = true;
+        updateInterest();
+        loop.schedule(resumeTask, pauseNanos);
+    }
+
+    private void resumeReading() {
+        if (closed || draining) {
+            return;
+        }
+        readPaused = false;
+        if (lineTail != null && lineTail.position() > 0) {
+            ByteBuffer pending = lineTail.flip();
+            lineTail = null;
+            parse(pending);
+        }
+        if (!closed && !readPaused) {
+            updateInterest();
+        }
+    }
+
+    // Читает доступные данные в общий буфер цикла и разбирает их на строки или кадры
+    void onReadable() {
+        ByteBuffer buf = loop.readScratch;
+        buf.clear();
+        int n;
+        try {
+            n = channel.read(buf);
+        } catch (IOException ex) {
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        touch();
+        buf.flip();
+        parse(buf);
+    }
+
+    // Разбирает прочитанные байты; остановившись на паузе, оставляет неразобранное в lineTail
+    private void parse(ByteBuffer buf) {
+        if (protocol != PROTOCOL_TEXT && !detectProtocol(buf)) {
+            return;
+        }
+        if (protocol == PROTOCOL_BINARY) {
+            readFrames(buf);
+            return;
+        }
+        int maxLineLength = loop.getServer().getMaxLineLength();
+        int start = buf.position();
+        for (int i = start; i < buf.limit(); i++) {
+            if (buf.get(i) == '\n') {
+                int bytes = i - start + (lineTail == null ? 0 : lineTail.position());
+                if (bytes > maxLineLength) {
+                    close(); // строка длиннее допустимого
+                    return;
+                }
+                String line = decodeLine(buf, start, i);
+                start = i + 1;
+                onLine(line, bytes + 1);
+                if (closed) {
+                    return;
+                }
+                if (readPaused) {
+                    break;
+                }
+            }
+        }
+        if (start < buf.limit()) {
+            if (!readPaused && buf.limit() - start + (lineTail == null ? 0 : lineTail.position()) > maxLineLength) {
+                close(); // строка длиннее допустимого, дальше не копим
+                return;
+            }
+            appendTail(buf, start, buf.limit());
+        }
+    }
+
+    /* Разбирает начало соединения: MAGIC и версия — двоичный протокол, иначе строковый.
+    Возвращает false, если данных для решения пока нет или соединение закрыто */
+    private boolean detectProtocol(ByteBuffer buf) {
+        if (protocol == PROTOCOL_UNKNOWN && buf.hasRemaining()) {
+            if (buf.get(buf.position()) != BinaryProtocol.MAGIC) {
+                protocol = PROTOCOL_TEXT;
+                return true;
+            }
+            buf.get();
+            protocol = PROTOCOL_VERSION;
+            setBinary(true);
+        }
+        if (protocol == PROTOCOL_VERSION && buf.hasRemaining()) {
+            byte version = buf.get();
+            if (version == BinaryProtocol.VERSION_DEFLATE) {
+                setCompressor(loop.getServer().getCompressor());
+            } else if (version != BinaryProtocol.VERSION) {
+                close(); // неподдерживаемая версия протокола
+                return false;
+            }
+            protocol = PROTOCOL_BINARY;
+        }
+        return protocol != PROTOCOL_UNKNOWN && protocol != PROTOCOL_VERSION;
+    }
+
+    /* Разбирает кадры двоичного протокола. Целые кадры читаются прямо из буфера цикла без копирования,
+    в lineTail попадает только недочитанный хвост; следующее чтение дописывается к нему */
+    private void readFrames(ByteBuffer buf) {
+        ByteBuffer source = buf;
+        if (lineTail != null && lineTail.position() > 0) {
+            appendTail(buf, buf.position(), buf.limit());
+            source = lineTail.flip();
+        }
+        while (true) {
+            int length = BinaryProtocol.frameLength(source);
+            if (length < 0) {
+                break;
+            }
+            if (length == 0 || length > loop.getServer().getMaxLineLength() + 1) { // строка и байт типа
+                close(); // ошибка протокола
+                return;
+            }
+            int start = source.position() + BinaryProtocol.varintSize(length);
+            if (source.limit() - start < length) {
+                break;
+            }
+            source.position(start + length);
+            onFrame(source, start, length);
+            if (closed) {
+                return;
+            }
+            if (readPaused) {
+                break;
+            }
+        }
+        if (source == lineTail) {
+            lineTail.compact();
+            if (lineTail.position() == 0 && lineTail.capacity() > MAX_KEPT_TAIL) {
+                lineTail = null;
+            }
+        } else if (source.hasRemaining()) {
+            appendTail(source, source.position(), source.limit());
+        }
+    }
+
+    // Кадр HELLO — имя пользователя, TEXT — строка чата; дальше как в строковом протоколе
+    private void onFrame(ByteBuffer buf, int start, int length) {
+        byte type = buf.get(start);
+        if (type == BinaryProtocol.PONG && getUsername() != null) {
+            return; // ответ на проверку связи; признак жизни уже учтён при чтении
+        }
+        if (type != (getUsername() == null ? BinaryProtocol.HELLO : BinaryProtocol.TEXT)) {
+            close(); // ошибка протокола
+            return;
+        }
+        onLine(BinaryProtocol.decodeText(buf, start + 1, length - 1), length);
+    }
+
+    private String decodeLine(ByteBuffer buf, int from, int to) {
+        byte[] bytes;
+        if (lineTail != null && lineTail.position() > 0) {
+            appendTail(buf, from, to);
+            lineTail.flip();
+            bytes = new byte[lineTail.remaining()];
+            lineTail.get(bytes);
+            lineTail = lineTail.capacity() > MAX_KEPT_TAIL ? null : lineTail.clear();
+        } else {
+            bytes = new byte[to - from];
+            buf.get(from, bytes);
+        }
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void appendTail(ByteBuffer buf, int from, int to) {
+        int length = to - from;
+        if (lineTail == null) {
+            lineTail = ByteBuffer.allocate(Math.max(256, length));
+        } else if (lineTail.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(lineTail.capacity() * 2, lineTail.position() + length));
+            lineTail.flip();
+            bigger.put(lineTail);
+            lineTail = bigger;
+        }
+        lineTail.put(lineTail.position(), buf, from, length);
+        lineTail.position(lineTail.position() + length);
+    }
+
+    /* Тот же протокол, что и в блокирующем режиме: первая строка — имя пользователя,
+    /exit завершает сессию, остальные непустые строки рассылаются всем */
+    private void onLine(String line, int bytes) {
+        ChatServer server = loop.getServer();
+        if (getUsername() == null) {
+            if (server.acceptResume(this, line)) {
+                return; // после /resume идёт имя
+            }
+            if (!server.register(line.trim(), this)) {
+                close();
+            }
+            return;
+        }
+        if ("/exit".equals(line)) {
+            close();
+            return;
+        }
+        if (!line.trim().isEmpty()) {
+            server.onMessage(this, line);
+        }
+        long pause = server.admit(this, bytes);
+        if (pause < 0) {
+            flush(); // отдаём уведомление об отключении, сколько примет сокет
+            close();
+        } else if (pause > 0) {
+            pauseReading(pause);
+        }
+    }
+
+    // Чтение прекращается сразу, а соединение закроется, когда очередь будет дописана в сокет
+    @Override
+    CompletableFuture<Void> drainAndClose() {
+        loop.execute(() -> {
+            if (!closed) {
+                draining = true;
+                readPaused = true;
+                flush();
+            }
+        });
+        return closedFuture();
+    }
+
+    @Override
+    void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        // Сначала убираем клиента из сервера: увидев EOF, собеседник уже не застанет его в списке
+        if (getUsername() != null) {
+            loop.getServer().unregister(this);
+        }
+        NioEventLoop.closeQuietly(channel);
+        markClosed();
+    }
+}
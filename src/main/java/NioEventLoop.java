@@ -0,0 +1,153 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Цикл событий: один поток и один Selector обслуживают множество соединений.
+Задачи из других потоков (регистрация канала, отправка сообщений) передаются через очередь tasks,
+поэтому всё состояние соединений меняется только в потоке цикла */
+class NioEventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+
+    static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /* Общие для всех соединений цикла буферы: чтение и запись идут через них,
+    а у соединения остаются только недочитанный хвост строки и недописанные кадры */
+    final ByteBuffer readScratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+    final ByteBuffer writeScratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+
+    NioEventLoop(ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    ChatServer getServer() {
+        return server;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Ставит задачу в очередь цикла и будит селектор, если он спит
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Выполнит задачу в потоке цикла не раньше чем через delayNanos; срок отсчитывает колесо таймеров сервера
+    void schedule(Runnable task, long delayNanos) {
+        server.getTimers().schedule(() -> execute(task), delayNanos);
+    }
+
+    // Передаёт принятый канал циклу: регистрация в селекторе выполняется в его потоке
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(this, channel,
+                        server.getOutboundQueueCapacity(), server.getOverflowPolicy());
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException ex) {
+                logger.warn("Ошибка регистрации соединения: {}", ex.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+                processSelectedKeys();
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            if (running) {
+                logger.error("Ошибка цикла событий: {}", ex.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (!key.isValid()) {
+                connection.close();
+                continue;
+            }
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                logger.error("Ошибка задачи цикла событий: {}", ex.getMessage());
+            }
+        }
+    }
+
+    // Останавливает цикл; соединения закрываются в его собственном потоке
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+            // селектор уже закрыт
+        }
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // канал уже закрыт
+        }
+    }
+}
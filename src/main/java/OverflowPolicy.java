@@ -0,0 +1,11 @@
+/* Что делать, когда исходящая очередь клиента заполнена: клиент читает медленнее, чем пишут в чат */
+public enum OverflowPolicy {
+    // Выбросить самое старое сообщение из очереди и поставить новое
+    DROP_OLDEST,
+    // Отключить медленного клиента
+    DISCONNECT;
+
+    public static OverflowPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+
+/* Список документов (номеров записей относительно начала сегмента журнала), в которых встречается слово.
+Номера хранятся по возрастанию блоками по BLOCK штук: первый номер блока — в оглавлении, остальные —
+разностями с предыдущим в varint, обычно 1–2 байта на номер. Оглавление позволяет найти блок с нужным
+номером двоичным поиском и распаковать только его, а не весь список; список читается и с конца,
+от новых записей к старым. Один и тот же формат лежит в памяти (TermIndex) и в файле (TermIndexFile) */
+final class PostingList {
+    static final int BLOCK = 128;
+
+    private final int count;
+    private final int[] blockFirst; // первый номер каждого блока
+    private final int[] blockOffset; // где в data начинаются разности блока
+    private final ByteBuffer data; // читается только по абсолютным индексам
+
+    PostingList(int count, int[] blockFirst, int[] blockOffset, ByteBuffer data) {
+        this.count = count;
+        this.blockFirst = blockFirst;
+        this.blockOffset = blockOffset;
+        this.data = data;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int blockCount() {
+        return (count + BLOCK - 1) / BLOCK;
+    }
+
+    // Распаковывает блок в out (не короче BLOCK); возвращает число номеров в нём
+    int decodeBlock(int block, int[] out) {
+        int n = block == blockCount() - 1 ? count - block * BLOCK : BLOCK;
+        int doc = blockFirst[block];
+        out[0] = doc;
+        int pos = blockOffset[block];
+        for (int i = 1; i < n; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += delta;
+            out[i] = doc;
+        }
+        return n;
+    }
+
+    // Последний блок, первый номер которого не больше doc; -1 — doc меньше всех номеров
+    int findBlock(int doc) {
+        int lo = 0;
+        int hi = blockCount() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockFirst[mid] <= doc) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Записывает varint в out начиная с pos; возвращает позицию после него
+    static int putVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /* Проверка принадлежности для номеров, идущих по убыванию или вразброс: помнит последний
+    распакованный блок, так что соседние проверки не распаковывают его заново */
+    final class Cursor {
+        private final int[] docs = new int[BLOCK];
+        private int block = -1;
+        private int size;
+
+        boolean contains(int doc) {
+            int target = findBlock(doc);
+            if (target < 0) {
+                return false;
+            }
+            if (target != block) {
+                size = decodeBlock(target, docs);
+                block = target;
+            }
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (docs[mid] < doc) {
+                    lo = mid + 1;
+                } else if (docs[mid] > doc) {
+                    hi = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
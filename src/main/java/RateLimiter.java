@@ -0,0 +1,52 @@
+import java.util.concurrent.TimeUnit;
+
+/* Лимит отправителя: два маркерных ведра — сообщения в секунду и байты в секунду, каждое вмещает секунду
+своей скорости (допустимый всплеск). Ведро может уйти в минус: сообщение уже прочитано и обработано,
+а долг отдаётся паузой чтения соединения. Пока долг есть, клиент упирается в буферы TCP и сам замедляется.
+Если отправитель не выходит из долга дольше disconnectAfter, его пора отключить.
+Объект принадлежит одному соединению и вызывается только из потока, читающего его, поэтому без синхронизации */
+class RateLimiter {
+    private final double messagesPerNano;
+    private final double bytesPerNano;
+    private final double messageBurst;
+    private final double byteBurst;
+    private final long disconnectAfterNanos;
+
+    private double messageTokens;
+    private double byteTokens;
+    private long lastRefill;
+    private long throttledSince; // 0 — отправитель укладывается в лимит
+
+    RateLimiter(int messagesPerSecond, int bytesPerSecond, long disconnectAfterMillis, long now) {
+        this.messagesPerNano = messagesPerSecond / 1e9;
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.messageBurst = messagesPerSecond;
+        this.byteBurst = bytesPerSecond;
+        this.disconnectAfterNanos = TimeUnit.MILLISECONDS.toNanos(disconnectAfterMillis);
+        this.messageTokens = messageBurst;
+        this.byteTokens = byteBurst;
+        this.lastRefill = now;
+    }
+
+    /* Списывает одно сообщение размером bytes. Возвращает паузу чтения в наносекундах (0 — без паузы)
+    или -1, если отправитель превышает лимит непрерывно дольше disconnectAfter */
+    long acquire(int bytes, long now) {
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        messageTokens = Math.min(messageBurst, messageTokens + elapsed * messagesPerNano);
+        byteTokens = Math.min(byteBurst, byteTokens + elapsed * bytesPerNano);
+        messageTokens -= 1;
+        byteTokens -= bytes;
+        if (messageTokens >= 0 && byteTokens >= 0) {
+            throttledSince = 0;
+            return 0;
+        }
+        if (throttledSince == 0) {
+            throttledSince = now;
+        } else if (now - throttledSince > disconnectAfterNanos) {
+            return -1;
+        }
+        double pause = Math.max(-messageTokens / messagesPerNano, -byteTokens / bytesPerNano);
+        return Math.max(1, (long) pause);
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/* Просьба строкового клиента продолжить с места обрыва: «/resume <журнал> <номер> [комнаты...]», присылается
+до имени. Журнал — идентификатор журнала сервера, от которого клиент получал номера (0 — ещё ни от какого),
+номер — последний полученный, комнаты — в которых клиент состоял, кроме общей */
+record ResumeRequest(long logId, long lastSeen, List<String> rooms) {
+
+    // Разбирает строку /resume; null — в строке ошибка
+    static ResumeRequest parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 3 || !BinaryProtocol.RESUME_LINE.equals(parts[0])) {
+            return null;
+        }
+        try {
+            long logId = Long.parseLong(parts[1]);
+            long lastSeen = Long.parseLong(parts[2]);
+            if (lastSeen < -1) {
+                return null;
+            }
+            List<String> rooms = new ArrayList<>();
+            for (int i = 3; i < parts.length; i++) {
+                if (RoomRegistry.isValidName(parts[i]) && !RoomRegistry.DEFAULT_ROOM.equals(parts[i])) {
+                    rooms.add(parts[i]);
+                }
+            }
+            return new ResumeRequest(logId, lastSeen, List.copyOf(rooms));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
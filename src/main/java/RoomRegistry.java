@@ -0,0 +1,135 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Реестр комнат: имя комнаты -> комната с её участниками. Комната создаётся при первом входе
+и удаляется, когда из неё вышел последний участник; общая комната существует всегда.
+Вход и выход выполняются через compute по ключу комнаты, поэтому удаление пустой комнаты
+не может потерять участника, который входит в неё одновременно */
+class RoomRegistry {
+    static final String DEFAULT_ROOM = "general"; // общая комната, в неё попадает каждый пользователь
+    static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final int maxFrameBytes;
+    private volatile int historyMessages; // 0 — история не хранится
+    private volatile long historyMaxAgeMillis;
+
+    RoomRegistry(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+        rooms.put(DEFAULT_ROOM, new ChatRoom(DEFAULT_ROOM, null));
+    }
+
+    // Задаёт историю для всех комнат; у существующих комнат история начинается заново
+    void setHistory(int maxMessages, long maxAgeMillis) {
+        this.historyMessages = maxMessages;
+        this.historyMaxAgeMillis = maxAgeMillis;
+        for (ChatRoom room : rooms.values()) {
+            room.setHistory(newHistory());
+        }
+    }
+
+    int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    private HistoryRing newHistory() {
+        return historyMessages == 0 ? null : new HistoryRing(historyMessages, maxFrameBytes);
+    }
+
+    // Имя комнаты: непустое, без пробелов и не длиннее MAX_ROOM_NAME_LENGTH символов
+    static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ChatRoom get(String name) {
+        return rooms.get(name);
+    }
+
+    /* Добавляет сессию в комнату и отправляет ей историю комнаты.
+    Живые кадры откладываются с момента до входа и до конца проигрывания истории:
+    всё, что попало в историю после взятой границы, придёт сессии через рассылку.
+    Возвращает false, если сессия уже состоит в комнате */
+    boolean join(String name, ClientSession session) {
+        if (session.getRooms().contains(name)) {
+            return false;
+        }
+        session.beginReplay();
+        ChatRoom room = rooms.compute(name, (key, existing) -> {
+            ChatRoom target = existing != null ? existing : new ChatRoom(key, newHistory());
+            target.addMember(session);
+            return target;
+        });
+        session.getRooms().add(name);
+        HistoryRing ring = room.getHistory();
+        if (ring == null) {
+            session.finishReplay(List.of(), null, Long.MAX_VALUE);
+        } else {
+            long mark = ring.tail();
+            long maxAge = historyMaxAgeMillis;
+            long minTimestamp = maxAge == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - maxAge;
+            session.finishReplay(ring.snapshot(mark, historyMessages, minTimestamp), ring, mark);
+        }
+        return true;
+    }
+
+    /* Добавляет сессию в комнату без истории: сессия продолжает после обрыва и получит пропущенное из журнала.
+    Возвращает false, если сессия уже состоит в комнате */
+    boolean rejoin(String name, ClientSession session) {
+        if (session.getRooms().contains(name)) {
+            return false;
+        }
+        rooms.compute(name, (key, existing) -> {
+            ChatRoom target = existing != null ? existing : new ChatRoom(key, newHistory());
+            target.addMember(session);
+            return target;
+        });
+        session.getRooms().add(name);
+        return true;
+    }
+
+    // Убирает сессию из комнаты; пустая комната (кроме общей) удаляется. Возвращает false, если сессии там не было
+    boolean leave(String name, ClientSession session) {
+        if (!session.getRooms().remove(name)) {
+            return false;
+        }
+        rooms.computeIfPresent(name, (key, room) -> {
+            room.removeMember(session);
+            return room.isEmpty() && !DEFAULT_ROOM.equals(key) ? null : room;
+        });
+        return true;
+    }
+
+    // Убирает сессию из всех её комнат при отключении
+    void leaveAll(ClientSession session) {
+        for (String name : session.getRooms()) {
+            leave(name, session);
+        }
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+
+    // Сколько байт занимают истории всех комнат сейчас и сколько могут занять в худшем случае
+    long[] historyMemoryBytes() {
+        long retained = 0;
+        long max = 0;
+        for (ChatRoom room : rooms.values()) {
+            HistoryRing ring = room.getHistory();
+            if (ring != null) {
+                retained += ring.retainedBytes();
+                max += ring.maxRetainedBytes();
+            }
+        }
+        return new long[]{retained, max};
+    }
+}
@@ -0,0 +1,462 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/* Полнотекстовый поиск по журналу: команда /search <слова> [@пользователь] [с даты].
+Индекс строится отдельным потоком, который идёт по журналу следом за писателем: рассылка и запись
+журнала его не ждут. У каждого сегмента журнала свой обратный индекс. Индекс закрытого сегмента
+записывается один раз рядом с ним (file-<номер>.search, TermIndexFile) и при запуске только
+отображается в память, без повторного разбора журнала; индекс текущего сегмента живёт в памяти
+(TermIndex) и при остановке сохраняется в file.log.search, чтобы после перезапуска продолжить с того же места.
+Поиск идёт от новых сегментов к старым и от новых записей к старым и заканчивается, как только
+набрано MAX_RESULTS совпадений, поэтому его цена зависит от числа совпадений, а не от размера истории.
+Запросы выполняются в своём потоке, ответ приходит пользователю отдельными строками.
+Личные сообщения в индекс не попадают: их не должен находить посторонний. Индекс общий для всех комнат,
+поэтому найденное ещё проверяется фильтром видимости спрашивающего — сообщения чужих комнат не показываются */
+class SearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndex.class);
+
+    static final String EXTENSION = ".search";
+    static final int MAX_RESULTS = 20;
+    private static final int BATCH = 4096; // сколько записей журнала индексатор забирает за раз
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WORD = 2;
+    private static final int MAX_WORD = 64;
+    static final String USER_PREFIX = "@"; // слово-отправитель; в обычные слова @ не попадает
+
+    // Индекс одного сегмента журнала: в памяти или в файле
+    interface Segment {
+        long baseSeq();
+
+        long endSeq();
+
+        PostingList postings(String term);
+    }
+
+    private final SegmentedLog log;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // охраняет current
+    private volatile Segment[] sealed = new Segment[0]; // индексы закрытых сегментов по возрастанию номеров
+    private TermIndex current; // индекс сегмента, который сейчас разбирается
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean ready;
+    private ExecutorService queries;
+
+    SearchIndex(SegmentedLog log) {
+        this.log = log;
+        this.thread = new Thread(this::run, "chat-search-index");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    // До какого номера записи (не включая) журнал проиндексирован
+    long indexedUpTo() {
+        lock.readLock().lock();
+        try {
+            return current == null ? 0 : current.endSeq();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running && !load()) {
+                LockSupport.parkNanos(this, IDLE_NANOS); // журнал ещё не открыт писателем
+            }
+            ready = true;
+            while (running) {
+                if (!indexBatch()) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Индекс поиска остановлен из-за ошибки: {}", ex.getMessage());
+        } finally {
+            saveCurrent();
+        }
+    }
+
+    /* Отображает индексы закрытых сегментов и находит, откуда продолжать: с первого сегмента без индекса,
+    а для него — с сохранённого при остановке состояния, если оно есть. false — журнал ещё не открыт */
+    private boolean load() throws IOException {
+        List<SegmentedLog.SegmentBounds> bounds = log.segmentBounds();
+        if (bounds.isEmpty()) {
+            return false;
+        }
+        List<Segment> files = new ArrayList<>();
+        SegmentedLog.SegmentBounds first = bounds.get(bounds.size() - 1);
+        for (SegmentedLog.SegmentBounds segment : bounds) {
+            Segment file = segment.active() ? null : openSealed(segment);
+            if (file == null) {
+                first = segment;
+                break;
+            }
+            files.add(file);
+        }
+        TermIndex resumed = new TermIndex(first.baseSeq());
+        Path saved = log.activeFile(EXTENSION);
+        if (Files.exists(saved)) {
+            try {
+                TermIndex index = TermIndex.read(saved);
+                if (index.baseSeq() == first.baseSeq() && index.endSeq() <= first.endSeq()) {
+                    resumed = index;
+                }
+            } catch (IOException ex) {
+                logger.warn("Сохранённый индекс поиска не прочитан, текущий сегмент будет разобран заново: {}",
+                        ex.getMessage());
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            sealed = files.toArray(new Segment[0]);
+            current = resumed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Индекс поиска: {} сегментов с диска, текущий продолжается с записи {}", files.size(),
+                resumed.endSeq());
+        return true;
+    }
+
+    private Segment openSealed(SegmentedLog.SegmentBounds segment) {
+        Path file = log.closedFile(segment.baseSeq(), EXTENSION);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            TermIndexFile index = TermIndexFile.open(file);
+            return index.baseSeq() == segment.baseSeq() && index.endSeq() == segment.endSeq() ? index : null;
+        } catch (IOException ex) {
+            logger.warn("Индекс поиска {} повреждён и будет построен заново: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    /* Разбирает очередную пачку записей текущего сегмента. Слова выделяются без блокировки, под
+    блокировкой записи только дописываются в списки. Закончив закрытый сегмент, записывает его индекс
+    в файл и переходит к следующему. false — новых записей нет */
+    private boolean indexBatch() throws IOException {
+        TermIndex index = current; // меняет только этот поток
+        long segmentEnd = segmentEnd(index.baseSeq());
+        if (segmentEnd < 0) {
+            // Сегмент удалён политикой хранения раньше, чем его разобрали: продолжаем со следующего без индекса
+            return load();
+        }
+        if (index.endSeq() >= segmentEnd) {
+            seal(index);
+            return true;
+        }
+        List<LogRecord> records = log.range(index.endSeq(), (int) Math.min(BATCH, segmentEnd - index.endSeq()));
+        if (records.isEmpty()) {
+            return false;
+        }
+        // Сегмент мог закрыться во время чтения, и пачка захватила начало следующего
+        segmentEnd = segmentEnd(index.baseSeq());
+        List<List<String>> words = new ArrayList<>(records.size());
+        for (LogRecord record : records) {
+            words.add(record.sequence() < segmentEnd ? indexTerms(record.text()) : null);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                long seq = records.get(i).sequence();
+                if (seq >= segmentEnd) {
+                    break;
+                }
+                if (words.get(i) == null) {
+                    index.skip(seq);
+                } else {
+                    index.add(seq, words.get(i));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    // Конец сегмента с первой записью baseSeq: для текущего — бесконечность, -1 — сегмента больше нет
+    private long segmentEnd(long baseSeq) {
+        for (SegmentedLog.SegmentBounds segment : log.segmentBounds()) {
+            if (segment.baseSeq() == baseSeq) {
+                return segment.active() ? Long.MAX_VALUE : segment.endSeq();
+            }
+        }
+        return -1;
+    }
+
+    private void seal(TermIndex index) throws IOException {
+        Path file = log.closedFile(index.baseSeq(), EXTENSION);
+        index.write(file);
+        startNext(index.endSeq(), TermIndexFile.open(file));
+        logger.debug("Индекс поиска сегмента {} записан: {} слов", index.baseSeq(), index.termCount());
+    }
+
+    private void startNext(long baseSeq, Segment sealedIndex) {
+        lock.writeLock().lock();
+        try {
+            if (sealedIndex != null) {
+                Segment[] grown = Arrays.copyOf(sealed, sealed.length + 1);
+                grown[sealed.length] = sealedIndex;
+                sealed = grown;
+            }
+            current = new TermIndex(baseSeq);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Сохраняет индекс текущего сегмента, чтобы после перезапуска не разбирать его заново
+    private void saveCurrent() {
+        TermIndex index = current;
+        if (index == null || index.endSeq() == index.baseSeq()) {
+            return;
+        }
+        try {
+            index.write(log.activeFile(EXTENSION));
+        } catch (IOException ex) {
+            logger.warn("Индекс поиска не сохранён: {}", ex.getMessage());
+        }
+    }
+
+    // Останавливает индексатор и дожидается сохранения индекса текущего сегмента
+    void stop(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(thread);
+        synchronized (this) {
+            if (queries != null) {
+                queries.shutdownNow();
+            }
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Выполняет запрос в потоке поиска и отдаёт строки ответа reply; поток сообщений при этом не ждёт.
+    visible решает по записи журнала, можно ли показать её спрашивающему */
+    void submit(String query, Predicate<String> visible, Consumer<String> reply) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (queries == null) {
+                queries = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "chat-search");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            executor = queries;
+        }
+        try {
+            executor.execute(() -> search(query, visible).forEach(reply));
+        } catch (RejectedExecutionException ex) {
+            reply.accept("Поиск недоступен: сервер останавливается");
+        }
+    }
+
+    /* Строки ответа на запрос: слова, @пользователь и дата (2024-05-01 или 2024-05-01T10:00) в любом порядке.
+    Найденные сообщения — последние MAX_RESULTS видимых совпадений, от старых к новым. Невидимые совпадения
+    пропускаются, и индекс читается дальше страницами, пока видимых не наберётся достаточно */
+    List<String> search(String query, Predicate<String> visible) {
+        List<String> terms = new ArrayList<>();
+        String user = null;
+        long since = 0;
+        for (String token : query.trim().split("\\s+")) {
+            if (token.startsWith(USER_PREFIX) && token.length() > 1) {
+                user = token.substring(1);
+                continue;
+            }
+            long time = parseTime(token);
+            if (time >= 0) {
+                since = time;
+                continue;
+            }
+            terms.addAll(words(token));
+        }
+        if (terms.isEmpty() && user == null) {
+            return List.of("Использование: /search <слова> [@пользователь] [2024-05-01 или 2024-05-01T10:00]");
+        }
+        if (!ready) {
+            return List.of("Индекс поиска ещё загружается, повторите запрос позже");
+        }
+        if (user != null) {
+            terms.add(USER_PREFIX + user.toLowerCase(Locale.ROOT));
+        }
+        long minSeq = 0;
+        if (since > 0) {
+            minSeq = log.firstSequenceSince(since);
+            if (minSeq < 0) {
+                return List.of("Ничего не найдено");
+            }
+        }
+        List<String> lines = new ArrayList<>(MAX_RESULTS + 1);
+        long before = Long.MAX_VALUE;
+        boolean more = true;
+        while (more && lines.size() < MAX_RESULTS) {
+            long[] hits = find(terms, minSeq, before, MAX_RESULTS);
+            more = hits.length == MAX_RESULTS;
+            for (int i = 0; i < hits.length && lines.size() < MAX_RESULTS; i++) {
+                before = hits[i];
+                List<LogRecord> record = log.range(hits[i], 1);
+                if (!record.isEmpty() && record.get(0).sequence() == hits[i] && visible.test(record.get(0).text())) {
+                    lines.add(record.get(0).text());
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return List.of("Ничего не найдено");
+        }
+        Collections.reverse(lines);
+        lines.add(0, "Найдено сообщений: " + lines.size() + (lines.size() == MAX_RESULTS ? " (последние)" : ""));
+        return lines;
+    }
+
+    // Время начала дня или момент из строки ISO; -1 — это не дата
+    private static long parseTime(String token) {
+        if (token.isEmpty() || !Character.isDigit(token.charAt(0))) {
+            return -1;
+        }
+        try {
+            LocalDateTime time = token.indexOf('T') > 0 ? LocalDateTime.parse(token) : LocalDate.parse(token).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    // Номера последних (не более limit) записей из [minSeq, maxSeq), где есть все слова terms; от новых к старым
+    long[] find(List<String> terms, long minSeq, long maxSeq, int limit) {
+        long[] hits = new long[limit];
+        int found;
+        Segment[] older;
+        lock.readLock().lock();
+        try {
+            older = sealed;
+            found = current == null ? 0 : collect(current, terms, minSeq, maxSeq, hits, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Закрытые сегменты неизменны, их читаем без блокировки
+        for (int i = older.length - 1; i >= 0 && found < limit && older[i].endSeq() > minSeq; i--) {
+            if (older[i].baseSeq() < maxSeq) {
+                found = collect(older[i], terms, minSeq, maxSeq, hits, found);
+            }
+        }
+        return Arrays.copyOf(hits, found);
+    }
+
+    /* Ищет в одном сегменте, дописывая найденное в hits с позиции found. Ведущий — самый короткий список:
+    он распаковывается блоками с конца, а остальные только проверяются курсорами */
+    static int collect(Segment segment, List<String> terms, long minSeq, long maxSeq, long[] hits, int found) {
+        PostingList[] lists = new PostingList[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = segment.postings(terms.get(i));
+            if (lists[i] == null) {
+                return found; // одного из слов в сегменте нет
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(PostingList::count));
+        PostingList driver = lists[0];
+        PostingList.Cursor[] others = new PostingList.Cursor[lists.length - 1];
+        for (int i = 1; i < lists.length; i++) {
+            others[i - 1] = lists[i].new Cursor();
+        }
+        long minDoc = minSeq - segment.baseSeq();
+        long maxDoc = maxSeq - segment.baseSeq();
+        int[] docs = new int[PostingList.BLOCK];
+        for (int b = driver.blockCount() - 1; b >= 0; b--) {
+            int n = driver.decodeBlock(b, docs);
+            for (int i = n - 1; i >= 0; i--) {
+                if (docs[i] < minDoc) {
+                    return found;
+                }
+                if (docs[i] >= maxDoc) {
+                    continue; // эту часть уже просмотрела прошлая страница
+                }
+                boolean all = true;
+                for (PostingList.Cursor cursor : others) {
+                    if (!cursor.contains(docs[i])) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) {
+                    hits[found++] = segment.baseSeq() + docs[i];
+                    if (found == hits.length) {
+                        return found;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /* Слова записи журнала «[время] [отправитель] [#комната]: текст» и слово-отправитель;
+    null — запись не индексируется (личное сообщение или запись другого вида) */
+    static List<String> indexTerms(String entry) {
+        int at = entry.indexOf("] [");
+        int end = at < 0 ? -1 : entry.indexOf(']', at + 3);
+        int colon = end < 0 ? -1 : entry.indexOf(": ", end);
+        if (colon < 0) {
+            return null;
+        }
+        String sender = entry.substring(at + 3, end);
+        if (sender.contains(" -> ")) {
+            return null;
+        }
+        List<String> words = words(entry.substring(colon + 2));
+        words.add(USER_PREFIX + sender.toLowerCase(Locale.ROOT));
+        return words;
+    }
+
+    // Слова текста в нижнем регистре: подряд идущие буквы и цифры, от MIN_WORD символов, длинные обрезаются
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD) {
+                    word.append(Character.toLowerCase(c));
+                }
+            } else if (word.length() > 0) {
+                if (word.length() >= MIN_WORD) {
+                    words.add(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
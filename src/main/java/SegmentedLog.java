@@ -0,0 +1,900 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/* Журнал чата, разбитый на сегменты. Текущий сегмент — это сам file.log (его по-прежнему можно читать
+глазами), закрытые сегменты переименовываются в file-<номер первой записи>.log. Рядом с каждым сегментом
+лежит компактный двоичный индекс (.idx): заголовок и по 20 байт на запись — время записи, смещение и длина
+в сегменте и контрольная сумма CRC32C её байт. Порядковый номер записи не хранится: он равен номеру первой
+записи сегмента плюс позиция в индексе. Поэтому «сообщения начиная с T», «последние N сообщений» и «всё после
+номера S» — это двоичный поиск по индексу и короткое чтение отображённого в память участка, а не просмотр
+всего журнала.
+
+Журнал только дописывается. При открытии записи текущего сегмента проверяются по порядку: первая запись,
+которой нет в данных или у которой не сошлась сумма (сбой посреди записи на диск), и всё после неё
+отбрасываются, а файлы обрезаются до последней целой записи. У журнала есть случайный идентификатор
+(хранится в заголовке индекса и переходит в новые сегменты): клиент, помнящий номер последней записи,
+по нему понимает, что номера относятся к тому же журналу.
+
+Номер записи выдаётся и рассылается раньше, чем запись попадает на диск. Поэтому после сбоя (журнал не был
+закрыт close() или при открытии отброшен хвост) журнал получает новый идентификатор: номера потерянных
+записей будут выданы заново, и клиент не должен счесть новые сообщения повторами. Признак аккуратного
+закрытия — пустой файл file.log.clean, который close() создаёт, а open() удаляет.
+
+Пишет в журнал только один поток (писатель ChatLogWriter); методы чтения можно вызывать из любых потоков */
+class SegmentedLog {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedLog.class);
+
+    static final int INDEX_MAGIC = 0x43484C47; // "CHLG"
+    static final int INDEX_VERSION = 2;
+    // MAGIC (4) + версия (4) + идентификатор журнала (8) + номер первой записи (8) + время создания сегмента (8)
+    static final int INDEX_HEADER = 32;
+    // время записи (8) + смещение в сегменте (4) + длина (4) + CRC32C (4)
+    static final int INDEX_RECORD = 20;
+    private static final int LEGACY_HEADER = 16; // индекс первой версии: номер первой записи и время создания
+    private static final int LEGACY_RECORD = 12; // время записи и смещение
+    private static final int DATA_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PENDING = 8192;
+    private static final long MAX_SEGMENT_LIMIT = 1L << 30; // смещение в индексе — int
+
+    private final Path dir;
+    private final String baseName; // имя без расширения: file.log -> file
+    private final Path activeLog;
+    private final Path activeIndex;
+    private final Path cleanMarker; // существует, только пока журнал закрыт без потерь
+    private volatile long maxSegmentBytes = 64L * 1024 * 1024;
+    private volatile long maxSegmentAgeMillis = TimeUnit.DAYS.toMillis(1);
+    private volatile LogRetentionPolicy retention = LogRetentionPolicy.DEFAULT;
+    private volatile long logId; // идентификатор журнала, известен после open()
+
+    // Сегменты по возрастанию номера первой записи; последний — текущий. Массив заменяется целиком
+    private volatile Segment[] segments = new Segment[0];
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+    // Сжатие и удаление старых сегментов идут в отдельном потоке, чтобы не задерживать писателя
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-log-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* Распакованный сжатый сегмент, прочитанный последним. Читатели идут по сегменту кусками (индекс поиска,
+    /resume, результаты /search), и без него каждый кусок распаковывался бы с начала файла. Мягкая ссылка:
+    при нехватке памяти копия отдаётся сборщику мусора и при следующем чтении распаковывается заново */
+    private volatile Inflated inflated;
+
+    // Состояние ниже принадлежит только потоку-писателю
+    private boolean opened;
+    private Segment active;
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private final ByteBuffer data = ByteBuffer.allocateDirect(DATA_BUFFER_SIZE);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(MAX_PENDING * INDEX_RECORD);
+    private final long[] pendingTimestamps = new long[MAX_PENDING];
+    private final int[] pendingOffsets = new int[MAX_PENDING];
+    private final int[] pendingLengths = new int[MAX_PENDING];
+    private final int[] pendingChecksums = new int[MAX_PENDING];
+    private int pendingCount;
+    private long lastTimestamp;
+    private final CRC32C checksum = new CRC32C();
+
+    SegmentedLog(Path logFile) {
+        this.activeLog = logFile.toAbsolutePath();
+        this.dir = activeLog.getParent();
+        String fileName = activeLog.getFileName().toString();
+        this.baseName = fileName.endsWith(".log") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        this.activeIndex = dir.resolve(fileName + ".idx");
+        this.cleanMarker = dir.resolve(fileName + ".clean");
+    }
+
+    Path getActiveLog() {
+        return activeLog;
+    }
+
+    // Идентификатор журнала: номера записей сравнимы, только если он совпадает
+    long logId() {
+        return logId;
+    }
+
+    // Задаёт пороги закрытия текущего сегмента: по размеру и по возрасту
+    void setSegmentLimits(long maxBytes, long maxAgeMillis) {
+        if (maxBytes <= 0 || maxBytes > MAX_SEGMENT_LIMIT || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Недопустимые пороги сегмента: " + maxBytes + " байт, " + maxAgeMillis + " мс");
+        }
+        this.maxSegmentBytes = maxBytes;
+        this.maxSegmentAgeMillis = maxAgeMillis;
+    }
+
+    void setRetention(LogRetentionPolicy retention) {
+        this.retention = retention;
+    }
+
+    /* Открывает журнал: находит закрытые сегменты и восстанавливает текущий, отбрасывая его оборванный хвост.
+    Индексы первой версии переписываются в текущий формат. Журнал прежнего формата без индекса индексируется
+    целиком как одна запись. Закрытие сегмента, прерванное сбоем между переименованиями, доводится до конца */
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        finishInterruptedRoll();
+        List<Segment> list = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, baseName + "-*.idx")) {
+            for (Path index : stream) {
+                Segment segment = loadClosed(index);
+                if (segment != null) {
+                    list.add(segment);
+                }
+            }
+        }
+        list.sort(Comparator.comparingLong(s -> s.baseSeq));
+        long next = list.isEmpty() ? 0 : list.get(list.size() - 1).endSeq();
+        boolean clean = Files.deleteIfExists(cleanMarker);
+        active = recoverActive(next, clean);
+        list.add(active);
+        segments = list.toArray(new Segment[0]);
+        lastTimestamp = active.committed.lastTimestamp;
+        openChannels();
+        opened = true;
+    }
+
+    /* Сегмент закрывается двумя переименованиями: сначала данные, потом индекс. Если сбой пришёлся между
+    ними, текущий индекс остался без данных — переименовываем и его. Прежняя версия переименовывала в обратном
+    порядке, тогда без пары остаются закрытый индекс и текущие данные — переносим данные к нему */
+    private void finishInterruptedRoll() throws IOException {
+        boolean hasLog = Files.exists(activeLog);
+        boolean hasIndex = Files.exists(activeIndex);
+        if (!hasLog && hasIndex) {
+            ByteBuffer header;
+            try (FileChannel channel = FileChannel.open(activeIndex, StandardOpenOption.READ)) {
+                header = readHeader(channel);
+            }
+            if (header != null && Files.exists(closedFile(header.getLong(16), ".log"))) {
+                Path rolledIndex = closedFile(header.getLong(16), ".idx");
+                Files.move(activeIndex, rolledIndex, StandardCopyOption.ATOMIC_MOVE);
+                logger.warn("Журнал: закрытие сегмента {} завершено после сбоя", rolledIndex.getFileName());
+            }
+        } else if (hasLog && !hasIndex) {
+            Path orphan = null; // последний закрытый индекс без данных
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, baseName + "-*.idx")) {
+                for (Path index : stream) {
+                    String fileName = index.getFileName().toString();
+                    String prefix = fileName.substring(0, fileName.length() - ".idx".length());
+                    if (!Files.exists(dir.resolve(prefix + ".log")) && !Files.exists(dir.resolve(prefix + ".log.gz"))
+                            && (orphan == null || fileName.compareTo(orphan.getFileName().toString()) > 0)) {
+                        orphan = index;
+                    }
+                }
+            }
+            if (orphan != null) {
+                String fileName = orphan.getFileName().toString();
+                Files.move(activeLog, dir.resolve(fileName.substring(0, fileName.length() - ".idx".length()) + ".log"),
+                        StandardCopyOption.ATOMIC_MOVE);
+                logger.warn("Журнал: закрытие сегмента {} завершено после сбоя", fileName);
+            }
+        }
+    }
+
+    private Segment loadClosed(Path index) throws IOException {
+        String fileName = index.getFileName().toString();
+        String prefix = fileName.substring(0, fileName.length() - ".idx".length());
+        Path log = dir.resolve(prefix + ".log");
+        Path gz = dir.resolve(prefix + ".log.gz");
+        boolean compressed = !Files.exists(log);
+        if (compressed && !Files.exists(gz)) {
+            Files.delete(index); // данные сегмента уже удалены
+            return null;
+        }
+        upgradeLegacy(index, compressed ? gz : log, compressed);
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            if (header == null) {
+                return null;
+            }
+            int count = (int) ((channel.size() - INDEX_HEADER) / INDEX_RECORD);
+            long lastTs = 0;
+            long size = 0;
+            if (count > 0) {
+                // Закрытый сегмент перед закрытием синхронизирован с диском, его записи не проверяем
+                ByteBuffer last = ByteBuffer.allocate(INDEX_RECORD);
+                channel.read(last, recordPosition(count - 1));
+                lastTs = last.getLong(0);
+                size = Integer.toUnsignedLong(last.getInt(8)) + Integer.toUnsignedLong(last.getInt(12));
+            }
+            Segment segment = new Segment(header.getLong(16), header.getLong(24), compressed ? gz : log, index,
+                    new Committed(count, size, lastTs));
+            segment.active = false;
+            segment.compressed = compressed;
+            return segment;
+        }
+    }
+
+    private Segment recoverActive(long next, boolean clean) throws IOException {
+        if (!Files.exists(activeLog)) {
+            return createActive(next);
+        }
+        if (Files.exists(activeIndex)) {
+            upgradeLegacy(activeIndex, activeLog, false);
+            try (FileChannel channel = FileChannel.open(activeIndex, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = readHeader(channel);
+                if (header != null) {
+                    logId = header.getLong(8);
+                    int count = (int) ((channel.size() - INDEX_HEADER) / INDEX_RECORD);
+                    Committed committed = truncateTornTail(channel, count);
+                    if (logId == 0) {
+                        logId = newLogId(); // индекс переписан из первой версии
+                        channel.write(ByteBuffer.allocate(8).putLong(0, logId), 8);
+                    } else if (!clean || committed.count < count) {
+                        // Выданные, но не записанные номера достанутся новым записям: это уже другой журнал
+                        logId = newLogId();
+                        channel.write(ByteBuffer.allocate(8).putLong(0, logId), 8);
+                        channel.force(false);
+                        logger.warn("Журнал не был закрыт аккуратно: новый идентификатор журнала");
+                    }
+                    return new Segment(header.getLong(16), header.getLong(24), activeLog, activeIndex, committed);
+                }
+            }
+        }
+        // Журнал прежнего формата: индексируем его целиком одной записью со временем изменения файла
+        long logSize = Files.size(activeLog);
+        long now = System.currentTimeMillis();
+        if (logId == 0) {
+            logId = newLogId();
+        }
+        writeIndexHeader(activeIndex, logId, next, now);
+        if (logSize == 0) {
+            return new Segment(next, now, activeLog, activeIndex, new Committed(0, 0, 0));
+        }
+        long modified = Files.getLastModifiedTime(activeLog).toMillis();
+        int sum;
+        try (FileChannel channel = FileChannel.open(activeLog, StandardOpenOption.READ)) {
+            CRC32C crc = new CRC32C();
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, logSize));
+            sum = (int) crc.getValue();
+        }
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD).putLong(modified).putInt(0).putInt((int) logSize)
+                .putInt(sum).flip();
+        try (FileChannel channel = FileChannel.open(activeIndex, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(record);
+        }
+        return new Segment(next, now, activeLog, activeIndex, new Committed(1, logSize, modified));
+    }
+
+    /* Проверяет записи текущего сегмента по порядку: каждая должна начинаться там, где кончилась предыдущая,
+    целиком лежать в данных и совпадать по сумме. Первая неверная запись и всё после неё — оборванный хвост
+    (сбой посреди записи на диск): индекс и данные обрезаются до последней целой записи */
+    private Committed truncateTornTail(FileChannel index, int count) throws IOException {
+        try (FileChannel log = FileChannel.open(activeLog, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long logSize = log.size();
+            MappedByteBuffer records = index.map(FileChannel.MapMode.READ_ONLY, 0, recordPosition(count));
+            MappedByteBuffer data = log.map(FileChannel.MapMode.READ_ONLY, 0, logSize);
+            CRC32C crc = new CRC32C();
+            int valid = 0;
+            long end = 0;
+            long lastTs = 0;
+            for (; valid < count; valid++) {
+                long offset = offsetAt(records, valid);
+                long length = lengthAt(records, valid);
+                if (offset != end || offset + length > logSize) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data.slice((int) offset, (int) length));
+                if ((int) crc.getValue() != checksumAt(records, valid)) {
+                    break;
+                }
+                end = offset + length;
+                lastTs = timestampAt(records, valid);
+            }
+            if (valid < count || end < logSize) {
+                logger.warn("Журнал: отброшен оборванный хвост — записей: {}, байт: {}", count - valid, logSize - end);
+                index.truncate(recordPosition(valid));
+                log.truncate(end);
+                index.force(false);
+                log.force(false);
+            }
+            return new Committed(valid, end, lastTs);
+        }
+    }
+
+    /* Индекс первой версии (без MAGIC, по 12 байт на запись: время и смещение) переписывается в текущий формат:
+    длины берутся из соседних смещений, суммы считаются по данным. Делается один раз, через временный файл.
+    Идентификатор журнала в нём нулевой: текущему сегменту он присваивается при открытии */
+    private static void upgradeLegacy(Path index, Path data, boolean compressed) throws IOException {
+        ByteBuffer old;
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            if (channel.size() < LEGACY_HEADER || readInt(channel, 0) == INDEX_MAGIC) {
+                return;
+            }
+            old = ByteBuffer.allocate((int) channel.size());
+            while (old.hasRemaining() && channel.read(old) >= 0) {
+                // читаем индекс целиком
+            }
+        }
+        int count = (old.capacity() - LEGACY_HEADER) / LEGACY_RECORD;
+        ByteBuffer upgraded = ByteBuffer.allocate(INDEX_HEADER + count * INDEX_RECORD);
+        upgraded.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(0).putLong(old.getLong(0)).putLong(old.getLong(8));
+        CRC32C crc = new CRC32C();
+        try (InputStream in = compressed
+                ? new GZIPInputStream(Files.newInputStream(data), 64 * 1024)
+                : new BufferedInputStream(Files.newInputStream(data), 64 * 1024)) {
+            long position = 0;
+            for (int i = 0; i < count; i++) {
+                int at = LEGACY_HEADER + i * LEGACY_RECORD;
+                long offset = Integer.toUnsignedLong(old.getInt(at + 8));
+                if (offset < position) {
+                    break;
+                }
+                in.skipNBytes(offset - position);
+                byte[] bytes = i + 1 < count
+                        ? in.readNBytes((int) (Integer.toUnsignedLong(old.getInt(at + LEGACY_RECORD + 8)) - offset))
+                        : in.readAllBytes();
+                crc.reset();
+                crc.update(bytes);
+                upgraded.putLong(old.getLong(at)).putInt((int) offset).putInt(bytes.length).putInt((int) crc.getValue());
+                position = offset + bytes.length;
+            }
+        } catch (EOFException ex) {
+            // индекс опережал данные: оставляем записи, для которых данные есть
+        }
+        upgraded.flip();
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (upgraded.hasRemaining()) {
+                channel.write(upgraded);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long newLogId() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    private Segment createActive(long baseSeq) throws IOException {
+        long now = System.currentTimeMillis();
+        if (logId == 0) {
+            logId = newLogId();
+        }
+        writeIndexHeader(activeIndex, logId, baseSeq, now);
+        Files.newOutputStream(activeLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING).close();
+        return new Segment(baseSeq, now, activeLog, activeIndex, new Committed(0, 0, 0));
+    }
+
+    private static void writeIndexHeader(Path index, long logId, long baseSeq, long createdAt) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER).putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(logId)
+                .putLong(baseSeq).putLong(createdAt).flip();
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+        }
+    }
+
+    private void openChannels() throws IOException {
+        logChannel = FileChannel.open(activeLog, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexChannel = FileChannel.open(activeIndex, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // После ошибки записи в файлах мог остаться обрывок пачки: отрезаем его, чтобы смещения сошлись
+        Committed committed = active.committed;
+        logChannel.truncate(committed.size);
+        indexChannel.truncate(recordPosition(committed.count));
+    }
+
+    private void closeChannels() {
+        for (FileChannel channel : new FileChannel[]{logChannel, indexChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // канал уже закрыт
+                }
+            }
+        }
+        logChannel = null;
+        indexChannel = null;
+    }
+
+    // Номер, который получит следующая запись
+    long nextSequence() {
+        Segment[] snapshot = segments;
+        return snapshot.length == 0 ? 0 : snapshot[snapshot.length - 1].endSeq() + pendingCount;
+    }
+
+    /* Добавляет запись с текущим временем; время записей в журнале не убывает.
+    false — запись не принята: накопленную пачку не удалось записать, она ждёт повтора writePending() */
+    boolean append(String entry) {
+        return append(entry, System.currentTimeMillis());
+    }
+
+    boolean append(String entry, long timestamp) {
+        byte[] bytes = (entry + "\n").getBytes(StandardCharsets.UTF_8);
+        if ((bytes.length > data.remaining() || pendingCount == MAX_PENDING) && !writePending()) {
+            return false;
+        }
+        timestamp = Math.max(timestamp, lastTimestamp);
+        lastTimestamp = timestamp;
+        checksum.reset();
+        checksum.update(bytes);
+        pendingTimestamps[pendingCount] = timestamp;
+        pendingOffsets[pendingCount] = data.position();
+        pendingLengths[pendingCount] = bytes.length;
+        pendingChecksums[pendingCount] = (int) checksum.getValue();
+        pendingCount++;
+        if (bytes.length > data.capacity()) {
+            // Очень длинная запись идёт мимо буфера; буфер перед ней уже пуст, повторять её будет вызывающий
+            if (!writeBatch(ByteBuffer.wrap(bytes))) {
+                pendingCount--;
+                return false;
+            }
+        } else {
+            data.put(bytes);
+        }
+        return true;
+    }
+
+    /* Записывает накопленные записи и их индекс в текущий сегмент. При ошибке записи пачка остаётся в буфере
+    и пишется целиком заново при следующем вызове; false — пачка ещё не записана */
+    boolean writePending() {
+        data.flip();
+        if (writeBatch(data)) {
+            data.clear();
+            return true;
+        }
+        data.position(data.limit()).limit(data.capacity()); // содержимое буфера не тронуто, дописывать можно дальше
+        return false;
+    }
+
+    private boolean writeBatch(ByteBuffer batch) {
+        if (pendingCount == 0) {
+            return true;
+        }
+        try {
+            ensureActive();
+            Committed committed = active.committed;
+            indexBuffer.clear();
+            for (int i = 0; i < pendingCount; i++) {
+                indexBuffer.putLong(pendingTimestamps[i]).putInt((int) (committed.size + pendingOffsets[i]))
+                        .putInt(pendingLengths[i]).putInt(pendingChecksums[i]);
+            }
+            indexBuffer.flip();
+            int length = batch.remaining();
+            // Сначала данные, потом индекс: при сбое индекс может только отстать и восстанавливается при открытии
+            while (batch.hasRemaining()) {
+                logChannel.write(batch);
+            }
+            while (indexBuffer.hasRemaining()) {
+                indexChannel.write(indexBuffer);
+            }
+            active.committed = new Committed(committed.count + pendingCount, committed.size + length,
+                    pendingTimestamps[pendingCount - 1]);
+            pendingCount = 0;
+            return true;
+        } catch (IOException ex) {
+            logger.error("Ошибка записи в лог-файл: {}", ex.getMessage());
+            // При повторе журнал откроется заново, а записанный обрывок пачки будет отрезан
+            closeChannels();
+            return false;
+        }
+    }
+
+    // Дожидается физической записи данных и индекса на диск
+    void force() {
+        try {
+            if (logChannel != null) {
+                logChannel.force(false);
+                indexChannel.force(false);
+            }
+        } catch (IOException ex) {
+            logger.error("Ошибка записи в лог-файл: {}", ex.getMessage());
+        }
+    }
+
+    private void ensureActive() throws IOException {
+        if (!opened) {
+            open();
+        }
+        if (!Files.exists(activeLog)) {
+            // Файл удалили снаружи: его записи потеряны, начинаем новый сегмент с того же номера в новом журнале
+            closeChannels();
+            Segment lost = active;
+            logId = newLogId();
+            active = createActive(lost.baseSeq + lost.committed.count);
+            replaceSegments(lost, active);
+            openChannels();
+        } else if (logChannel == null) {
+            openChannels();
+        }
+        Committed committed = active.committed;
+        if (committed.count > 0 && (committed.size >= maxSegmentBytes
+                || System.currentTimeMillis() - active.createdAt >= maxSegmentAgeMillis)) {
+            roll();
+        }
+    }
+
+    /* Закрывает текущий сегмент и начинает новый. Закрытый сегмент при открытии журнала уже не проверяется,
+    поэтому перед закрытием он синхронизируется с диском независимо от политики сброса */
+    private void roll() throws IOException {
+        logChannel.force(false);
+        indexChannel.force(false);
+        closeChannels();
+        Path rolledLog = closedFile(active.baseSeq, ".log");
+        Path rolledIndex = closedFile(active.baseSeq, ".idx");
+        // Сначала данные, потом индекс: после сбоя между ними open() узнаёт сегмент по заголовку индекса
+        Files.move(activeLog, rolledLog, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(activeIndex, rolledIndex, StandardCopyOption.ATOMIC_MOVE);
+        Segment closed = active;
+        closed.index = rolledIndex;
+        closed.log = rolledLog;
+        closed.active = false;
+        active = createActive(closed.endSeq());
+        replaceSegments(null, active);
+        openChannels();
+        maintenance.execute(this::applyRetention);
+    }
+
+    // Файл закрытого сегмента с номером первой записи baseSeq: file-<номер>.log, .idx и спутники
+    Path closedFile(long baseSeq, String extension) {
+        return dir.resolve(String.format("%s-%020d%s", baseName, baseSeq, extension));
+    }
+
+    // Спутник текущего сегмента: file.log.idx, file.log.search
+    Path activeFile(String extension) {
+        return dir.resolve(activeLog.getFileName() + extension);
+    }
+
+    // Заменяет сегмент removed на added (или добавляет added в конец, если removed == null)
+    private void replaceSegments(Segment removed, Segment added) {
+        segmentsLock.lock();
+        try {
+            List<Segment> list = new ArrayList<>(Arrays.asList(segments));
+            if (removed != null) {
+                list.remove(removed);
+            }
+            if (added != null) {
+                list.add(added);
+            }
+            segments = list.toArray(new Segment[0]);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    // Применяет политику хранения к закрытым сегментам, от новых к старым
+    void applyRetention() {
+        LogRetentionPolicy policy = retention;
+        Segment[] snapshot = segments;
+        long now = System.currentTimeMillis();
+        int closedIndex = 0;
+        for (int i = snapshot.length - 1; i >= 0; i--) {
+            Segment segment = snapshot[i];
+            if (segment.active) {
+                continue;
+            }
+            try {
+                if (policy.getMaxAgeMillis() > 0 && segment.committed.lastTimestamp < now - policy.getMaxAgeMillis()) {
+                    replaceSegments(segment, null);
+                    Files.deleteIfExists(segment.log);
+                    Files.deleteIfExists(segment.index);
+                    Files.deleteIfExists(closedFile(segment.baseSeq, SearchIndex.EXTENSION));
+                } else if (policy.isCompress() && closedIndex >= policy.getKeepUncompressed() && !segment.compressed) {
+                    compress(segment);
+                }
+            } catch (IOException ex) {
+                logger.warn("Ошибка обслуживания журнала: {}", ex.getMessage());
+            }
+            closedIndex++;
+        }
+    }
+
+    private static void compress(Segment segment) throws IOException {
+        Path source = segment.log;
+        Path target = source.resolveSibling(source.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target), 64 * 1024)) {
+            in.transferTo(out);
+        }
+        segment.log = target;
+        segment.compressed = true;
+        Files.delete(source);
+    }
+
+    // Последние n записей журнала
+    List<LogRecord> lastN(int n) {
+        Segment[] snapshot = segments;
+        if (snapshot.length == 0) {
+            return List.of();
+        }
+        long end = snapshot[snapshot.length - 1].endSeq();
+        return range(Math.max(snapshot[0].baseSeq, end - n), n);
+    }
+
+    // Записи, сделанные не раньше timestamp (не более limit штук)
+    List<LogRecord> since(long timestamp, int limit) {
+        long first = firstSequenceSince(timestamp);
+        return first < 0 ? List.of() : range(first, limit);
+    }
+
+    // Номер первой записи, сделанной не раньше timestamp; -1 — таких записей нет
+    long firstSequenceSince(long timestamp) {
+        Segment[] snapshot = segments;
+        // Первый сегмент, последняя запись которого не раньше timestamp: время записей не убывает
+        int lo = 0;
+        int hi = snapshot.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Committed committed = snapshot[mid].committed;
+            if (committed.count == 0 || committed.lastTimestamp < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == snapshot.length) {
+            return -1;
+        }
+        Segment segment = snapshot[lo];
+        for (int attempt = 0; ; attempt++) {
+            try {
+                ByteBuffer index = indexView(segment, segment.committed);
+                return segment.baseSeq + lowerBound(index, segment.committed.count, timestamp);
+            } catch (IOException ex) {
+                if (attempt > 0) {
+                    throw new IllegalStateException("Ошибка чтения журнала: " + ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    // Записи с номерами от fromSeq (не более limit штук)
+    List<LogRecord> range(long fromSeq, int limit) {
+        List<LogRecord> result = new ArrayList<>(Math.min(limit, 1024));
+        Segment[] snapshot = segments;
+        int i = findSegment(snapshot, fromSeq);
+        long seq = Math.max(fromSeq, snapshot.length == 0 ? 0 : snapshot[Math.max(i, 0)].baseSeq);
+        for (; i >= 0 && i < snapshot.length && result.size() < limit; i++) {
+            Segment segment = snapshot[i];
+            readSegment(segment, seq, limit - result.size(), result);
+            seq = segment.endSeq();
+        }
+        return result;
+    }
+
+    // Границы сегментов по возрастанию номеров; последний — текущий
+    List<SegmentBounds> segmentBounds() {
+        Segment[] snapshot = segments;
+        List<SegmentBounds> result = new ArrayList<>(snapshot.length);
+        for (Segment segment : snapshot) {
+            result.add(new SegmentBounds(segment.baseSeq, segment.endSeq(), segment.active));
+        }
+        return result;
+    }
+
+    // Последний сегмент, номер первой записи которого не больше seq (или 0, если seq раньше всех)
+    private static int findSegment(Segment[] snapshot, long seq) {
+        int lo = 0;
+        int hi = snapshot.length - 1;
+        int found = snapshot.length == 0 ? -1 : 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (snapshot[mid].baseSeq <= seq) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private void readSegment(Segment segment, long fromSeq, int max, List<LogRecord> out) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                readSegmentOnce(segment, fromSeq, max, out);
+                return;
+            } catch (NoSuchFileException ex) {
+                // сегмент как раз закрыли или сжали: пути уже обновлены, пробуем ещё раз
+                if (attempt > 0) {
+                    throw new IllegalStateException("Ошибка чтения журнала: " + ex.getMessage(), ex);
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("Ошибка чтения журнала: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void readSegmentOnce(Segment segment, long fromSeq, int max, List<LogRecord> out) throws IOException {
+        Committed committed = segment.committed;
+        long startIndex = fromSeq - segment.baseSeq;
+        if (startIndex < 0 || startIndex >= committed.count) {
+            return;
+        }
+        int start = (int) startIndex;
+        int end = (int) Math.min(committed.count, startIndex + max);
+        ByteBuffer index = indexView(segment, committed);
+        long startOffset = offsetAt(index, start);
+        long endOffset = offsetAt(index, end - 1) + lengthAt(index, end - 1);
+        byte[] bytes = readBytes(segment, startOffset, endOffset);
+        for (int i = start; i < end; i++) {
+            int from = (int) (offsetAt(index, i) - startOffset);
+            int to = from + (int) lengthAt(index, i);
+            int length = to > from && bytes[to - 1] == '\n' ? to - from - 1 : to - from;
+            out.add(new LogRecord(segment.baseSeq + i, timestampAt(index, i),
+                    new String(bytes, from, length, StandardCharsets.UTF_8)));
+        }
+    }
+
+    // Индекс закрытого сегмента отображается в память один раз, текущего — на каждый запрос
+    private static ByteBuffer indexView(Segment segment, Committed committed) throws IOException {
+        MappedByteBuffer cached = segment.mappedIndex;
+        if (cached != null) {
+            return cached;
+        }
+        boolean active = segment.active;
+        try (FileChannel channel = FileChannel.open(segment.index, StandardOpenOption.READ)) {
+            long length = active ? recordPosition(committed.count) : channel.size();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (!active) {
+                segment.mappedIndex = mapped;
+            }
+            return mapped;
+        }
+    }
+
+    private byte[] readBytes(Segment segment, long from, long to) throws IOException {
+        if (segment.compressed) {
+            return Arrays.copyOfRange(inflate(segment), (int) from, (int) to);
+        }
+        try (FileChannel channel = FileChannel.open(segment.log, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            byte[] bytes = new byte[(int) (to - from)];
+            mapped.get(0, bytes);
+            return bytes;
+        }
+    }
+
+    // Данные сжатого сегмента целиком: из кэша, если это тот же сегмент, иначе распаковываются один раз
+    private byte[] inflate(Segment segment) throws IOException {
+        Inflated cached = inflated;
+        byte[] bytes = cached != null && cached.segment() == segment ? cached.bytes().get() : null;
+        if (bytes == null) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(segment.log), 64 * 1024)) {
+                bytes = in.readNBytes((int) segment.committed.size);
+            }
+            if (bytes.length < segment.committed.size) {
+                throw new EOFException("Сжатый сегмент короче индекса: " + segment.log);
+            }
+            inflated = new Inflated(segment, new SoftReference<>(bytes));
+        }
+        return bytes;
+    }
+
+    private static int lowerBound(ByteBuffer index, int count, long timestamp) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestampAt(index, mid) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static long recordPosition(int i) {
+        return INDEX_HEADER + (long) i * INDEX_RECORD;
+    }
+
+    private static long timestampAt(ByteBuffer index, int i) {
+        return index.getLong((int) recordPosition(i));
+    }
+
+    private static long offsetAt(ByteBuffer index, int i) {
+        return Integer.toUnsignedLong(index.getInt((int) recordPosition(i) + 8));
+    }
+
+    private static long lengthAt(ByteBuffer index, int i) {
+        return Integer.toUnsignedLong(index.getInt((int) recordPosition(i) + 12));
+    }
+
+    private static int checksumAt(ByteBuffer index, int i) {
+        return index.getInt((int) recordPosition(i) + 16);
+    }
+
+    // Заголовок индекса текущего формата или null, если файл короче заголовка или чужой
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < INDEX_HEADER) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        channel.read(header, 0);
+        return header.getInt(0) == INDEX_MAGIC && header.getInt(4) == INDEX_VERSION ? header : null;
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        channel.read(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    // Дописывает накопленное и закрывает файлы; вызывается потоком-писателем при остановке
+    /* Дописывает накопленную пачку и закрывает файлы. Если всё записано, оставляет признак аккуратного
+    закрытия: следующее открытие сохранит идентификатор журнала */
+    void close() {
+        boolean clean = opened && writePending();
+        if (clean) {
+            force();
+        }
+        closeChannels();
+        maintenance.shutdown();
+        if (clean) {
+            try {
+                Files.createFile(cleanMarker);
+            } catch (IOException ex) {
+                logger.warn("Журнал: не удалось отметить аккуратное закрытие: {}", ex.getMessage());
+            }
+        }
+        opened = false;
+    }
+
+    // Номера записей сегмента [baseSeq, endSeq); у текущего сегмента endSeq растёт
+    record SegmentBounds(long baseSeq, long endSeq, boolean active) {
+    }
+
+    // Распакованная копия сжатого сегмента, прочитанного последним
+    private record Inflated(Segment segment, SoftReference<byte[]> bytes) {
+    }
+
+    // Сколько записей и байт сегмента уже записано; заменяется целиком после каждой пачки
+    private record Committed(int count, long size, long lastTimestamp) {
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final long createdAt;
+        volatile Path log;
+        volatile Path index;
+        volatile boolean active = true;
+        volatile boolean compressed;
+        volatile Committed committed;
+        volatile MappedByteBuffer mappedIndex;
+
+        Segment(long baseSeq, long createdAt, Path log, Path index, Committed committed) {
+            this.baseSeq = baseSeq;
+            this.createdAt = createdAt;
+            this.log = log;
+            this.index = index;
+            this.committed = committed;
+        }
+
+        long endSeq() {
+            return baseSeq + committed.count;
+        }
+    }
+}
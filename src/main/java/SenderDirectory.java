@@ -0,0 +1,29 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Номера отправителей для двоичного протокола. Имя получает номер при первом входе (или первом сообщении)
+и сохраняет его на всё время работы сервера, поэтому номер в истории и почтовых ящиках остаётся верным
+и после выхода пользователя. Кадр USER с именем кодируется один раз на отправителя.
+Таблица растёт на одну запись на каждое имя, когда-либо появлявшееся на сервере */
+class SenderDirectory {
+    private final Map<String, Sender> senders = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    Sender intern(String name) {
+        Sender sender = senders.get(name); // быстрый путь без блокировки сегмента
+        return sender != null ? sender : senders.computeIfAbsent(name, key -> {
+            int id = nextId.getAndIncrement();
+            return new Sender(id, key, BinaryProtocol.user(id, key));
+        });
+    }
+
+    int size() {
+        return senders.size();
+    }
+
+    // Отправитель: номер, имя и готовый кадр USER для двоичных клиентов
+    record Sender(int id, String name, ByteBuffer announcement) {
+    }
+}
@@ -0,0 +1,295 @@
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Метрики сервера с минимальной ценой на горячем пути: счётчики — LongAdder (каждый поток увеличивает
+свою ячейку, без общей точки конкуренции), время рассылки пишется в HdrHistogram Recorder без блокировок.
+Раз в секунду tick() переводит счётчики в скорости и забирает гистограмму рассылки за прошедшую секунду.
+Глубины очередей и отставание журнала не считаются на горячем пути, а снимаются с сервера при чтении метрик.
+Сервер подключается методом attach() уже после своего создания; до этого такие показатели равны нулю */
+class ServerMetrics implements ServerMetricsMBean {
+    private volatile ChatServer server; // источник мгновенных показателей; задаётся attach()
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder throttled = new LongAdder(); // сколько раз чтение отправителя приостанавливалось
+    private final LongAdder rateLimitDisconnects = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder(); // отключены за молчание
+    // Кластер: сообщения к соседям (по одному на соседа), от соседей, пачки, повторы и вытесненные из очереди
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder relayBatches = new LongAdder();
+    private final LongAdder relayDuplicates = new LongAdder();
+    private final LongAdder relayDropped = new LongAdder();
+    private final Recorder fanOutNanos = new Recorder(3);
+
+    // Снимок за последнюю секунду; пишет только tick()
+    private long lastTick = System.nanoTime();
+    private long lastAccepted;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private volatile double acceptsPerSecond;
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile Histogram fanOutInterval = new Histogram(3);
+    private Histogram recycled;
+
+    // Подключает сервер, с которого снимаются соединения, очереди и журнал; вызывается до публикации метрик
+    void attach(ChatServer server) {
+        this.server = server;
+    }
+
+    void onAccept() {
+        accepted.increment();
+    }
+
+    void onMessageIn() {
+        messagesIn.increment();
+    }
+
+    void onThrottled() {
+        throttled.increment();
+    }
+
+    void onRateLimitDisconnect() {
+        rateLimitDisconnects.increment();
+    }
+
+    void onIdleEviction() {
+        idleEvictions.increment();
+    }
+
+    void onRelayedOut(int count) {
+        relayedOut.add(count);
+    }
+
+    void onRelayedIn() {
+        relayedIn.increment();
+    }
+
+    void onRelayBatch() {
+        relayBatches.increment();
+    }
+
+    void onRelayDuplicate() {
+        relayDuplicates.increment();
+    }
+
+    void onRelayDropped() {
+        relayDropped.increment();
+    }
+
+    void onMessagesOut(int count) {
+        messagesOut.add(count);
+    }
+
+    void onFanOut(long nanos) {
+        fanOutNanos.recordValue(nanos);
+    }
+
+    // Вызывается раз в секунду одним потоком
+    synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTick) / 1e9;
+        lastTick = now;
+        long acceptedNow = accepted.sum();
+        long inNow = messagesIn.sum();
+        long outNow = messagesOut.sum();
+        acceptsPerSecond = (acceptedNow - lastAccepted) / seconds;
+        messagesInPerSecond = (inNow - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (outNow - lastMessagesOut) / seconds;
+        lastAccepted = acceptedNow;
+        lastMessagesIn = inNow;
+        lastMessagesOut = outNow;
+        Histogram interval = fanOutNanos.getIntervalHistogram(recycled);
+        recycled = fanOutInterval;
+        fanOutInterval = interval;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        ChatServer current = server;
+        return current == null ? 0 : current.getClientCount();
+    }
+
+    @Override
+    public long getAcceptedTotal() {
+        return accepted.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    @Override
+    public long getMessagesInTotal() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public long getThrottledTotal() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getRateLimitDisconnects() {
+        return rateLimitDisconnects.sum();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    @Override
+    public long getRelayedOutTotal() {
+        return relayedOut.sum();
+    }
+
+    @Override
+    public long getRelayedInTotal() {
+        return relayedIn.sum();
+    }
+
+    @Override
+    public long getRelayBatches() {
+        return relayBatches.sum();
+    }
+
+    @Override
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    @Override
+    public long getMessagesOutTotal() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getFanOutP50Micros() {
+        return fanOutInterval.getValueAtPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return fanOutInterval.getValueAtPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getFanOutMaxMicros() {
+        return fanOutInterval.getMaxValue() / 1000;
+    }
+
+    @Override
+    public int getMaxOutboundQueueDepth() {
+        return (int) outboundQueueDepths()[0];
+    }
+
+    @Override
+    public long getTotalOutboundQueueDepth() {
+        return outboundQueueDepths()[1];
+    }
+
+    @Override
+    public int getLogBacklog() {
+        ChatServer current = server;
+        return current == null ? 0 : current.getLogWriter().backlog();
+    }
+
+    @Override
+    public long getLogDropped() {
+        ChatServer current = server;
+        return current == null ? 0 : current.getLogWriter().getDropped();
+    }
+
+    private long getLogWritten() {
+        ChatServer current = server;
+        return current == null ? 0 : current.getLogWriter().getWritten();
+    }
+
+    // Наибольшая и суммарная глубина исходящих очередей клиентов
+    private long[] outboundQueueDepths() {
+        ChatServer current = server;
+        return current == null ? new long[2] : current.outboundQueueDepths();
+    }
+
+    // Метрики в текстовом формате Prometheus: одна строка «имя значение» на метрику
+    String renderText() {
+        long[] depths = outboundQueueDepths();
+        StringBuilder sb = new StringBuilder(1024);
+        line(sb, "chat_connections_active", getActiveConnections());
+        line(sb, "chat_accepted_total", getAcceptedTotal());
+        line(sb, "chat_accepts_per_second", getAcceptsPerSecond());
+        line(sb, "chat_messages_in_total", getMessagesInTotal());
+        line(sb, "chat_messages_in_per_second", getMessagesInPerSecond());
+        line(sb, "chat_throttled_total", getThrottledTotal());
+        line(sb, "chat_rate_limit_disconnects_total", getRateLimitDisconnects());
+        line(sb, "chat_idle_evictions_total", getIdleEvictions());
+        line(sb, "chat_relayed_out_total", getRelayedOutTotal());
+        line(sb, "chat_relayed_in_total", getRelayedInTotal());
+        line(sb, "chat_relay_batches_total", getRelayBatches());
+        line(sb, "chat_relay_duplicates_total", getRelayDuplicates());
+        line(sb, "chat_relay_dropped_total", getRelayDropped());
+        line(sb, "chat_messages_out_total", getMessagesOutTotal());
+        line(sb, "chat_messages_out_per_second", getMessagesOutPerSecond());
+        line(sb, "chat_fanout_p50_micros", getFanOutP50Micros());
+        line(sb, "chat_fanout_p99_micros", getFanOutP99Micros());
+        line(sb, "chat_fanout_max_micros", getFanOutMaxMicros());
+        line(sb, "chat_outbound_queue_depth_max", depths[0]);
+        line(sb, "chat_outbound_queue_depth_total", depths[1]);
+        line(sb, "chat_log_backlog", getLogBacklog());
+        line(sb, "chat_log_dropped_total", getLogDropped());
+        line(sb, "chat_log_written_total", getLogWritten());
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ');
+        if (value == Math.rint(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(String.format(Locale.ROOT, "%.2f", value));
+        }
+        sb.append('\n');
+    }
+
+    // Запускает HTTP-точку /metrics на заданном порту (встроенный в JDK сервер, один поток)
+    HttpServer startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = renderText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        return http;
+    }
+}
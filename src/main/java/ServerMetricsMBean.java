@@ -0,0 +1,47 @@
+/* Метрики сервера чата для JMX (jconsole, VisualVM): объект chat:type=ChatServer,port=<порт>.
+Скорости и перцентили — за последнюю секунду, счётчики — с момента запуска */
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getAcceptedTotal();
+
+    double getAcceptsPerSecond();
+
+    long getMessagesInTotal();
+
+    double getMessagesInPerSecond();
+
+    long getThrottledTotal();
+
+    long getRateLimitDisconnects();
+
+    long getIdleEvictions();
+
+    long getRelayedOutTotal();
+
+    long getRelayedInTotal();
+
+    long getRelayBatches();
+
+    long getRelayDuplicates();
+
+    long getRelayDropped();
+
+    long getMessagesOutTotal();
+
+    double getMessagesOutPerSecond();
+
+    long getFanOutP50Micros();
+
+    long getFanOutP99Micros();
+
+    long getFanOutMaxMicros();
+
+    int getMaxOutboundQueueDepth();
+
+    long getTotalOutboundQueueDepth();
+
+    int getLogBacklog();
+
+    long getLogDropped();
+}
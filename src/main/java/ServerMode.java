@@ -0,0 +1,59 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/* Режим работы сервера: каким способом обслуживаются клиентские соединения */
+public enum ServerMode {
+    // Классическая схема: отдельный платформенный поток на каждое соединение
+    PLATFORM,
+    // Ограниченный пул платформенных потоков; соединения сверх пула и его очереди отклоняются
+    POOL,
+    // Виртуальный поток на каждое соединение (Java 21+): блокирующий код без расхода потоков ОС
+    VIRTUAL,
+    // Неблокирующий ввод-вывод: несколько циклов событий на Selector обслуживают все соединения
+    NIO;
+
+    // Разбирает название режима из аргумента командной строки (регистр не важен)
+    public static ServerMode parse(String value) {
+        String name = value.trim().toUpperCase();
+        if ("BLOCKING".equals(name)) {
+            return PLATFORM; // прежнее название режима «поток на соединение»
+        }
+        return valueOf(name);
+    }
+
+    /* Создаёт исполнителя для обработчиков соединений блокирующих режимов.
+    poolSize учитывается только в режиме POOL */
+    ExecutorService newExecutor(int poolSize) {
+        switch (this) {
+            case PLATFORM:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("chat-client-", 0).factory());
+            case POOL:
+                return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(poolSize),
+                        Thread.ofPlatform().name("chat-pool-", 0).factory(),
+                        new ThreadPoolExecutor.AbortPolicy());
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-virtual-", 0).factory());
+            default:
+                throw new IllegalStateException("Режим " + this + " не использует пул обработчиков");
+        }
+    }
+
+    /* Создаёт исполнителя для писателей сессий блокирующих режимов. Писатель всё время соединения
+    ждёт в очереди, поэтому он не должен занимать место в пуле обработчиков: в режиме POOL
+    у каждого писателя свой виртуальный поток, а пул остаётся читателям */
+    ExecutorService newWriterExecutor() {
+        switch (this) {
+            case PLATFORM:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("chat-writer-", 0).factory());
+            case POOL:
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-writer-", 0).factory());
+            default:
+                throw new IllegalStateException("Режим " + this + " не использует писателей сессий");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/* Следит за файлом настроек через WatchService и передаёт перечитанные настройки получателю.
+WatchService следит за каталогом, поэтому замечает и запись на месте, и замену файла переименованием,
+как делают редакторы. Одно сохранение часто даёт несколько событий подряд: они собираются в одно
+перечитывание после паузы DEBOUNCE_MILLIS. Файл с ошибкой не применяется — остаются прежние настройки */
+class SettingsWatcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SettingsWatcher.class);
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final Path file;
+    private final Consumer<ChatSettings> listener;
+    private final WatchService watchService;
+
+    SettingsWatcher(Path file, Consumer<ChatSettings> listener) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+        Thread thread = new Thread(this::run, "chat-settings-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+                // Дожидаемся, пока редактор допишет файл: события одного сохранения склеиваются
+                while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // наблюдение остановлено
+        }
+    }
+
+    // Разбирает события ключа; true — среди них есть наш файл
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path name && name.equals(file.getFileName())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        ChatSettings settings;
+        try {
+            settings = ChatSettings.load(file);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.error("Настройки не перечитаны, действуют прежние: {}", ex.getMessage());
+            return;
+        }
+        try {
+            listener.accept(settings);
+        } catch (RuntimeException ex) {
+            // Ошибка применения не должна останавливать наблюдение: следующее сохранение файла применится снова
+            logger.error("Ошибка применения перечитанных настроек", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.warn("Ошибка остановки наблюдения за настройками", ex);
+        }
+    }
+}
@@ -1,18 +1,34 @@
 import java.io.*;
+import java.util.List;
 
 // Класс-обёртка вокруг стандартных потоков ввода-вывода
 public class SystemWrapper {
     private OutputStream outputStream;
     private InputStream inputStream;
+    // Один буферизованный поток вывода на всё время работы, а не новый PrintStream на каждую строку
+    private final PrintStream printStream;
 
     public SystemWrapper(OutputStream out, InputStream in) {
         this.outputStream = out;
         this.inputStream = in;
+        this.printStream = new PrintStream(new BufferedOutputStream(out, 16 * 1024), false);
     }
 
     public void println(Object obj) {
-        PrintStream printStream = new PrintStream(outputStream);
-        printStream.println(obj);
+        synchronized (printStream) {
+            printStream.println(obj);
+            printStream.flush();
+        }
+    }
+
+    // Выводит пачку строк одной записью: при всплеске сообщений консоль не перерисовывается на каждой строке
+    public void printLines(List<String> lines) {
+        synchronized (printStream) {
+            for (String line : lines) {
+                printStream.println(line);
+            }
+            printStream.flush();
+        }
     }
 
     public byte readByte() throws IOException {
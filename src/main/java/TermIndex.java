@@ -0,0 +1,180 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Обратный индекс одного сегмента журнала в памяти: слово -> список записей, где оно встречается.
+Пополняется только потоком индексатора по мере того, как записи попадают в журнал; номера записей
+приходят по возрастанию, поэтому каждый список только дописывается в конец. Запись в файл (write)
+даёт неизменяемый TermIndexFile того же формата; read загружает такой файл обратно для дописывания */
+final class TermIndex implements SearchIndex.Segment {
+    private final long baseSeq;
+    private long endSeq; // до какого номера (не включая) журнал просмотрен
+    private final Map<String, Postings> terms = new HashMap<>();
+
+    TermIndex(long baseSeq) {
+        this.baseSeq = baseSeq;
+        this.endSeq = baseSeq;
+    }
+
+    @Override
+    public long baseSeq() {
+        return baseSeq;
+    }
+
+    @Override
+    public long endSeq() {
+        return endSeq;
+    }
+
+    int termCount() {
+        return terms.size();
+    }
+
+    // Добавляет запись seq со словами words; повтор слова в одной записи учитывается один раз
+    void add(long seq, List<String> words) {
+        int doc = (int) (seq - baseSeq);
+        for (String word : words) {
+            terms.computeIfAbsent(word, key -> new Postings()).add(doc);
+        }
+        endSeq = seq + 1;
+    }
+
+    // Запись seq просмотрена, но в индекс не попала (например, личное сообщение)
+    void skip(long seq) {
+        endSeq = seq + 1;
+    }
+
+    @Override
+    public PostingList postings(String term) {
+        Postings postings = terms.get(term);
+        return postings == null ? null : postings.view();
+    }
+
+    // Список одного слова, растущий в конец; массивы удваиваются по мере роста
+    private static final class Postings {
+        private int count;
+        private int lastDoc;
+        private int[] blockFirst = new int[1];
+        private int[] blockOffset = new int[1];
+        private byte[] data = new byte[4];
+        private int size;
+
+        void add(int doc) {
+            if (count > 0 && doc == lastDoc) {
+                return;
+            }
+            if (count % PostingList.BLOCK == 0) {
+                int block = count / PostingList.BLOCK;
+                if (block == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, block * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, block * 2);
+                }
+                blockFirst[block] = doc; // первый номер блока лежит в оглавлении, а не в данных
+                blockOffset[block] = size;
+            } else {
+                if (size + 5 > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+                }
+                size = PostingList.putVarint(data, size, doc - lastDoc);
+            }
+            lastDoc = doc;
+            count++;
+        }
+
+        PostingList view() {
+            return new PostingList(count, blockFirst, blockOffset, ByteBuffer.wrap(data, 0, size));
+        }
+    }
+
+    /* Записывает индекс в файл формата TermIndexFile: сначала во временный файл, затем переименованием,
+    чтобы читатели и перезапуск никогда не видели файл наполовину */
+    void write(Path file) throws IOException {
+        int n = terms.size();
+        byte[][] names = new byte[n][];
+        Postings[] lists = new Postings[n];
+        int i = 0;
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            names[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            lists[i++] = entry.getValue();
+        }
+        Integer[] order = new Integer[n];
+        for (i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 256 * 1024))) {
+            out.writeInt(TermIndexFile.MAGIC);
+            out.writeInt(TermIndexFile.VERSION);
+            out.writeLong(baseSeq);
+            out.writeLong(endSeq);
+            out.writeInt(n);
+            out.writeInt(0);
+            long termOffset = TermIndexFile.HEADER + (long) n * TermIndexFile.ENTRY;
+            long postingsOffset = termOffset;
+            for (byte[] name : names) {
+                postingsOffset += name.length;
+            }
+            for (int k : order) {
+                Postings postings = lists[k];
+                out.writeLong(termOffset);
+                out.writeInt(names[k].length);
+                out.writeInt(postings.count);
+                out.writeLong(postingsOffset);
+                termOffset += names[k].length;
+                postingsOffset += (long) postings.view().blockCount() * 8 + postings.size;
+            }
+            for (int k : order) {
+                out.write(names[k]);
+            }
+            for (int k : order) {
+                Postings postings = lists[k];
+                int blocks = postings.view().blockCount();
+                for (int b = 0; b < blocks; b++) {
+                    out.writeInt(postings.blockFirst[b]);
+                    out.writeInt(postings.blockOffset[b]);
+                }
+                out.write(postings.data, 0, postings.size);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Загружает индекс из файла, чтобы продолжить его пополнение с endSeq
+    static TermIndex read(Path file) throws IOException {
+        TermIndexFile source = TermIndexFile.open(file);
+        TermIndex index = new TermIndex(source.baseSeq());
+        index.endSeq = source.endSeq();
+        List<TermIndexFile.Entry> entries = new ArrayList<>();
+        source.forEach(entries::add);
+        for (TermIndexFile.Entry entry : entries) {
+            Postings postings = new Postings();
+            PostingList list = entry.postings();
+            int[] docs = new int[PostingList.BLOCK];
+            for (int b = 0; b < list.blockCount(); b++) {
+                int size = list.decodeBlock(b, docs);
+                for (int d = 0; d < size; d++) {
+                    postings.add(docs[d]);
+                }
+            }
+            index.terms.put(entry.term(), postings);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/* Неизменяемый обратный индекс закрытого сегмента журнала, отображённый в память. Файл читается
+лениво: при открытии проверяется только заголовок, а страницы словаря и списков подгружает ОС
+при первом обращении, поэтому запуск не зависит от размера истории.
+Формат: заголовок (MAGIC, версия, номера записей [baseSeq, endSeq), число слов), таблица слов
+по 24 байта (смещение и длина слова, число записей, смещение списка), отсортированная по байтам UTF-8
+слова для двоичного поиска, затем сами слова и списки PostingList: оглавление блоков и разности */
+final class TermIndexFile implements SearchIndex.Segment {
+    static final int MAGIC = 0x53524348; // "SRCH"
+    static final int VERSION = 1;
+    static final int HEADER = 32;
+    static final int ENTRY = 24;
+
+    private final MappedByteBuffer map;
+    private final long baseSeq;
+    private final long endSeq;
+    private final int termCount;
+
+    private TermIndexFile(MappedByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("Повреждённый файл индекса поиска");
+        }
+        this.baseSeq = map.getLong(8);
+        this.endSeq = map.getLong(16);
+        this.termCount = map.getInt(24);
+        if (termCount < 0 || HEADER + (long) termCount * ENTRY > map.capacity()) {
+            throw new IOException("Повреждённый файл индекса поиска");
+        }
+    }
+
+    static TermIndexFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TermIndexFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public long baseSeq() {
+        return baseSeq;
+    }
+
+    @Override
+    public long endSeq() {
+        return endSeq;
+    }
+
+    @Override
+    public PostingList postings(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = termCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return postingsAt(mid);
+            }
+        }
+        return null;
+    }
+
+    // Сравнивает слово номер i с key по байтам без знака, не создавая строку
+    private int compare(int i, byte[] key) {
+        int entry = HEADER + i * ENTRY;
+        int offset = (int) map.getLong(entry);
+        int length = map.getInt(entry + 8);
+        int common = Math.min(length, key.length);
+        for (int k = 0; k < common; k++) {
+            int cmp = Integer.compare(map.get(offset + k) & 0xFF, key[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private PostingList postingsAt(int i) {
+        int entry = HEADER + i * ENTRY;
+        int count = map.getInt(entry + 12);
+        int offset = (int) map.getLong(entry + 16);
+        int blocks = (count + PostingList.BLOCK - 1) / PostingList.BLOCK;
+        int[] blockFirst = new int[blocks];
+        int[] blockOffset = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            blockFirst[b] = map.getInt(offset + b * 8);
+            blockOffset[b] = map.getInt(offset + b * 8 + 4);
+        }
+        ByteBuffer data = map.slice(offset + blocks * 8, map.capacity() - offset - blocks * 8);
+        return new PostingList(count, blockFirst, blockOffset, data);
+    }
+
+    // Слово и его список; используется при загрузке файла обратно в память
+    record Entry(String term, PostingList postings) {
+    }
+
+    void forEach(Consumer<Entry> consumer) {
+        for (int i = 0; i < termCount; i++) {
+            int entry = HEADER + i * ENTRY;
+            byte[] name = new byte[map.getInt(entry + 8)];
+            map.get((int) map.getLong(entry), name);
+            consumer.accept(new Entry(new String(name, StandardCharsets.UTF_8), postingsAt(i)));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/* Хешированное колесо таймеров: один поток на весь сервер вместо таймера на каждое соединение.
+Колесо — кольцо из wheelSize корзин, стрелка сдвигается на одну корзину каждые tickMillis.
+Задача попадает в корзину своего срока и помнит, сколько полных оборотов ей ещё ждать, поэтому
+постановка и отмена стоят O(1), а на каждом шаге просматривается только одна корзина. Корзина —
+двусвязный список, так что отменённые задачи убираются на ближайшем шаге, а не ждут своего оборота.
+Точность — один шаг стрелки; задачи выполняются в потоке колеса и должны быть короткими */
+class TimerWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    // Новые и отменённые задачи из любых потоков; в корзины их переносит только поток колеса
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile long startTime;
+    private Thread thread;
+
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    // Выполнит task в потоке колеса не раньше чем через delayNanos; поток колеса запускается при первой задаче
+    Timeout schedule(Runnable task, long delayNanos) {
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() + delayNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void stop() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long wakeAt = startTime + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            removeCancelled();
+            transferPending(tick);
+            expire(buckets[(int) (tick % buckets.length)]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    // Раскладывает новые задачи по корзинам; просроченные попадают в текущую
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.task == null) {
+                continue; // отменена до постановки
+            }
+            long due = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+            timeout.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due % buckets.length)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            Runnable task = timeout.task;
+            if (task == null) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                timeout.task = null;
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.error("Ошибка задачи таймера: {}", ex.getMessage());
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    // Поставленная задача; cancel() сразу отпускает ссылку на неё, а из корзины она уйдёт на ближайшем шаге
+    final class Timeout {
+        private volatile Runnable task;
+        private final long deadline;
+        // Дальше всё меняет только поток колеса
+        private long rounds; // сколько ещё полных оборотов ждать
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            if (task != null) {
+                task = null;
+                cancelled.add(this);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
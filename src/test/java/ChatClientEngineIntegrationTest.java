@@ -0,0 +1,202 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Клиент без консоли против настоящего сервера: пачки строк, переподключение и повтор неподтверждённого
+class ChatClientEngineIntegrationTest {
+
+    @TempDir
+    Path logDir;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private ChatServer startServer(int port, String log) {
+        ChatServer server = new ChatServer(port, ServerMode.NIO, logDir.resolve(log));
+        new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "engine-test-server").start();
+        return server;
+    }
+
+    // Складывает принятые строки в очередь и считает пачки
+    private static final class Collector implements ChatClientEngine.Listener {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final List<String> all = new CopyOnWriteArrayList<>();
+        volatile int batches;
+        volatile int disconnects;
+
+        @Override
+        public void onLines(List<String> received) {
+            batches++;
+            lines.addAll(received);
+            all.addAll(received);
+        }
+
+        @Override
+        public void onDisconnected(String reason, long reconnectInMillis) {
+            disconnects++;
+        }
+
+        void await(String suffix) throws InterruptedException {
+            String line;
+            while ((line = lines.poll(5, TimeUnit.SECONDS)) != null) {
+                if (line.endsWith(suffix)) {
+                    return;
+                }
+            }
+            fail("Не дождались строки: " + suffix);
+        }
+    }
+
+    private static void awaitUnacked(ChatClientEngine engine, int expected) throws InterruptedException {
+        for (int attempt = 0; engine.getUnackedCount() != expected; attempt++) {
+            assertTrue(attempt < 100, "Неподтверждённых сообщений: " + engine.getUnackedCount());
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void testBurstArrivesInBatchesAndEchoAcknowledges() throws Exception {
+        int port = freePort();
+        ChatServer server = startServer(port, "burst.log");
+        Collector bob = new Collector();
+        ChatClientEngine alice = new ChatClientEngine("localhost", port, "Alice", new Collector());
+        ChatClientEngine bobEngine = new ChatClientEngine("localhost", port, "Bob", bob);
+        try {
+            alice.start();
+            bobEngine.start();
+            assertTrue(bobEngine.send("Bob на связи"));
+            bob.await("[Bob]: Bob на связи");
+            assertEquals(0, bobEngine.getUnackedCount(), "Эхо подтверждает сообщение");
+
+            for (int i = 0; i < 500; i++) {
+                assertTrue(alice.send("Сообщение " + i));
+            }
+            for (int i = 0; i < 500; i++) {
+                bob.await("[Alice]: Сообщение " + i);
+            }
+            awaitUnacked(alice, 0);
+            assertTrue(bob.batches < 500, "Всплеск должен приходить пачками, а не по строке: " + bob.batches);
+        } finally {
+            alice.close();
+            bobEngine.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testReconnectsAndResendsAfterServerRestart() throws Exception {
+        int port = freePort();
+        ChatServer first = startServer(port, "first.log");
+        Collector alice = new Collector();
+        ChatClientEngine engine = new ChatClientEngine("localhost", port, "Alice", alice);
+        engine.setReconnectBackoff(50, 200);
+        ChatServer second = null;
+        try {
+            engine.start();
+            engine.send("/join dev");
+            engine.send("До перезапуска");
+            alice.await("[Alice] [#dev]: До перезапуска");
+            first.stop();
+            for (int attempt = 0; engine.isConnected(); attempt++) {
+                assertTrue(attempt < 100, "Клиент не заметил остановку сервера");
+                Thread.sleep(50);
+            }
+
+            // Пока сервера нет, сообщение ждёт в очереди и уходит после переподключения; команда — тоже
+            assertTrue(engine.send("Пока сервер лежал"));
+            assertTrue(engine.send("/search лежал"));
+            assertEquals(1, engine.getUnackedCount(), "Команды подтверждения не ждут");
+            second = startServer(port, "second.log");
+            alice.await("[Alice] [#dev]: Пока сервер лежал"); // комната восстановлена при повторном входе
+            awaitUnacked(engine, 0);
+            String reply;
+            do {
+                reply = alice.lines.poll(5, TimeUnit.SECONDS);
+                assertNotNull(reply, "Команда, введённая без связи, не дошла до сервера");
+            } while (!reply.startsWith("Найдено сообщений") && !reply.equals("Ничего не найдено")
+                    && !reply.startsWith("Индекс поиска"));
+            assertTrue(alice.disconnects >= 1);
+        } finally {
+            engine.close();
+            first.stop();
+            if (second != null) {
+                second.stop();
+            }
+        }
+    }
+
+    private static long count(Collector collector, String suffix) {
+        return collector.all.stream().filter(line -> line.endsWith(suffix)).count();
+    }
+
+    @Test
+    void testResumeStreamsExactlyTheGapFromLog() throws Exception {
+        int port = freePort();
+        ChatServer first = startServer(port, "durable.log");
+        Collector alice = new Collector();
+        ChatClientEngine engine = new ChatClientEngine("localhost", port, "Alice", alice);
+        engine.setReconnectBackoff(3000, 3000); // переподключится не раньше чем через 1,5 с
+        ChatServer second = null;
+        ChatClientEngine bob = null;
+        try {
+            engine.start();
+            engine.send("/join dev");
+            engine.send("До перезапуска");
+            alice.await("[Alice] [#dev]: До перезапуска");
+            first.stop();
+
+            // Тот же журнал: пока Alice нет, Bob пишет в её комнаты и ей лично
+            second = startServer(port, "durable.log");
+            Collector bobLines = new Collector();
+            bob = new ChatClientEngine("localhost", port, "Bob", bobLines);
+            bob.start();
+            bob.send("Пропущенное в общей");
+            bobLines.await("[Bob]: Пропущенное в общей");
+            bob.send("/join dev");
+            bob.send("Пропущенное в dev");
+            bob.send("/msg Alice секрет");
+            bob.send("/join other");
+            bob.send("Чужая комната");
+            awaitUnacked(bob, 0);
+            assertFalse(engine.isConnected(), "Alice должна переподключиться уже после сообщений Bob");
+
+            alice.await("[Bob] [#dev]: Пропущенное в dev");
+            alice.await("[Bob -> Alice]: секрет");
+            engine.send("После возвращения");
+            alice.await("[Alice] [#dev]: После возвращения");
+            assertEquals(1, count(alice, "[Bob]: Пропущенное в общей"));
+            assertEquals(1, count(alice, "[Bob] [#dev]: Пропущенное в dev"));
+            assertEquals(1, count(alice, "[Bob -> Alice]: секрет"));
+            assertEquals(1, count(alice, "[Alice] [#dev]: До перезапуска"), "Уже полученное не повторяется");
+            assertEquals(0, count(alice, "Чужая комната"), "Сообщения чужих комнат не отдаются");
+        } finally {
+            engine.close();
+            if (bob != null) {
+                bob.close();
+            }
+            first.stop();
+            if (second != null) {
+                second.stop();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.MockitoAnnotations;
 
 import java.io.*;
@@ -118,6 +119,513 @@ class ChatServerIntegrationTest {
         assertEquals(TEST_PORT, port, "Порт не соответствует ожиданию");
     }
 
+    @Test
+    void testSettingsValidation() {
+        // Прежний формат — одно число — по-прежнему порт, остальное по умолчанию
+        ChatSettings legacy = ChatSettings.parse("9090\n", "settings.txt", null);
+        assertEquals(9090, legacy.getPort());
+        assertEquals(20, legacy.getRateLimitMessages());
+
+        ChatSettings settings = ChatSettings.parse("# чат\nport=9091\nhost=chat.example.org\nmode=nio\nrate.messages=5\nrate.bytes=1024\n"
+                + "cluster.port=9100\ncluster.peers=a:9100, b:9100\n", "settings.txt", null);
+        assertEquals(ServerMode.NIO, settings.getMode());
+        assertEquals(5, settings.getRateLimitMessages());
+        assertEquals(2, settings.getPeers().size());
+        // host нужен только клиенту: его изменение не требует перезапуска сервера
+        assertEquals(List.of("port", "mode", "cluster.port", "cluster.peers"), settings.restartRequired(legacy));
+
+        IllegalArgumentException unknown = assertThrows(IllegalArgumentException.class,
+                () -> ChatSettings.parse("port=9090\nrate.mesages=5\n", "settings.txt", null));
+        assertTrue(unknown.getMessage().startsWith("settings.txt:2:"), unknown.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> ChatSettings.parse("port=70000", "settings.txt", null));
+        assertThrows(IllegalArgumentException.class, () -> ChatSettings.parse("log.fsync=yes", "settings.txt", null));
+        assertThrows(IllegalArgumentException.class, () -> ChatSettings.parse("rate.messages=0", "settings.txt", null));
+    }
+
+    @Test
+    void testSettingsHotReload(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("settings.txt");
+        Files.writeString(file, "port=9090\nrate.messages=5\nrate.bytes=1024\n");
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, dir.resolve("file.log"));
+        server.configure(ChatSettings.load(file));
+        StalledSession connected = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Connected", connected));
+        RateLimiter before = connected.getRateLimiter();
+        server.watchSettings(file);
+
+        // Ошибка в файле не применяется: действуют прежние настройки
+        Files.writeString(file, "port=9090\nrate.messages=-1\n");
+        Thread.sleep(300);
+        assertEquals(5, server.getSettings().getRateLimitMessages());
+
+        // Лимиты меняются на лету и для уже подключённого, порт — только после перезапуска
+        Files.writeString(file, "port=9091\nrate.messages=50\nrate.bytes=65536\nqueue.capacity=64\n");
+        for (int attempt = 0; server.getSettings().getRateLimitMessages() != 50; attempt++) {
+            assertTrue(attempt < 100, "Изменённый файл настроек не перечитан");
+            Thread.sleep(50);
+        }
+        assertEquals(64, server.getOutboundQueueCapacity());
+        assertNotSame(before, connected.getRateLimiter());
+        assertFalse(connected.closed, "Соединения при перечитывании не разрываются");
+        for (int i = 0; i < 50; i++) {
+            assertEquals(0, server.admit(connected, 10), "Действует новый лимит в 50 сообщений");
+        }
+        server.stop();
+    }
+
+    @Test
+    void testSlowClientDoesNotBlockBroadcast() {
+        // Сессия, которая никогда не читает свою очередь, как зависший клиент
+        StalledSession dropping = new StalledSession(2, OverflowPolicy.DROP_OLDEST);
+        StalledSession disconnecting = new StalledSession(2, OverflowPolicy.DISCONNECT);
+        assertTrue(chatServer.register("StalledDrop", dropping));
+        assertTrue(chatServer.register("StalledDisconnect", disconnecting));
+
+        for (int i = 0; i < 5; i++) {
+            chatServer.sendMessage("testUser", "Сообщение " + i);
+        }
+
+        assertEquals(2, dropping.outboundDepth(), "Очередь должна оставаться ограниченной");
+        assertEquals(3, dropping.getDroppedFrames(), "Старые сообщения должны вытесняться новыми");
+        assertTrue(disconnecting.closed, "Медленный клиент должен быть отключён");
+        chatServer.unregister(dropping);
+    }
+
+    @Test
+    void testHistoryReplayOnJoin(@TempDir Path logDir) {
+        // Отдельный сервер без сети и со своим журналом: история проверяется на сессиях в памяти
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setHistory(3, 0);
+        for (int i = 0; i < 5; i++) {
+            server.sendMessage("historyUser", "История " + i);
+        }
+
+        StalledSession joined = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Joined", joined));
+        server.sendMessage("historyUser", "После входа");
+
+        List<String> received = new java.util.ArrayList<>();
+        java.nio.ByteBuffer frame;
+        while ((frame = joined.pollOutbound()) != null) {
+            received.add(StandardCharsets.UTF_8.decode(frame.duplicate()).toString().trim());
+        }
+        assertEquals(4, received.size(), "Ожидались три сообщения истории и одно новое");
+        assertTrue(received.get(0).endsWith("История 2"));
+        assertTrue(received.get(2).endsWith("История 4"));
+        assertTrue(received.get(3).endsWith("После входа"));
+        assertTrue(server.getHistoryMemoryBytes()[0] > 0, "Память истории должна учитываться");
+        server.stop();
+    }
+
+    @Test
+    void testOversizedMessageDuringJoinIsDelivered() {
+        // Сообщение длиннее лимита истории, разосланное во время входа с номером до границы снимка:
+        // в снимок оно не попадает и должно прийти из отложенных
+        HistoryRing ring = new HistoryRing(4, 64);
+        StalledSession joining = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        joining.beginReplay();
+        ChatMessage big = new ChatMessage(BinaryProtocol.CHAT, new SenderDirectory().intern("Alice"),
+                System.currentTimeMillis(), null, "x".repeat(100), "[Alice]: " + "x".repeat(100));
+        joining.deliver(big, ring, ring.append(big, System.currentTimeMillis()));
+        long mark = ring.tail();
+        joining.finishReplay(ring.snapshot(mark, 4, Long.MIN_VALUE), ring, mark);
+        List<String> lines = drain(joining);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("[Alice]: xxx"));
+    }
+
+    @Test
+    void testRoomMessagesReachOnlyMembers(@TempDir Path logDir) throws Exception {
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        StalledSession member = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        StalledSession outsider = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Member", member));
+        assertTrue(server.register("Outsider", outsider));
+
+        server.onMessage(member, "/join kotlin");
+        assertEquals(2, server.getRoomCount(), "Комната должна создаться при первом входе");
+        server.onMessage(member, "В комнате");
+        server.sendMessage("Outsider", "В общей");
+
+        List<String> memberLines = drain(member);
+        List<String> outsiderLines = drain(outsider);
+        assertTrue(memberLines.stream().anyMatch(line -> line.endsWith("[#kotlin]: В комнате")));
+        assertTrue(memberLines.stream().anyMatch(line -> line.endsWith("В общей")), "Участник остаётся в общей комнате");
+        assertTrue(outsiderLines.stream().noneMatch(line -> line.contains("В комнате")),
+                "Сообщение комнаты не должно уходить остальным");
+
+        // Поиск по журналу тоже не показывает сообщения комнаты тем, кто в ней не состоит
+        for (int attempt = 0; server.getSearchIndex().indexedUpTo() < 2; attempt++) {
+            assertTrue(attempt < 100, "Индекс поиска не догнал журнал");
+            Thread.sleep(50);
+        }
+        server.onMessage(outsider, "/search комнате");
+        assertEquals("Ничего не найдено", awaitLine(outsider));
+        server.onMessage(member, "/search комнате");
+        assertEquals("Найдено сообщений: 1", awaitLine(member));
+
+        server.onMessage(member, "/leave kotlin");
+        assertEquals(1, server.getRoomCount(), "Пустая комната должна удаляться");
+        assertEquals(RoomRegistry.DEFAULT_ROOM, member.getActiveRoom());
+        server.stop();
+    }
+
+    @Test
+    void testDirectMessages(@TempDir Path logDir) {
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setMailboxCapacity(2);
+        StalledSession alice = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        StalledSession bob = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        StalledSession carol = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Alice", alice));
+        assertTrue(server.register("Bob", bob));
+        assertTrue(server.register("Carol", carol));
+
+        server.onMessage(alice, "/msg Bob Привет, Боб");
+        assertTrue(drain(bob).get(0).endsWith("[Alice -> Bob]: Привет, Боб"));
+        assertTrue(drain(carol).isEmpty(), "Личное сообщение не должно уходить остальным");
+        assertEquals(List.of("Доставлено пользователю Bob"), drain(alice));
+        assertEquals(DeliveryStatus.UNKNOWN_USER, server.sendDirect("Alice", "Nobody", "Эй"));
+
+        // Пока Боба нет, сообщения копятся в ограниченном ящике и приходят при следующем входе
+        server.unregister(bob);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DeliveryStatus.STORED, server.sendDirect("Alice", "Bob", "Отложенное " + i));
+        }
+        StalledSession bobAgain = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Bob", bobAgain));
+        List<String> stored = drain(bobAgain);
+        assertEquals(2, stored.size(), "Ящик хранит не больше своей ёмкости");
+        assertTrue(stored.get(1).endsWith("Отложенное 2"));
+        server.stop();
+    }
+
+    @Test
+    void testBinaryProtocolOnBlockingServer() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+            for (java.nio.ByteBuffer frame : List.of(BinaryProtocol.hello("BinaryBlocking"),
+                    BinaryProtocol.text("/msg Nobody Эй"), BinaryProtocol.text("Двоичное сообщение"))) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(frame.position(), bytes);
+                out.write(bytes);
+            }
+            out.flush();
+
+            BinaryFrameReader frames = new BinaryFrameReader(new BufferedInputStream(socket.getInputStream()));
+            List<Byte> types = new java.util.ArrayList<>();
+            String chatBody = null;
+            while (chatBody == null && frames.next()) {
+                types.add(frames.type());
+                if (frames.type() == BinaryProtocol.NOTICE) {
+                    assertEquals("Пользователь Nobody не найден", frames.text());
+                } else if (frames.type() == BinaryProtocol.CHAT) {
+                    java.nio.ByteBuffer payload = frames.payload();
+                    BinaryProtocol.getVarint(payload);
+                    payload.getLong();
+                    BinaryProtocol.getVarint(payload);
+                    chatBody = BinaryProtocol.decodeText(payload, payload.position(), payload.remaining());
+                }
+            }
+            assertEquals("Двоичное сообщение", chatBody);
+            assertEquals(List.of(BinaryProtocol.WELCOME, BinaryProtocol.NOTICE, BinaryProtocol.USER, BinaryProtocol.CHAT), types);
+        }
+    }
+
+    @Test
+    void testCompressedHistoryAndLargeMessages(@TempDir Path logDir) throws Exception {
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setHistory(10, 0);
+        server.setCompression(256, 1);
+        for (int i = 0; i < 10; i++) {
+            server.sendMessage("historyUser", "Сообщение истории номер " + i);
+        }
+        // Двоичный клиент, согласившийся на сжатие (VERSION_DEFLATE)
+        StalledSession joined = new StalledSession(64, OverflowPolicy.DROP_OLDEST);
+        joined.setBinary(true);
+        joined.setCompressor(server.getCompressor());
+        assertTrue(server.register("Joined", joined));
+        String paste = "at ChatServer.broadcast(ChatServer.java:323) ".repeat(40);
+        server.sendMessage("historyUser", paste);
+        server.sendMessage("historyUser", "коротко");
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        List<Byte> types = new java.util.ArrayList<>();
+        java.nio.ByteBuffer frame;
+        while ((frame = joined.pollOutbound()) != null) {
+            types.add(frame.get(frame.position() + BinaryProtocol.varintSize(BinaryProtocol.frameLength(frame))));
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            wire.write(bytes);
+        }
+        assertEquals(List.of(BinaryProtocol.WELCOME, BinaryProtocol.BATCH, BinaryProtocol.DEFLATED, BinaryProtocol.CHAT), types,
+                "История приходит одной сжатой пачкой, длинное сообщение сжато, короткое — нет");
+        assertTrue(wire.size() < paste.length() / 2, "Сжатые кадры должны быть заметно короче текста");
+
+        // Клиентский читатель распаковывает кадры и видит обычные USER и CHAT
+        BinaryFrameReader reader = new BinaryFrameReader(new ByteArrayInputStream(wire.toByteArray()));
+        reader.acceptCompressed();
+        List<String> bodies = new java.util.ArrayList<>();
+        while (reader.next()) {
+            if (reader.type() == BinaryProtocol.CHAT) {
+                java.nio.ByteBuffer payload = reader.payload();
+                BinaryProtocol.getVarint(payload); // отправитель
+                payload.getLong(); // время
+                int roomLength = BinaryProtocol.getVarint(payload);
+                payload.position(payload.position() + roomLength); // комната
+                bodies.add(BinaryProtocol.decodeText(payload, payload.position(), payload.remaining()));
+            }
+        }
+        assertEquals(12, bodies.size());
+        assertEquals("Сообщение истории номер 0", bodies.get(0));
+        assertEquals(paste, bodies.get(10));
+        assertEquals("коротко", bodies.get(11));
+        server.stop();
+    }
+
+    @Test
+    void testCompressedFrameFollowsCompressorSettings() {
+        // После перечитывания настроек у сессий разные компрессоры: каждая получает кадр, сжатый по её порогу
+        ChatMessage message = new ChatMessage(BinaryProtocol.CHAT, new SenderDirectory().intern("Alice"),
+                System.currentTimeMillis(), null, "повтор ".repeat(100), "[Alice]: " + "повтор ".repeat(100));
+        java.nio.ByteBuffer compressed = message.compressedFrame(new FrameCompressor(64, 1));
+        assertTrue(compressed.remaining() < message.binaryFrame().remaining(), "Длинное сообщение сжимается");
+        assertSame(message.binaryFrame(), message.compressedFrame(new FrameCompressor(1 << 20, 1)),
+                "С порогом выше размера кадр не сжимается");
+    }
+
+    @Test
+    void testRateLimitPausesThenDisconnects(@TempDir Path logDir) throws Exception {
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setRateLimit(5, 1024, 200);
+        StalledSession flooder = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Flooder", flooder));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, server.admit(flooder, 10), "Всплеск в пределах ведра проходит без паузы");
+        }
+        long pause = server.admit(flooder, 10);
+        assertTrue(pause > 0 && pause <= TimeUnit.MILLISECONDS.toNanos(200), "Лишнее сообщение — пауза около 1/5 с");
+        assertTrue(server.admit(flooder, 2048) > TimeUnit.SECONDS.toNanos(1), "Лимит байт тоже учитывается");
+
+        // Не вышел из превышения за 200 мс — отключаем
+        Thread.sleep(250);
+        assertEquals(-1, server.admit(flooder, 10));
+        assertTrue(drain(flooder).contains("Слишком много сообщений: соединение закрыто"));
+        server.stop();
+    }
+
+    @Test
+    void testSilentClientIsPingedThenEvicted(@TempDir Path logDir) throws Exception {
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setHeartbeat(100, 300);
+        StalledSession silent = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        StalledSession alive = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("Silent", silent));
+        assertTrue(server.register("Alive", alive));
+
+        // Живой клиент что-то присылает каждые 50 мс, молчащий — ничего
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(700);
+        while (System.nanoTime() < until) {
+            alive.touch();
+            Thread.sleep(50);
+        }
+        assertTrue(silent.closed, "Молчащий клиент должен быть отключён по сроку простоя");
+        assertTrue(drain(silent).contains(BinaryProtocol.PING_LINE), "Перед отключением клиенту уходит PING");
+        assertFalse(alive.closed, "Клиент, подающий признаки жизни, остаётся");
+        assertEquals(1, server.getMetrics().getIdleEvictions());
+        server.stop();
+    }
+
+    @Test
+    void testGracefulStopDrainsClientsAndLog(@TempDir Path logDir) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Path logFile = logDir.resolve("file.log");
+        ChatServer server = new ChatServer(port, ServerMode.PLATFORM, logFile);
+        Thread runner = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        runner.start();
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException notStartedYet) {
+                assertTrue(attempt < 50, "Сервер не запустился");
+                Thread.sleep(100);
+            }
+        }
+        try (Socket client = socket) {
+            client.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true);
+            out.println("Leaving");
+            out.println("Последнее перед остановкой");
+            assertTrue(in.readLine().endsWith("Последнее перед остановкой"));
+
+            long started = System.nanoTime();
+            assertTrue(server.stop(2000), "Остановка должна уложиться в срок");
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2000);
+            assertEquals(ChatServer.SHUTDOWN_NOTICE, in.readLine(), "Клиент узнаёт об остановке");
+            assertNull(in.readLine(), "После уведомления соединение закрывается");
+            assertEquals(0, server.getClientCount());
+            assertTrue(Files.readString(logFile).contains("Последнее перед остановкой"), "Журнал дописан до конца");
+        }
+        runner.join(2000);
+        assertFalse(runner.isAlive(), "run() завершается после остановки");
+    }
+
+    @Test
+    void testPoolDeliversToEveryClient(@TempDir Path logDir) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        // Клиентов больше половины пула: писатели не должны занимать потоки читателей
+        ChatServer server = new ChatServer(port, ServerMode.POOL, logDir.resolve("file.log"));
+        server.setPoolSize(4);
+        Thread runner = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        runner.start();
+        List<Socket> sockets = new java.util.ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Socket socket = null;
+                for (int attempt = 0; socket == null; attempt++) {
+                    try {
+                        socket = new Socket("localhost", port);
+                    } catch (IOException notStartedYet) {
+                        assertTrue(attempt < 50, "Сервер не запустился");
+                        Thread.sleep(100);
+                    }
+                }
+                socket.setSoTimeout(5000);
+                sockets.add(socket);
+                socket.getOutputStream().write(("Pooled" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (server.getClientCount() < 4) {
+                assertTrue(System.nanoTime() < deadline, "Не все клиенты зарегистрированы: " + server.getClientCount());
+                Thread.sleep(20);
+            }
+            sockets.get(0).getOutputStream().write("Всем в пуле\n".getBytes(StandardCharsets.UTF_8));
+            sockets.get(0).getOutputStream().flush();
+            for (Socket socket : sockets) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                do {
+                    line = in.readLine();
+                } while (line != null && !line.endsWith("Всем в пуле"));
+                assertNotNull(line, "Каждый клиент пула получает рассылку");
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.stop();
+            runner.join(2000);
+        }
+    }
+
+    @Test
+    void testMetricsEndpointAndMBean(@TempDir Path logDir) throws Exception {
+        int metricsPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            metricsPort = probe.getLocalPort();
+        }
+        ChatServer server = new ChatServer(0, ServerMode.PLATFORM, logDir.resolve("file.log"));
+        server.setMetricsPort(metricsPort);
+        Thread runner = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        runner.start();
+        StalledSession reader = new StalledSession(16, OverflowPolicy.DROP_OLDEST);
+        assertTrue(server.register("MetricsReader", reader));
+        server.onMessage(reader, "Первое");
+        server.onMessage(reader, "Второе");
+
+        String body = null;
+        for (int attempt = 0; body == null && attempt < 50; attempt++) {
+            try {
+                java.net.HttpURLConnection http = (java.net.HttpURLConnection)
+                        new java.net.URL("http://localhost:" + metricsPort + "/metrics").openConnection();
+                try (InputStream in = http.getInputStream()) {
+                    body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            } catch (IOException notStartedYet) {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull(body, "HTTP-точка метрик должна отвечать");
+        assertTrue(body.contains("chat_connections_active 1\n"), body);
+        assertTrue(body.contains("chat_messages_in_total 2\n"), body);
+        assertTrue(body.contains("chat_messages_out_total 2\n"), body);
+
+        javax.management.ObjectName name = new javax.management.ObjectName("chat:type=ChatServer,port=0");
+        assertEquals(2L, java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "MessagesInTotal"));
+        server.stop();
+        runner.join(5000);
+    }
+
+    // Первая строка, пришедшая сессии из другого потока
+    private static String awaitLine(ClientSession session) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            List<String> lines = drain(session);
+            if (!lines.isEmpty()) {
+                return lines.get(0);
+            }
+            Thread.sleep(50);
+        }
+        return fail("Ответ не пришёл");
+    }
+
+    private static List<String> drain(ClientSession session) {
+        List<String> lines = new java.util.ArrayList<>();
+        java.nio.ByteBuffer frame;
+        while ((frame = session.pollOutbound()) != null) {
+            lines.add(StandardCharsets.UTF_8.decode(frame.duplicate()).toString().trim());
+        }
+        return lines;
+    }
+
+    private static class StalledSession extends ClientSession {
+        private volatile boolean closed;
+
+        StalledSession(int capacity, OverflowPolicy policy) {
+            super(capacity, policy);
+        }
+
+        @Override
+        void onEnqueued() {
+        }
+
+        @Override
+        void close() {
+            closed = true;
+            chatServer.unregister(this);
+        }
+    }
+
     @AfterAll
     static void tearDown() throws InterruptedException {
         // Остановка сервера
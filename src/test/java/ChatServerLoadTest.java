@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/* Нагрузочный тест режимов сервера: подключает много клиентов и записывает расход памяти
+и задержку приёма соединения. В обычный прогон не входит (surefire запускает только *IntegrationTest):
+mvn test -Dtest=ChatServerLoadTest -Dchat.load.clients=10000 */
+class ChatServerLoadTest {
+
+    private static final int CLIENTS = Integer.getInteger("chat.load.clients", 10_000);
+    private static final int BASE_PORT = Integer.getInteger("chat.load.port", 18080);
+    private static final Path RESULTS = Paths.get("target/load-test-results.txt");
+    private static final long REGISTER_TIMEOUT_SECONDS = 30; // сколько ждать регистрации одного клиента
+
+    @Test
+    void testConnectClientsInEveryMode() throws Exception {
+        List<String> report = new ArrayList<>();
+        report.add(String.format("clients=%d%n%-9s %12s %12s %10s %10s %10s %10s",
+                CLIENTS, "mode", "heap_mb", "rss_mb", "threads", "p50_us", "p99_us", "max_us"));
+        int port = BASE_PORT;
+        for (ServerMode mode : ServerMode.values()) {
+            report.add(runMode(mode, port++));
+        }
+        Files.createDirectories(RESULTS.getParent());
+        Files.write(RESULTS, report, StandardCharsets.UTF_8);
+        report.forEach(System.out::println);
+    }
+
+    private String runMode(ServerMode mode, int port) throws Exception {
+        long heapBefore = usedHeap();
+        // Журнал во временном каталоге, как в бенчмарках: тест не должен писать в src/main/resources
+        ChatServer server = new ChatServer(port, mode, Files.createTempDirectory("chat-load").resolve("file.log"));
+        server.setPoolSize(CLIENTS); // иначе в режиме POOL лишние клиенты будут отклонены
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception ignored) {
+                // сервер остановлен
+            }
+        });
+        serverThread.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        List<Socket> sockets = new ArrayList<>(CLIENTS);
+        long[] latencies = new long[CLIENTS];
+        try {
+            /* Подключаем клиентов по одному: задержка — время от начала connect()
+            до момента, когда сервер зарегистрировал пользователя */
+            for (int i = 0; i < CLIENTS; i++) {
+                long start = System.nanoTime();
+                Socket socket = new Socket("localhost", port);
+                sockets.add(socket);
+                OutputStream out = socket.getOutputStream();
+                out.write(("load-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                long deadline = start + TimeUnit.SECONDS.toNanos(REGISTER_TIMEOUT_SECONDS);
+                while (server.getClientCount() < i + 1) {
+                    if (System.nanoTime() > deadline) {
+                        fail("Режим " + mode + ": клиент " + i + " не зарегистрирован за "
+                                + REGISTER_TIMEOUT_SECONDS + " с");
+                    }
+                    Thread.onSpinWait();
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+            assertEquals(CLIENTS, server.getClientCount(), "Не все клиенты зарегистрированы в режиме " + mode);
+
+            long heapMb = (usedHeap() - heapBefore) / (1024 * 1024);
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            Arrays.sort(latencies);
+            return String.format("%-9s %12d %12d %10d %10d %10d %10d", mode, heapMb, residentSetMb(), threads,
+                    latencies[CLIENTS / 2] / 1000, latencies[(int) (CLIENTS * 0.99)] / 1000,
+                    latencies[CLIENTS - 1] / 1000);
+        } finally {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            server.stop();
+            serverThread.join(5000);
+            // Ждём, пока обработчики заметят закрытие сокетов, чтобы не мешать следующему режиму
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (server.getClientCount() > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        TimeUnit.MILLISECONDS.sleep(200);
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Резидентная память процесса (Linux); учитывает стеки платформенных потоков, которых нет в куче
+    private static long residentSetMb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) / 1024;
+                }
+            }
+        } catch (IOException ignored) {
+            // не Linux
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // соединение уже закрыто
+        }
+    }
+}
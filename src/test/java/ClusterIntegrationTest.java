@@ -0,0 +1,241 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Несколько узлов кластера на петлевом интерфейсе, у каждого свой клиентский порт и порт для соседей
+class ClusterIntegrationTest {
+
+    @TempDir
+    Path logDir;
+
+    private final List<ChatServer> servers = new ArrayList<>();
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private ChatServer startNode(String name, ServerMode mode, int port, int clusterPort, int... peerPorts) throws Exception {
+        ChatServer server = new ChatServer(port, mode, logDir.resolve(name + ".log"));
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int peerPort : peerPorts) {
+            peers.add(InetSocketAddress.createUnresolved("localhost", peerPort));
+        }
+        server.setCluster(clusterPort, peers);
+        server.setHistory(10, 0);
+        servers.add(server);
+        new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "cluster-test-" + name).start();
+        return server;
+    }
+
+    // Клиент узла: подключается к его клиентскому порту и называется
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        final String username;
+
+        Client(int port, String username) throws Exception {
+            Socket connected = null;
+            for (int attempt = 0; connected == null; attempt++) {
+                try {
+                    connected = new Socket("localhost", port);
+                } catch (IOException notStartedYet) {
+                    assertTrue(attempt < 50, "Узел не запустился на порту " + port);
+                    Thread.sleep(100);
+                }
+            }
+            socket = connected;
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            out.println(username);
+            this.username = username;
+        }
+
+        // Дожидается эха своего сообщения — значит, клиент зарегистрирован
+        Client ready() throws IOException {
+            out.println(username + " на связи");
+            awaitLine(username + " на связи");
+            return this;
+        }
+
+        // Читает строки до оканчивающейся на text; возвращает, сколько по пути встретилось строк, оканчивающихся на also
+        int awaitLine(String text, String also) throws IOException {
+            int seen = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (also != null && line.endsWith(also)) {
+                    seen++;
+                }
+                if (line.endsWith(text)) {
+                    return seen;
+                }
+            }
+            fail("Соединение закрылось раньше строки: " + text);
+            return seen;
+        }
+
+        void awaitLine(String text) throws IOException {
+            awaitLine(text, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void testClientsOfAllNodesShareOneChat() throws Exception {
+        int[] ports = {freePort(), freePort(), freePort()};
+        int[] clusterPorts = {freePort(), freePort(), freePort()};
+        try {
+            startNode("a", ServerMode.PLATFORM, ports[0], clusterPorts[0], clusterPorts[1], clusterPorts[2]);
+            startNode("b", ServerMode.NIO, ports[1], clusterPorts[1], clusterPorts[0], clusterPorts[2]);
+            startNode("c", ServerMode.VIRTUAL, ports[2], clusterPorts[2], clusterPorts[0], clusterPorts[1]);
+            try (Client alice = new Client(ports[0], "Alice").ready();
+                 Client bob = new Client(ports[1], "Bob").ready();
+                 Client carol = new Client(ports[2], "Carol").ready()) {
+                alice.out.println("Привет кластеру");
+                bob.awaitLine("[Alice]: Привет кластеру");
+                carol.awaitLine("[Alice]: Привет кластеру");
+
+                carol.out.println("Ответ с третьего узла");
+                alice.awaitLine("[Carol]: Ответ с третьего узла");
+                // Узлы не пересылают чужие сообщения дальше, поэтому второй копии ответа Carol нет
+                carol.out.println("Последнее от Carol");
+                assertEquals(0, alice.awaitLine("[Carol]: Последнее от Carol", "[Carol]: Ответ с третьего узла"));
+            }
+            for (ChatServer server : servers) {
+                assertEquals(0, server.getMetrics().getRelayDuplicates());
+            }
+        } finally {
+            servers.forEach(ChatServer::stop);
+        }
+    }
+
+    @Test
+    void testDirectMessageReachesUserOnAnotherNode() throws Exception {
+        int[] ports = {freePort(), freePort(), freePort()};
+        int[] clusterPorts = {freePort(), freePort(), freePort()};
+        try {
+            startNode("a", ServerMode.PLATFORM, ports[0], clusterPorts[0], clusterPorts[1], clusterPorts[2]);
+            startNode("b", ServerMode.NIO, ports[1], clusterPorts[1], clusterPorts[0], clusterPorts[2]);
+            startNode("c", ServerMode.VIRTUAL, ports[2], clusterPorts[2], clusterPorts[0], clusterPorts[1]);
+            try (Client alice = new Client(ports[0], "Alice").ready();
+                 Client bob = new Client(ports[1], "Bob").ready();
+                 Client carol = new Client(ports[2], "Carol").ready()) {
+                alice.out.println("/msg Bob Лично Бобу");
+                alice.awaitLine("Пользователь Bob не на этом узле, сообщение передано узлам кластера");
+                bob.awaitLine("[Alice -> Bob]: Лично Бобу");
+
+                bob.out.println("/msg Alice Ответ Алисе");
+                alice.awaitLine("[Bob -> Alice]: Ответ Алисе");
+
+                // Личное сообщение получает только адресат: до Carol доходит лишь следующее сообщение в общий чат
+                alice.out.println("После личных");
+                assertEquals(0, carol.awaitLine("[Alice]: После личных", "Лично Бобу"));
+            }
+        } finally {
+            servers.forEach(ChatServer::stop);
+        }
+    }
+
+    @Test
+    void testPeerStartedLaterReceivesQueuedMessagesOnce() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        int clusterA = freePort();
+        int clusterB = freePort();
+        try {
+            ChatServer a = startNode("a", ServerMode.PLATFORM, portA, clusterA, clusterB);
+            try (Client alice = new Client(portA, "Alice").ready()) {
+                alice.out.println("Пока соседа нет");
+                alice.awaitLine("[Alice]: Пока соседа нет");
+            }
+
+            // Сосед поднимается позже: связь дожидается его, и очередь доходит с первым подключением
+            ChatServer b = startNode("b", ServerMode.NIO, portB, clusterB, clusterA);
+            for (int attempt = 0; b.getMetrics().getRelayedInTotal() < 2; attempt++) {
+                assertTrue(attempt < 100, "Узел b не получил сообщения узла a");
+                Thread.sleep(100);
+            }
+            try (Client bob = new Client(portB, "Bob")) {
+                // Вошедший на узел b видит в истории сообщения, отправленные на узле a до его запуска
+                bob.awaitLine("[Alice]: Пока соседа нет");
+            }
+            assertFalse(b.getCluster().firstSeen(a.getCluster().getNodeId(), 2), "Повтор того же номера отбрасывается");
+            assertTrue(b.getCluster().firstSeen(a.getCluster().getNodeId(), 3));
+        } finally {
+            servers.forEach(ChatServer::stop);
+        }
+    }
+
+    @Test
+    void testConcurrentRelayLosesNothing() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        int clusterA = freePort();
+        int clusterB = freePort();
+        int threads = 8;
+        int perThread = 2000;
+        try {
+            ChatServer a = startNode("a", ServerMode.PLATFORM, portA, clusterA, clusterB);
+            ChatServer b = startNode("b", ServerMode.NIO, portB, clusterB, clusterA);
+            try (Client alice = new Client(portA, "Alice").ready();
+                 Client bob = new Client(portB, "Bob").ready()) {
+                // Связь поднята: первое сообщение дошло до соседа
+                alice.out.println("Связь есть");
+                bob.awaitLine("[Alice]: Связь есть");
+            }
+
+            // Несколько потоков рассылки одновременно: номера не должны обгонять друг друга в очереди
+            ClusterNode node = a.getCluster();
+            long expected = b.getMetrics().getRelayedInTotal() + (long) threads * perThread;
+            List<Thread> senders = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String sender = "Sender" + t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        node.relay(sender, RoomRegistry.DEFAULT_ROOM, System.currentTimeMillis(), "сообщение " + i);
+                    }
+                });
+                senders.add(thread);
+                thread.start();
+            }
+            for (Thread thread : senders) {
+                thread.join();
+            }
+
+            for (int attempt = 0; b.getMetrics().getRelayedInTotal() < expected; attempt++) {
+                assertTrue(attempt < 200, "Узел b принял " + b.getMetrics().getRelayedInTotal() + " из " + expected);
+                Thread.sleep(50);
+            }
+            assertEquals(expected, b.getMetrics().getRelayedInTotal());
+            assertEquals(0, b.getMetrics().getRelayDuplicates());
+        } finally {
+            servers.forEach(ChatServer::stop);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioChatServerIntegrationTest {
+
+    private static ChatServer chatServer;
+    private static final int TEST_PORT = 8081;
+
+    @BeforeAll
+    static void setup() throws Exception {
+        chatServer = new ChatServer(TEST_PORT, ServerMode.NIO);
+        new Thread(() -> {
+            try {
+                chatServer.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        // Дожидаемся старта сервера
+        Thread.sleep(1000);
+    }
+
+    private static Socket connect(String username) throws Exception {
+        Socket socket = new Socket("localhost", TEST_PORT);
+        socket.setSoTimeout(5000); // вместо фиксированных пауз ждём ответ не дольше 5 секунд
+        new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8).println(username);
+        return socket;
+    }
+
+    @Test
+    void testBroadcastBetweenClients() throws Exception {
+        try (Socket alice = connect("Alice"); Socket bob = connect("Bob")) {
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream(), StandardCharsets.UTF_8));
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            // Bob должен успеть зарегистрироваться: ждём эхо его собственного сообщения
+            new PrintWriter(bob.getOutputStream(), true, StandardCharsets.UTF_8).println("Bob на связи");
+            assertTrue(bobIn.readLine().contains("Bob на связи"));
+
+            aliceOut.println("Привет из NIO");
+            String received = bobIn.readLine();
+            while (!received.contains("[Alice]")) {
+                received = bobIn.readLine();
+            }
+            assertTrue(received.contains("Привет из NIO"), "Bob не получил сообщение Alice");
+
+            aliceOut.println("/exit");
+            // после /exit сервер закрывает соединение
+            String line;
+            do {
+                line = aliceIn.readLine();
+            } while (line != null);
+        }
+    }
+
+    @Test
+    void testLongLineIsReassembled() throws Exception {
+        try (Socket socket = connect("LongLineUser")) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            // Строка длиннее буфера чтения цикла приходит несколькими порциями
+            String longMessage = "ж".repeat(NioEventLoop.SCRATCH_SIZE);
+            out.println(longMessage);
+
+            String line = in.readLine();
+            while (!line.contains("[LongLineUser]")) {
+                line = in.readLine();
+            }
+            assertTrue(line.endsWith(longMessage), "Длинная строка была повреждена при сборке");
+        }
+    }
+
+    @Test
+    void testBinaryClientTalksToTextClient() throws Exception {
+        try (Socket binary = new Socket("localhost", TEST_PORT); Socket text = connect("TextPeer")) {
+            binary.setSoTimeout(5000);
+            BufferedReader textIn = new BufferedReader(new InputStreamReader(text.getInputStream(), StandardCharsets.UTF_8));
+            new PrintWriter(text.getOutputStream(), true, StandardCharsets.UTF_8).println("TextPeer на связи");
+            assertTrue(textIn.readLine().contains("TextPeer на связи"));
+
+            OutputStream out = binary.getOutputStream();
+            out.write(new byte[]{BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+            write(out, BinaryProtocol.hello("BinaryUser"));
+            // Кадр длиннее буфера чтения цикла приходит несколькими порциями
+            String longMessage = "ж".repeat(NioEventLoop.SCRATCH_SIZE);
+            write(out, BinaryProtocol.text(longMessage));
+            out.flush();
+
+            BinaryFrameReader frames = new BinaryFrameReader(new BufferedInputStream(binary.getInputStream()));
+            assertTrue(frames.next());
+            assertEquals(BinaryProtocol.WELCOME, frames.type(), "Первым кадром приходит номер имени");
+            int ownId = BinaryProtocol.getVarint(frames.payload());
+            do {
+                assertTrue(frames.next());
+            } while (frames.type() != BinaryProtocol.USER || BinaryProtocol.getVarint(frames.payload()) != ownId);
+            assertTrue(frames.next());
+            assertEquals(BinaryProtocol.CHAT, frames.type(), "За именем отправителя идёт его сообщение");
+            ByteBuffer payload = frames.payload();
+            assertEquals(ownId, BinaryProtocol.getVarint(payload));
+            payload.getLong(); // время
+            assertEquals(0, BinaryProtocol.getVarint(payload), "Сообщение общей комнаты");
+            assertEquals(longMessage, BinaryProtocol.decodeText(payload, payload.position(), payload.remaining()));
+
+            String line = textIn.readLine();
+            while (!line.contains("[BinaryUser]")) {
+                line = textIn.readLine();
+            }
+            assertTrue(line.endsWith(longMessage), "Строковый клиент должен получить сообщение в текстовом виде");
+        }
+    }
+
+    @Test
+    void testLoadGeneratorMeasuresFanOut() throws Exception {
+        ChatLoadGenerator.Result result = new ChatLoadGenerator("localhost", TEST_PORT, 20, 2, 50, 1).run();
+        assertTrue(result.sent() > 0, "Генератор должен отправлять сообщения");
+        assertTrue(result.delivered() >= result.sent() * 20, "Каждое сообщение должны получить все клиенты");
+        assertTrue(result.corrected().getTotalCount() >= result.delivered());
+    }
+
+    @Test
+    void testFlooderIsPausedAndLongLineDisconnects(@TempDir Path logDir) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer limited = new ChatServer(port, ServerMode.NIO, logDir.resolve("file.log"));
+        limited.setRateLimit(50, 1024 * 1024, 10_000);
+        limited.setMaxLineLength(1024);
+        new Thread(() -> {
+            try {
+                limited.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException notStartedYet) {
+                assertTrue(attempt < 50, "Сервер не запустился");
+                Thread.sleep(100);
+            }
+        }
+        try (Socket flooder = socket) {
+            flooder.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(flooder.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(flooder.getOutputStream(), false, StandardCharsets.UTF_8);
+            out.println("Flooder");
+            // Сто строк одним пакетом: 50 проходят всплеском, остальные — по мере пополнения ведра (около секунды)
+            for (int i = 0; i < 100; i++) {
+                out.println("Поток " + i);
+            }
+            out.flush();
+            long started = System.nanoTime();
+            String line;
+            do {
+                line = in.readLine();
+            } while (!line.endsWith("Поток 99"));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue(elapsedMillis >= 800, "Чтение отправителя должно приостанавливаться: " + elapsedMillis + " мс");
+            assertTrue(limited.getMetrics().getThrottledTotal() > 0);
+
+            out.println("ж".repeat(1024));
+            out.flush();
+            do {
+                line = in.readLine();
+            } while (line != null);
+            assertEquals(0, limited.getClientCount(), "Строка длиннее лимита закрывает соединение");
+        } finally {
+            limited.stop();
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws Exception {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(frame.position(), bytes);
+        out.write(bytes);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        chatServer.stop();
+    }
+}
@@ -0,0 +1,323 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedLogIntegrationTest {
+
+    @TempDir
+    Path dir;
+
+    // Пишем count записей со временем 1000 + i, сбрасывая пачку каждые 50 записей
+    private SegmentedLog writeLog(int count) throws IOException {
+        SegmentedLog log = new SegmentedLog(dir.resolve("file.log"));
+        log.setSegmentLimits(4096, 60_000);
+        log.open();
+        for (int i = 0; i < count; i++) {
+            log.append("[user]: сообщение " + i, 1000 + i);
+            if (i % 50 == 49) {
+                log.writePending();
+            }
+        }
+        log.writePending();
+        return log;
+    }
+
+    private long countFiles(String glob) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileSystem().getPathMatcher("glob:" + glob).matches(p.getFileName())).count();
+        }
+    }
+
+    @Test
+    void testLookupAcrossRolledSegments() throws Exception {
+        SegmentedLog log = writeLog(1000);
+        assertTrue(countFiles("file-*.log") > 1, "Журнал должен был разбиться на сегменты");
+
+        List<LogRecord> last = log.lastN(3);
+        assertEquals(List.of(997L, 998L, 999L), last.stream().map(LogRecord::sequence).toList());
+        assertEquals("[user]: сообщение 999", last.get(2).text());
+
+        List<LogRecord> since = log.since(1500, 2);
+        assertEquals(500, since.get(0).sequence());
+        assertEquals("[user]: сообщение 501", since.get(1).text());
+        assertTrue(log.since(5000, 10).isEmpty(), "Записей позже последней быть не должно");
+        log.close();
+    }
+
+    @Test
+    void testReopenContinuesSequenceAndTruncatesTornTail() throws Exception {
+        writeLog(120).close();
+        long logSize = Files.size(dir.resolve("file.log"));
+        // Имитируем сбой: в индексе есть запись, данных для которой нет, а в данных — обрывок без индекса
+        try (FileChannel index = FileChannel.open(dir.resolve("file.log.idx"), StandardOpenOption.APPEND)) {
+            index.write(ByteBuffer.allocate(SegmentedLog.INDEX_RECORD).putLong(9999).putInt((int) logSize).putInt(100)
+                    .putInt(0).flip());
+        }
+        Files.write(dir.resolve("file.log"), "[user]: оборван".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        SegmentedLog reopened = new SegmentedLog(dir.resolve("file.log"));
+        reopened.open();
+        assertEquals(120, reopened.nextSequence(), "Оборванная запись индекса должна быть отброшена");
+        assertEquals(logSize, Files.size(dir.resolve("file.log")), "Обрывок данных должен быть отрезан");
+        long logId = reopened.logId();
+        reopened.append("после перезапуска", 5000);
+        reopened.writePending();
+        assertEquals("после перезапуска", reopened.lastN(1).get(0).text());
+        assertEquals(120, reopened.lastN(1).get(0).sequence());
+        reopened.close();
+
+        // Испорченный байт последней записи: сумма не сходится, запись отбрасывается вместе с хвостом
+        try (FileChannel data = FileChannel.open(dir.resolve("file.log"), StandardOpenOption.WRITE)) {
+            data.write(ByteBuffer.wrap(new byte[]{'X'}), data.size() - 3);
+        }
+        SegmentedLog recovered = new SegmentedLog(dir.resolve("file.log"));
+        recovered.open();
+        assertEquals(120, recovered.nextSequence(), "Запись с неверной суммой должна быть отброшена");
+        assertNotEquals(logId, recovered.logId(), "Отброшенный номер выдан заново — журнал уже другой");
+        assertEquals(119, recovered.lastN(1).get(0).sequence());
+        recovered.close();
+    }
+
+    @Test
+    void testWriterKilledMidBatchStartsNewLog() throws Exception {
+        writeLog(10).close();
+        SegmentedLog log = new SegmentedLog(dir.resolve("file.log"));
+        log.open();
+        long logId = log.logId();
+        log.close();
+        log = new SegmentedLog(dir.resolve("file.log"));
+        log.open();
+        assertEquals(logId, log.logId(), "После аккуратного закрытия идентификатор журнала сохраняется");
+
+        // Номера 10..14 уже выданы отправителям; на диск успели данные 10..12, индекс — только 10..11
+        for (int i = 10; i < 13; i++) {
+            log.append("[user]: сообщение " + i, 1000 + i);
+        }
+        log.writePending();
+        log.append("[user]: сообщение 13", 1013);
+        log.append("[user]: сообщение 14", 1014);
+        try (FileChannel index = FileChannel.open(dir.resolve("file.log.idx"), StandardOpenOption.WRITE)) {
+            index.truncate(index.size() - SegmentedLog.INDEX_RECORD);
+        }
+        // Писатель убит: close() не вызывается
+
+        SegmentedLog recovered = new SegmentedLog(dir.resolve("file.log"));
+        recovered.open();
+        assertEquals(12, recovered.nextSequence());
+        assertNotEquals(logId, recovered.logId(), "Номера 12..14 будут выданы заново — это другой журнал");
+        recovered.append("после сбоя", 2000);
+        recovered.writePending();
+        assertEquals(12, recovered.lastN(1).get(0).sequence());
+        assertEquals("после сбоя", recovered.lastN(1).get(0).text());
+        recovered.close();
+
+        // Возобновление после аккуратной остановки снова узнаёт журнал
+        SegmentedLog resumed = new SegmentedLog(dir.resolve("file.log"));
+        resumed.open();
+        assertEquals(recovered.logId(), resumed.logId());
+        assertEquals(13, resumed.nextSequence());
+        resumed.close();
+    }
+
+    @Test
+    void testInterruptedRollIsFinishedOnOpen() throws Exception {
+        SegmentedLog log = writeLog(1000);
+        List<SegmentedLog.SegmentBounds> bounds = log.segmentBounds();
+        long baseSeq = bounds.get(bounds.size() - 1).baseSeq();
+        log.close();
+        String rolled = String.format("file-%020d", baseSeq);
+
+        // Сбой после переименования данных, но до переименования индекса
+        Files.move(dir.resolve("file.log"), dir.resolve(rolled + ".log"));
+        SegmentedLog reopened = new SegmentedLog(dir.resolve("file.log"));
+        reopened.open();
+        assertEquals(1000, reopened.nextSequence(), "Записи закрываемого сегмента не должны теряться");
+        assertEquals("[user]: сообщение 999", reopened.lastN(1).get(0).text());
+        assertTrue(Files.exists(dir.resolve(rolled + ".idx")));
+        reopened.close();
+
+        // Прежний порядок: индекс уже закрыт, данные ещё текущие
+        Files.delete(dir.resolve("file.log"));
+        Files.delete(dir.resolve("file.log.idx"));
+        Files.move(dir.resolve(rolled + ".log"), dir.resolve("file.log"));
+        SegmentedLog recovered = new SegmentedLog(dir.resolve("file.log"));
+        recovered.open();
+        assertEquals(1000, recovered.nextSequence());
+        assertEquals("[user]: сообщение 999", recovered.lastN(1).get(0).text());
+        recovered.close();
+    }
+
+    @Test
+    void testFailedBatchIsKeptAndRetried() throws Exception {
+        Path sub = dir.resolve("sub");
+        SegmentedLog log = new SegmentedLog(sub.resolve("file.log"));
+        log.open();
+        log.append("до сбоя", 1000);
+        assertTrue(log.writePending());
+
+        // Каталог журнала пропал: пачка не записывается, но и не теряется
+        Files.delete(sub.resolve("file.log"));
+        Files.delete(sub.resolve("file.log.idx"));
+        Files.delete(sub);
+        log.append("во время сбоя 1", 2000);
+        log.append("во время сбоя 2", 2001);
+        assertFalse(log.writePending());
+        assertEquals(3, log.nextSequence(), "Записи неудачной пачки сохраняют свои номера");
+
+        Files.createDirectories(sub);
+        assertTrue(log.writePending(), "Повтор записывает пачку целиком");
+        List<LogRecord> last = log.lastN(2);
+        assertEquals(List.of(1L, 2L), last.stream().map(LogRecord::sequence).toList());
+        assertEquals("во время сбоя 2", last.get(1).text());
+        log.close();
+    }
+
+    @Test
+    void testFullLogQueueNeverBlocksSender() throws Exception {
+        CountDownLatch disk = new CountDownLatch(1);
+        // Писатель застревает на первой записи, как на медленном диске
+        SegmentedLog slow = new SegmentedLog(dir.resolve("file.log")) {
+            @Override
+            boolean append(String entry) {
+                try {
+                    disk.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.append(entry);
+            }
+        };
+        ChatLogWriter writer = new ChatLogWriter(slow, 4, LogFlushPolicy.DEFAULT);
+        writer.start();
+        assertEquals(0, writer.append("первая"));
+        while (writer.backlog() > 0) {
+            Thread.sleep(1); // писатель забрал первую запись и ждёт диск
+        }
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, writer.append("в очереди " + i));
+        }
+        assertTrue(writer.isBacklogged(), "Заполненная очередь сигнализирует серверу придержать отправителей");
+
+        long started = System.nanoTime();
+        assertEquals(-1, writer.append("лишняя"), "Полная очередь запись не принимает");
+        assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(100), "Отправитель не ждёт места в очереди");
+        assertEquals(5, writer.nextSequence(), "Отклонённая запись номера не получает");
+
+        disk.countDown();
+        assertTrue(writer.sync(5000));
+        assertFalse(writer.isBacklogged());
+        assertEquals(5, writer.getWritten());
+        assertTrue(writer.close(5000));
+    }
+
+    @Test
+    void testRetentionCompressesOldSegments() throws Exception {
+        SegmentedLog log = writeLog(1000);
+        log.setRetention(new LogRetentionPolicy(1, true, 0));
+        log.applyRetention();
+        assertTrue(countFiles("file-*.log.gz") > 0, "Старые сегменты должны быть сжаты");
+
+        // Запись из сжатого сегмента по-прежнему находится по времени
+        assertEquals("[user]: сообщение 10", log.since(1010, 1).get(0).text());
+        // Чтение сжатых сегментов по одной записи подряд: сегмент распаковывается один раз, а не на каждую запись
+        for (int i = 0; i < 300; i++) {
+            assertEquals("[user]: сообщение " + i, log.range(i, 1).get(0).text());
+        }
+        log.close();
+    }
+
+    @Test
+    void testLegacyLogWithoutIndexIsKept() throws Exception {
+        Files.writeString(dir.resolve("file.log"), "[старое]: запись\n[старое]: ещё одна\n");
+        SegmentedLog log = new SegmentedLog(dir.resolve("file.log"));
+        log.open();
+        log.append("новая запись");
+        log.writePending();
+
+        List<LogRecord> records = log.lastN(2);
+        assertEquals("[старое]: запись\n[старое]: ещё одна", records.get(0).text());
+        assertEquals("новая запись", records.get(1).text());
+        log.close();
+    }
+
+    private static void awaitIndexed(SearchIndex index, long seq) throws InterruptedException {
+        for (int attempt = 0; index.indexedUpTo() < seq; attempt++) {
+            assertTrue(attempt < 100, "Индекс поиска не догнал журнал: " + index.indexedUpTo());
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void testSearchIndexFollowsLogAndSurvivesRestart() throws Exception {
+        SegmentedLog log = new SegmentedLog(dir.resolve("file.log"));
+        log.setSegmentLimits(4096, 60_000);
+        log.open();
+        for (int i = 0; i < 600; i++) {
+            String sender = i % 3 == 0 ? "Alice" : "Bob";
+            String room = i % 10 == 0 ? " [#dev]" : "";
+            log.append("[2024-05-01T10:00] [" + sender + "]" + room + ": сообщение номер " + i
+                    + (i % 100 == 7 ? " сборка упала" : ""), 1000 + i);
+            if (i % 50 == 49) {
+                log.writePending();
+            }
+        }
+        log.append("[2024-05-01T10:00] [Alice -> Bob]: секретная сборка упала", 2000);
+        log.writePending();
+
+        SearchIndex index = new SearchIndex(log);
+        index.start();
+        awaitIndexed(index, 601);
+        assertTrue(countFiles("file-*.search") > 1, "Закрытые сегменты должны получить свои файлы индекса");
+
+        List<String> found = index.search("Сборка УПАЛА", entry -> true);
+        assertEquals("Найдено сообщений: 6", found.get(0));
+        assertTrue(found.get(1).endsWith("сообщение номер 7 сборка упала"), "Результаты — от старых к новым");
+        assertTrue(found.get(6).endsWith("сообщение номер 507 сборка упала"));
+        assertTrue(found.stream().noneMatch(line -> line.contains("секретная")), "Личные сообщения не ищутся");
+
+        assertEquals(3, index.search("сборка @alice", entry -> true).size(), "Заголовок и две записи: из семи только 207 и 507 отправила Alice");
+        assertEquals(SearchIndex.MAX_RESULTS + 1, index.search("сообщение", entry -> true).size(), "Не больше MAX_RESULTS");
+        assertEquals(List.of("Ничего не найдено"), index.search("дедлайн", entry -> true));
+        // Сообщения комнаты dev видны только её участникам; чужие совпадения не занимают место в ответе
+        List<String> devOnly = index.search("сообщение", entry -> entry.contains("[#dev]"));
+        assertEquals(SearchIndex.MAX_RESULTS + 1, devOnly.size(), "Индекс читается дальше, пока видимых не наберётся MAX_RESULTS");
+        assertTrue(devOnly.stream().skip(1).allMatch(line -> line.contains("[#dev]")));
+        assertTrue(index.search("сообщение номер 590", entry -> !entry.contains("[#dev]")).stream()
+                .noneMatch(line -> line.endsWith("номер 590")), "Запись чужой комнаты не находится");
+        index.stop(1000);
+        log.close();
+
+        // После перезапуска закрытые сегменты не разбираются заново, текущий продолжается с сохранённого места
+        SegmentedLog reopened = new SegmentedLog(dir.resolve("file.log"));
+        reopened.setSegmentLimits(4096, 60_000);
+        reopened.open();
+        reopened.append("[2024-05-02T10:00] [Carol]: сборка снова упала", 3000);
+        reopened.writePending();
+        SearchIndex restarted = new SearchIndex(reopened);
+        restarted.start();
+        awaitIndexed(restarted, 602);
+        List<String> again = restarted.search("сборка упала", entry -> true);
+        assertEquals(8, again.size());
+        assertTrue(again.get(7).endsWith("[Carol]: сборка снова упала"));
+        String since = LocalDateTime.ofInstant(Instant.ofEpochMilli(2500), ZoneId.systemDefault()).toString();
+        assertEquals(2, restarted.search("сборка " + since, entry -> true).size(), "С этого момента — только сообщение Carol");
+        restarted.stop(1000);
+        reopened.close();
+    }
+}